@@ -0,0 +1,265 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * AIMD (additive increase, multiplicative decrease) limit on the number of
+ * transfers in flight to one data host.
+ *
+ * The limit grows by about one per round of completed transfers while the
+ * host's aggregate throughput keeps rising and the time to first byte stays
+ * near its baseline. It is cut on errors and throttling responses (429/503)
+ * by half, and on latency spikes by a fifth - at most once per cool-down
+ * period, so one burst of failures counts as one congestion signal.
+ */
+class AdaptiveConcurrencyLimiter {
+    private static final ConcurrentHashMap<String, AdaptiveConcurrencyLimiter> HOSTS = new ConcurrentHashMap<>();
+    private static final double LATENCY_TOLERANCE = 2.5;
+    private static final long THROUGHPUT_WINDOW_MILLIS = 1000;
+    private static final long MIN_COOLDOWN_MILLIS = 500;
+
+    private static volatile int initialLimit = 4;
+    private static volatile int maxLimit = 16;
+    private static volatile boolean enabled = true;
+    private static volatile boolean debug = false;
+
+    private final String host;
+    private double limit;
+    private int inFlight = 0;
+    private double baselineLatency = -1;   // slowly drifting minimum time to first byte (ms)
+    private double recentLatency = -1;     // moving average of the time to first byte (ms)
+    private long lastDecrease = 0;
+    private long windowStart = System.currentTimeMillis();
+    private long windowBytes = 0;
+    private double lastThroughput = -1;    // bytes/s of the previous window
+    private boolean rising = true;
+
+    private AdaptiveConcurrencyLimiter(String host) {
+        this.host = host;
+        this.limit = Math.min(initialLimit, maxLimit);
+    }
+
+    static void configure(int initial, int max, boolean adaptive, boolean debugOutput) {
+        maxLimit = Math.max(1, max);
+        initialLimit = adaptive ? Math.max(1, Math.min(initial, maxLimit)) : maxLimit;
+        enabled = adaptive;
+        debug = debugOutput;
+    }
+
+    static AdaptiveConcurrencyLimiter forUrl(String url) {
+        String key;
+        try {
+            URL u = new URL(url);
+            key = u.getHost() + ":" + u.getPort();
+        } catch (MalformedURLException ex) {
+            key = url;
+        }
+        return HOSTS.computeIfAbsent(key, AdaptiveConcurrencyLimiter::new);
+    }
+
+    /*
+     * Blocks until the host has room for another transfer
+     */
+    Permit acquire() throws InterruptedException {
+        take();
+        return new Permit();
+    }
+
+    private synchronized void take() throws InterruptedException {
+        while (inFlight >= (int) limit) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    synchronized int limit() {
+        return (int) limit;
+    }
+
+    /*
+     * Compares the smoothed recent time to first byte with the baseline. A
+     * cut lifts the baseline towards the current latency, so a lasting change
+     * on the server side is accepted after a few cuts instead of pinning the
+     * limit at one.
+     */
+    private synchronized void onFirstByte(long millis) {
+        if (baselineLatency < 0 || millis < baselineLatency) {
+            baselineLatency = millis;
+        } else {
+            baselineLatency += (millis - baselineLatency) * 0.02;
+        }
+        recentLatency = (recentLatency < 0) ? millis : recentLatency + (millis - recentLatency) * 0.3;
+        if (recentLatency > baselineLatency * LATENCY_TOLERANCE && recentLatency - baselineLatency > 50
+                && decrease(0.8, "latency " + (long) recentLatency + " ms")) {
+            baselineLatency += (recentLatency - baselineLatency) / 2;
+        }
+    }
+
+    private synchronized void onCompletion(long bytes) {
+        long now = System.currentTimeMillis();
+        windowBytes += bytes;
+        if (now - windowStart >= THROUGHPUT_WINDOW_MILLIS) {
+            double throughput = windowBytes * 1000.0 / (now - windowStart);
+            rising = lastThroughput < 0 || throughput >= lastThroughput * 0.95;
+            lastThroughput = throughput;
+            windowStart = now;
+            windowBytes = 0;
+        }
+        // Only grow while the limit is what holds transfers back
+        if (enabled && rising && inFlight + 1 >= (int) limit && limit < maxLimit) {
+            int before = (int) limit;
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+            if (debug && (int) limit > before) System.out.println("Concurrency limit for " + host + " raised to " + (int) limit);
+        }
+    }
+
+    private synchronized boolean decrease(double factor, String reason) {
+        long now = System.currentTimeMillis();
+        if (!enabled || limit <= 1 || now - lastDecrease < Math.max(MIN_COOLDOWN_MILLIS, (long) baselineLatency)) return false;
+        lastDecrease = now;
+        limit = Math.max(1, limit * factor);
+        rising = false;
+        if (debug) System.out.println("Concurrency limit for " + host + " cut to " + (int) limit + " (" + reason + ")");
+        return true;
+    }
+
+    private synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /*
+     * One transfer slot; released exactly once, by release() or by closing
+     * (or reading to the end of) the stream returned from track(). Given
+     * back for the sleep before a retry (see backoff())
+     */
+    class Permit {
+        private long start = System.currentTimeMillis();
+        private long bytes = 0;
+        private boolean released = false;
+        private boolean resting = false;       // given back by backoff(), to be taken again
+
+        void firstByte() {
+            onFirstByte(System.currentTimeMillis() - start);
+        }
+
+        /*
+         * An attempt failed - throttling responses and errors both mean back off.
+         * Not once the slot is given back: the stream was closed on purpose
+         */
+        void failed(Throwable th) {
+            synchronized (this) {
+                if (released) return;
+            }
+            if (th instanceof ThroughputWatchdog.StalledException) return; // too slow for us, not an error of the host
+            String message = String.valueOf(th.getMessage());
+            boolean throttled = message.contains("429") || message.contains("503");
+            decrease(0.5, throttled ? "throttled" : th.getClass().getSimpleName());
+        }
+
+        void throttled(int code) {
+            decrease(0.5, "HTTP " + code);
+        }
+
+        synchronized void release() {
+            if (released) {
+                resting = false; // released for good while backing off
+                return;
+            }
+            released = true;
+            if (bytes > 0) onCompletion(bytes);
+            AdaptiveConcurrencyLimiter.this.release();
+        }
+
+        /*
+         * Sleeps before retry number 'attempt' without holding the slot, so
+         * other transfers to the host can go on meanwhile, then waits for a
+         * slot again; returns false if interrupted (then without a slot)
+         */
+        boolean backoff(Backoff backoff, int attempt) {
+            synchronized (this) {
+                if (released) return backoff.sleep(attempt);
+                released = true;
+                resting = true;
+            }
+            AdaptiveConcurrencyLimiter.this.release();
+            boolean slept = backoff.sleep(attempt);
+            try {
+                take();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                synchronized (this) {
+                    resting = false;
+                }
+                return false;
+            }
+            synchronized (this) {
+                if (resting) {
+                    resting = false;
+                    released = false;
+                    start = System.currentTimeMillis(); // time to first byte of the retry
+                    return slept;
+                }
+            }
+            AdaptiveConcurrencyLimiter.this.release(); // released for good meanwhile
+            return slept;
+        }
+
+        InputStream track(InputStream in) {
+            return new FilterInputStream(in) {
+                private volatile boolean closed = false;
+
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b < 0) release(); else bytes++;
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n;
+                    try {
+                        n = super.read(b, off, len);
+                    } catch (IOException ex) {
+                        // Closed underneath (a hedge that lost) or aborted by the watchdog: not the host's fault
+                        if (!closed) failed(ex);
+                        throw ex;
+                    }
+                    if (n < 0) release(); else bytes += n;
+                    return n;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    closed = true;
+                    try {
+                        super.close();
+                    } finally {
+                        release();
+                    }
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,740 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import htsjdk.samtools.util.Tuple;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * Non-blocking transport for ranged ticket URLs (--async-requests): hundreds
+ * of range requests in flight on one I/O thread, instead of a thread blocked
+ * in each. A request has an HTTP/1.1 connection (plain, or TLS through an
+ * SSLEngine) to itself while it runs - kept alive afterwards in a pool per
+ * host. The body goes to its place in a file channel as it arrives, and the
+ * future completes on the I/O thread once it is all there.
+ *
+ * Only the simple case is handled: GET with a Range, answered 206 with a
+ * Content-Length, chunked or close-delimited body. Anything else (redirects,
+ * errors, stalls) fails the future; the caller goes the blocking way then
+ * (see DownloadScheduler). A 429 or 503 also halves the number of requests
+ * in flight (once per burst); it grows back by one per round of completed
+ * requests.
+ *
+ * Host names are resolved on the I/O thread - the JVM caches them, and a
+ * ticket has few data hosts.
+ */
+class AsyncTransport implements Closeable {
+    private static final long CONNECT_TIMEOUT_MILLIS = 60000;
+    private static final long STALL_TIMEOUT_MILLIS = 60000;  // nothing moved on a busy connection
+    private static final long KEEP_ALIVE_MILLIS = 30000;     // unused pooled connections are closed after
+    private static final int MIN_REQUESTS = 4;
+    private static final long THROTTLE_COOLDOWN_MILLIS = 500; // one halving per burst of 429/503
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /*
+     * A response whose body has been written
+     */
+    static class Response {
+        final int status;
+        final Map<String, String> headers;
+        final long length;
+
+        Response(int status, Map<String, String> headers, long length) {
+            this.status = status;
+            this.headers = headers;
+            this.length = length;
+        }
+    }
+
+    /*
+     * A status other than 206 Partial Content
+     */
+    static class StatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        StatusException(int status, String url) {
+            super("HTTP " + status + " from " + url);
+            this.status = status;
+        }
+    }
+
+    private final int maxRequests;
+    private final boolean debug;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Exchange> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile boolean closed = false;
+    private volatile long completed = 0, connected = 0;
+
+    // I/O thread only
+    private final PriorityQueue<Exchange> waiting = new PriorityQueue<>();
+    private final Map<String, ArrayDeque<Connection>> idle = new HashMap<>();
+    private final Set<Connection> connections = new HashSet<>();
+    private int busy = 0;
+    private double limit;
+    private long throttled = 0;
+    private SSLContext sslContext = null;
+
+    AsyncTransport(int maxRequests, boolean debug) throws IOException {
+        this.maxRequests = Math.max(1, maxRequests);
+        this.limit = this.maxRequests;
+        this.debug = debug;
+        this.selector = Selector.open();
+        Thread thread = new Thread(this::loop, "AsyncTransport");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /*
+     * Whether the URL can go this way: HTTP(S) with a Range
+     */
+    static boolean accepts(TicketResponse.URL_OBJECT uo) {
+        try {
+            String protocol = new URL(uo.url).getProtocol();
+            return (protocol.equals("http") || protocol.equals("https")) && uo.getRanges() != null;
+        } catch (MalformedURLException | ParseException ex) {
+            return false;
+        }
+    }
+
+    /*
+     * GETs the URL with its headers and writes the body to the channel from
+     * 'position' on; waiting requests are started by priority (higher first),
+     * then in order
+     */
+    CompletableFuture<Response> fetch(TicketResponse.URL_OBJECT uo, FileChannel sink, long position, int priority) {
+        CompletableFuture<Response> future = new CompletableFuture<>();
+        try {
+            incoming.add(new Exchange(uo, sink, position, priority, sequence.getAndIncrement(), future));
+            selector.wakeup();
+            if (closed) future.completeExceptionally(new IOException("Async transport closed"));
+        } catch (Exception ex) {
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+
+    String stats() {
+        return completed + " requests on " + connected + " connections";
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    private void loop() {
+        try {
+            while (!closed) {
+                selector.select(1000);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection c = (Connection) key.attachment();
+                    try {
+                        if (key.isValid()) c.ready();
+                    } catch (Exception ex) {
+                        c.fail(ex);
+                    }
+                }
+                for (Exchange e; (e = incoming.poll()) != null; ) waiting.add(e);
+                dispatch();
+                expire();
+            }
+        } catch (Throwable th) {
+            System.out.println("Async transport failed: " + th);
+        } finally {
+            closed = true;
+            IOException ex = new IOException("Async transport closed");
+            for (Connection c : new ArrayList<>(connections)) c.fail(ex);
+            for (Exchange e : waiting) e.future.completeExceptionally(ex);
+            for (Exchange e; (e = incoming.poll()) != null; ) e.future.completeExceptionally(ex);
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /*
+     * Starts waiting requests, on pooled connections where there are any
+     */
+    private void dispatch() {
+        while (busy < (int) limit && !waiting.isEmpty()) {
+            Exchange e = waiting.poll();
+            if (e.future.isDone()) continue; // abandoned by the caller
+            ArrayDeque<Connection> pool = idle.get(e.origin);
+            Connection c = (pool == null) ? null : pool.poll();
+            try {
+                if (c == null) c = new Connection(e.url);
+            } catch (Exception ex) {
+                e.future.completeExceptionally(ex);
+                continue;
+            }
+            try {
+                c.start(e);
+            } catch (Exception ex) {
+                c.fail(ex);
+            }
+        }
+    }
+
+    /*
+     * Fails stalled requests, closes connections unused for long
+     */
+    private void expire() {
+        long now = System.currentTimeMillis();
+        for (Connection c : new ArrayList<>(connections)) {
+            long quiet = now - c.activity;
+            if (c.exchange == null) {
+                if (quiet > KEEP_ALIVE_MILLIS) c.close();
+            } else if (c.exchange.future.isDone()) {
+                c.fail(new IOException("Abandoned"));
+            } else if (quiet > (c.open ? STALL_TIMEOUT_MILLIS : CONNECT_TIMEOUT_MILLIS)) {
+                c.fail(new SocketTimeoutException("No data for " + quiet + " ms from " + c.exchange.uo.url));
+            }
+        }
+    }
+
+    private static String origin(URL url) {
+        return url.getProtocol() + "://" + url.getHost() + ":" + (url.getPort() < 0 ? url.getDefaultPort() : url.getPort());
+    }
+
+    private class Exchange implements Comparable<Exchange> {
+        private static final int HEAD = 0, BODY = 1, CHUNK_SIZE = 2, CHUNK_DATA = 3, CHUNK_END = 4, TRAILER = 5;
+
+        final TicketResponse.URL_OBJECT uo;
+        final URL url;
+        final String origin;
+        final FileChannel sink;
+        final long position;
+        final int priority;
+        final long sequence;
+        final CompletableFuture<Response> future;
+        final List<Tuple<Long, Long>> ranges;
+
+        // The response, as parsed so far
+        int state;
+        ByteArrayOutputStream head;
+        int tail;                 // its last four bytes
+        StringBuilder line;
+        int status;
+        TreeMap<String, String> headers;
+        long remaining, written;
+        boolean started, keepAlive, untilClose;
+
+        Exchange(TicketResponse.URL_OBJECT uo, FileChannel sink, long position, int priority, long sequence,
+                 CompletableFuture<Response> future) throws MalformedURLException, ParseException {
+            this.uo = uo;
+            this.url = new URL(uo.url);
+            this.origin = origin(url);
+            this.sink = sink;
+            this.position = position;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.future = future;
+            this.ranges = uo.getRanges();
+            reset();
+        }
+
+        void reset() {
+            state = HEAD;
+            head = new ByteArrayOutputStream(1024);
+            tail = 0;
+            line = new StringBuilder();
+            headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            written = 0;
+            started = false;
+        }
+
+        ByteBuffer request() {
+            StringBuilder sb = new StringBuilder("GET ").append(url.getFile().isEmpty() ? "/" : url.getFile());
+            sb.append(" HTTP/1.1\r\nHost: ").append(url.getHost());
+            if (url.getPort() >= 0) sb.append(':').append(url.getPort());
+            sb.append("\r\n");
+            if (uo.headers != null) {
+                for (Map.Entry<String, String> h : uo.headers.entrySet()) {
+                    if (!h.getKey().equalsIgnoreCase("Host")) sb.append(h.getKey()).append(": ").append(h.getValue()).append("\r\n");
+                }
+            }
+            sb.append("\r\n");
+            return ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        /*
+         * Takes in the response bytes in 'in'; true once the response is complete
+         */
+        boolean consume(ByteBuffer in) throws IOException {
+            if (in.hasRemaining()) started = true;
+            while (in.hasRemaining()) {
+                switch (state) {
+                    case HEAD:
+                        byte b = in.get();
+                        head.write(b);
+                        tail = tail << 8 | (b & 0xFF);
+                        if (tail == 0x0D0A0D0A) { // CRLF CRLF
+                            parseHead();
+                            if (state == BODY && remaining == 0) return true;
+                        }
+                        break;
+                    case BODY:
+                    case CHUNK_DATA:
+                        write(in, (int) Math.min(in.remaining(), remaining));
+                        if (remaining == 0) {
+                            if (state == BODY) return true;
+                            state = CHUNK_END;
+                        }
+                        break;
+                    default: { // a line of the chunked framing
+                        char c = (char) in.get();
+                        if (c != '\n') {
+                            if (c != '\r') line.append(c);
+                            break;
+                        }
+                        String l = line.toString().trim();
+                        line.setLength(0);
+                        if (state == CHUNK_SIZE) {
+                            int semicolon = l.indexOf(';');
+                            try {
+                                remaining = Long.parseLong(semicolon < 0 ? l : l.substring(0, semicolon).trim(), 16);
+                            } catch (NumberFormatException ex) {
+                                throw new IOException("Invalid chunk size '" + l + "' from " + uo.url);
+                            }
+                            state = (remaining == 0) ? TRAILER : CHUNK_DATA;
+                        } else if (state == CHUNK_END) {
+                            state = CHUNK_SIZE;
+                        } else if (l.isEmpty()) { // TRAILER
+                            return true;
+                        }
+                    }
+                }
+            }
+            return false;
+        }
+
+        /*
+         * The end of a close-delimited body is the end of the connection
+         */
+        boolean completeAtEof() {
+            return state == BODY && untilClose;
+        }
+
+        private void parseHead() throws IOException {
+            String[] lines = new String(head.toByteArray(), StandardCharsets.ISO_8859_1).split("\r\n");
+            String[] statusLine = lines[0].split(" ", 3);
+            try {
+                status = Integer.parseInt(statusLine[1]);
+            } catch (RuntimeException ex) {
+                throw new IOException("Invalid status line '" + lines[0] + "' from " + uo.url);
+            }
+            if (status >= 100 && status < 200) { // interim response, the real one follows
+                head.reset();
+                tail = 0;
+                return;
+            }
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) headers.put(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+            }
+            if (status != 206) throw new StatusException(status, uo.url);
+            if (ranges.size() == 1) {
+                long[] range = MultiRangeInputStream.contentRange(headers.get("Content-Range"));
+                if (range == null || range[0] != ranges.get(0).a) {
+                    throw new IOException("Unexpected Content-Range '" + headers.get("Content-Range") + "' from " + uo.url);
+                }
+            }
+            String encoding = headers.get("Content-Encoding");
+            if (encoding != null && !encoding.equalsIgnoreCase("identity")) {
+                throw new IOException("Unexpected Content-Encoding " + encoding + " from " + uo.url);
+            }
+            String connection = headers.get("Connection");
+            keepAlive = statusLine[0].equals("HTTP/1.1") && (connection == null || !connection.equalsIgnoreCase("close"));
+            String transferEncoding = headers.get("Transfer-Encoding");
+            String length = headers.get("Content-Length");
+            if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+                state = CHUNK_SIZE;
+            } else if (length != null) {
+                state = BODY;
+                try {
+                    remaining = Long.parseLong(length);
+                } catch (NumberFormatException ex) {
+                    throw new IOException("Invalid Content-Length '" + length + "' from " + uo.url);
+                }
+            } else {
+                state = BODY;
+                remaining = Long.MAX_VALUE;
+                untilClose = true;
+                keepAlive = false;
+            }
+        }
+
+        private void write(ByteBuffer in, int n) throws IOException {
+            ByteBuffer part = in.duplicate();
+            part.limit(part.position() + n);
+            while (part.hasRemaining()) written += sink.write(part, position + written);
+            in.position(in.position() + n);
+            remaining -= n;
+            BandwidthGovernor.charge(n); // all transfers wait while the cap is in debt
+        }
+
+        Response response() {
+            return new Response(status, headers, written);
+        }
+
+        @Override
+        public int compareTo(Exchange o) {
+            return (priority != o.priority) ? Integer.compare(o.priority, priority) : Long.compare(sequence, o.sequence);
+        }
+    }
+
+    private class Connection {
+        final URL url;
+        final String origin;
+        final boolean tls;
+        final SocketChannel channel;
+        final SelectionKey key;
+        SSLEngine engine;
+        ByteBuffer netIn, netOut;              // TLS records: netIn being filled, netOut being drained
+        ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE); // response bytes, being drained
+        boolean open = false, handshaken = false;
+        int served = 0;
+        Exchange exchange;
+        ByteBuffer request;
+        long activity = System.currentTimeMillis();
+
+        Connection(URL url) throws IOException {
+            this.url = url;
+            this.origin = origin(url);
+            this.tls = url.getProtocol().equals("https");
+            in.flip();
+            InetSocketAddress address = new InetSocketAddress(url.getHost(), url.getPort() < 0 ? url.getDefaultPort() : url.getPort());
+            if (address.isUnresolved()) throw new UnknownHostException(url.getHost());
+            channel = SocketChannel.open();
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                key = channel.register(selector, 0, this);
+                if (channel.connect(address)) {
+                    opened();
+                } else {
+                    key.interestOps(SelectionKey.OP_CONNECT);
+                }
+            } catch (IOException ex) {
+                channel.close();
+                throw ex;
+            }
+            connections.add(this);
+            connected++;
+        }
+
+        private void opened() throws SSLException {
+            open = true;
+            if (!tls) return;
+            if (sslContext == null) sslContext = SSLUtilities.getUnsafeSSLContext();
+            engine = sslContext.createSSLEngine(url.getHost(), url.getPort() < 0 ? url.getDefaultPort() : url.getPort());
+            engine.setUseClientMode(true);
+            int packet = engine.getSession().getPacketBufferSize();
+            netIn = ByteBuffer.allocate(packet);
+            netOut = ByteBuffer.allocate(packet);
+            netOut.flip();
+            if (in.capacity() < engine.getSession().getApplicationBufferSize()) {
+                in = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+                in.flip();
+            }
+            engine.beginHandshake();
+        }
+
+        void start(Exchange e) throws IOException {
+            exchange = e;
+            request = e.request();
+            busy++;
+            activity = System.currentTimeMillis();
+            if (open) proceed();
+        }
+
+        /*
+         * The channel is ready for what it was waiting for
+         */
+        void ready() throws IOException {
+            if (!open) {
+                if (!channel.finishConnect()) return;
+                opened();
+            }
+            proceed();
+        }
+
+        private void proceed() throws IOException {
+            activity = System.currentTimeMillis();
+            if (tls && !handshaken) {
+                if (!handshake()) return;
+                handshaken = true;
+            }
+            if (exchange == null) { // pooled: the server closing it, or sending what was not asked for
+                if (read() != 0) close();
+                else key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+            if (!write(request)) { // or the TLS records of it
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            while (true) {
+                if (exchange.consume(in)) {
+                    complete();
+                    return;
+                }
+                int n = read();
+                if (n == 0) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+                if (n < 0) {
+                    if (!exchange.completeAtEof()) throw new EOFException("Connection closed by " + url.getHost());
+                    complete();
+                    return;
+                }
+            }
+        }
+
+        private void complete() {
+            Exchange e = exchange;
+            detach();
+            served++;
+            completed++;
+            limit = Math.min(maxRequests, limit + 1 / limit);
+            if (e.keepAlive && !in.hasRemaining() && connections.size() <= maxRequests) {
+                idle.computeIfAbsent(origin, k -> new ArrayDeque<>()).add(this);
+                key.interestOps(SelectionKey.OP_READ);
+            } else {
+                close();
+            }
+            e.future.complete(e.response());
+        }
+
+        private void detach() {
+            if (exchange == null) return;
+            exchange = null;
+            busy--;
+        }
+
+        void fail(Exception ex) {
+            close();
+            Exchange e = exchange;
+            if (e == null) return;
+            detach();
+            if (served > 0 && !e.started) { // the server had dropped the pooled connection - try the next
+                e.reset();
+                waiting.add(e);
+                return;
+            }
+            if (ex instanceof StatusException && (((StatusException) ex).status == 429 || ((StatusException) ex).status == 503)
+                    && System.currentTimeMillis() - throttled > THROTTLE_COOLDOWN_MILLIS) {
+                throttled = System.currentTimeMillis();
+                limit = Math.max(Math.min(MIN_REQUESTS, maxRequests), limit / 2);
+                if (debug) System.out.println("Throttled (" + ex.getMessage() + ") - " + (int) limit + " async requests in flight");
+            }
+            e.future.completeExceptionally(ex);
+        }
+
+        void close() {
+            connections.remove(this);
+            ArrayDeque<Connection> pool = idle.get(origin);
+            if (pool != null) pool.remove(this);
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        /*
+         * Response bytes into 'in': the number read, 0 for none yet, -1 at the end
+         */
+        private int read() throws IOException {
+            if (!tls) {
+                in.compact();
+                try {
+                    return channel.read(in);
+                } finally {
+                    in.flip();
+                }
+            }
+            while (true) {
+                SSLEngineResult r = unwrap();
+                switch (r.getStatus()) {
+                    case OK:
+                        if (r.bytesProduced() > 0) return r.bytesProduced();
+                        if (r.bytesConsumed() > 0) continue; // a record without data
+                        break;
+                    case CLOSED:
+                        return -1;
+                    case BUFFER_OVERFLOW:
+                        ByteBuffer larger = ByteBuffer.allocate(in.capacity() * 2);
+                        larger.put(in).flip();
+                        in = larger;
+                        continue;
+                    default: // BUFFER_UNDERFLOW
+                        break;
+                }
+                if (!netIn.hasRemaining()) netIn = grow(netIn);
+                int n = channel.read(netIn);
+                if (n <= 0) return n;
+            }
+        }
+
+        private SSLEngineResult unwrap() throws IOException {
+            netIn.flip();
+            in.compact();
+            SSLEngineResult r;
+            try {
+                r = engine.unwrap(netIn, in);
+            } finally {
+                netIn.compact();
+                in.flip();
+            }
+            runTasks();
+            if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) wrap(EMPTY);
+            return r;
+        }
+
+        /*
+         * Writes the request; false if the socket can't take all of it yet
+         */
+        private boolean write(ByteBuffer src) throws IOException {
+            if (!tls) {
+                while (src.hasRemaining()) {
+                    if (channel.write(src) == 0) return false;
+                }
+                return true;
+            }
+            if (!flush()) return false;
+            while (src.hasRemaining()) {
+                if (!wrap(src)) return false;
+            }
+            return true;
+        }
+
+        private boolean wrap(ByteBuffer src) throws IOException {
+            netOut.compact();
+            SSLEngineResult r;
+            try {
+                r = engine.wrap(src, netOut);
+            } finally {
+                netOut.flip();
+            }
+            if (r.getStatus() == SSLEngineResult.Status.CLOSED) throw new EOFException("TLS connection closed by " + url.getHost());
+            if (r.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                if (!flush()) return false;
+                ByteBuffer larger = ByteBuffer.allocate(netOut.capacity() * 2);
+                larger.flip();
+                netOut = larger;
+            }
+            runTasks();
+            return flush();
+        }
+
+        private boolean flush() throws IOException {
+            while (netOut.hasRemaining()) {
+                if (channel.write(netOut) == 0) return false;
+            }
+            return true;
+        }
+
+        /*
+         * Drives the TLS handshake as far as the socket allows; true once done
+         */
+        private boolean handshake() throws IOException {
+            while (true) {
+                if (!flush()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return false;
+                }
+                switch (engine.getHandshakeStatus()) {
+                    case NOT_HANDSHAKING:
+                    case FINISHED:
+                        return true;
+                    case NEED_TASK:
+                        runTasks();
+                        break;
+                    case NEED_WRAP:
+                        wrap(EMPTY);
+                        break;
+                    default: { // NEED_UNWRAP
+                        SSLEngineResult r = unwrap();
+                        if (r.getStatus() == SSLEngineResult.Status.CLOSED) throw new EOFException("TLS handshake closed by " + url.getHost());
+                        if (r.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                            if (!netIn.hasRemaining()) netIn = grow(netIn);
+                            int n = channel.read(netIn);
+                            if (n < 0) throw new EOFException("TLS handshake closed by " + url.getHost());
+                            if (n == 0) {
+                                key.interestOps(SelectionKey.OP_READ);
+                                return false;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        private void runTasks() {
+            for (Runnable task; (task = engine.getDelegatedTask()) != null; ) task.run();
+        }
+
+        private ByteBuffer grow(ByteBuffer filling) {
+            ByteBuffer larger = ByteBuffer.allocate(filling.capacity() * 2);
+            filling.flip();
+            return larger.put(filling);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with full jitter: the n-th retry waits a random time
+ * between 0 and min(cap, base * 2^n). Spreads the retries of many parallel
+ * transfers that failed together instead of sending them back in lockstep.
+ */
+class Backoff {
+    static final Backoff CONNECT = new Backoff(250, 10000);
+    static final Backoff TRANSFER = new Backoff(1000, 30000);
+
+    private final long baseMillis;
+    private final long capMillis;
+
+    Backoff(long baseMillis, long capMillis) {
+        this.baseMillis = baseMillis;
+        this.capMillis = capMillis;
+    }
+
+    long delay(int attempt) {
+        long ceiling = capMillis;
+        attempt = Math.max(0, attempt);
+        if (attempt < 30) {
+            ceiling = Math.min(capMillis, baseMillis << attempt);
+        }
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /*
+     * Sleeps before retry number 'attempt' (0 based); returns false if interrupted
+     */
+    boolean sleep(int attempt) {
+        try {
+            Thread.sleep(delay(attempt));
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
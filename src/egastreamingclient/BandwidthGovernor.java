@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Process wide token bucket capping the aggregate download rate of all
+ * concurrent transfers.
+ *
+ * Bytes are charged after they have been read, one chunk at a time, so there
+ * is no per byte cost. The bucket may go into debt; the reader that overdrew
+ * it sleeps until the debt is paid. Grants are at most QUANTUM bytes and are
+ * handed out under a fair lock, so transfers queue up in turn and share the
+ * cap evenly. A full bucket allows a burst of up to 'burst' bytes.
+ *
+ * Streams nest - a Loader thread reads through a seekable stream - and each
+ * byte must be charged once. The Loader charges everything it hands on; a
+ * thread that reads for a Loader (the Loader itself, or the thread opening
+ * its source) calls deferToLoader(), and source streams then skip their own
+ * charge (see chargeSource()).
+ */
+final class BandwidthGovernor {
+    private static final int QUANTUM = 64 * 1024;
+    private static final ThreadLocal<Boolean> DEFERRED = ThreadLocal.withInitial(() -> Boolean.FALSE);
+    private static volatile BandwidthGovernor global = null;
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final double rate;   // bytes per second
+    private final double burst;  // bucket capacity in bytes
+    private double tokens;
+    private long last = System.nanoTime();
+
+    private BandwidthGovernor(long bytesPerSecond, long burstBytes) {
+        this.rate = bytesPerSecond;
+        this.burst = Math.max(QUANTUM, burstBytes);
+        this.tokens = this.burst;
+    }
+
+    /*
+     * Sets the aggregate cap (bytes/s, 0 or less = unlimited) and the burst
+     * size (bytes, 0 or less = one second at the cap)
+     */
+    static void configure(long bytesPerSecond, long burstBytes) {
+        global = (bytesPerSecond > 0)
+                ? new BandwidthGovernor(bytesPerSecond, burstBytes > 0 ? burstBytes : bytesPerSecond)
+                : null;
+    }
+
+    static boolean enabled() {
+        return global != null;
+    }
+
+    static long limit() {
+        BandwidthGovernor g = global;
+        return (g == null) ? 0 : (long) g.rate;
+    }
+
+    /*
+     * Marks whether the calling thread's reads are charged by a Loader
+     */
+    static void deferToLoader(boolean deferred) {
+        DEFERRED.set(deferred);
+    }
+
+    /*
+     * Charge from a source stream - skipped where a Loader charges instead
+     */
+    static void chargeSource(long bytes) throws InterruptedIOException {
+        if (global != null && !DEFERRED.get()) charge(bytes);
+    }
+
+    /*
+     * Accounts for bytes just read, blocking while the bucket is in debt
+     */
+    static void charge(long bytes) throws InterruptedIOException {
+        BandwidthGovernor g = global;
+        if (g == null || bytes <= 0) return;
+        while (bytes > 0) {
+            int n = (int) Math.min(bytes, QUANTUM);
+            g.take(n);
+            bytes -= n;
+        }
+    }
+
+    private void take(int n) throws InterruptedIOException {
+        try {
+            lock.lockInterruptibly();
+            try {
+                long now = System.nanoTime();
+                tokens = Math.min(burst, tokens + (now - last) * rate / 1e9);
+                last = now;
+                tokens -= n;
+                if (tokens < 0) {
+                    // Sleep holding the lock - the next transfer in line gets its turn after us
+                    TimeUnit.NANOSECONDS.sleep((long) (-tokens * 1e9 / rate));
+                }
+            } finally {
+                lock.unlock();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+        }
+    }
+
+    /*
+     * Parses a byte count such as 500K, 20M or 1G (binary multiples)
+     */
+    static long parseBytes(String value) {
+        if (value == null || value.trim().isEmpty()) return 0;
+        String v = value.trim().toUpperCase();
+        long multiplier = 1;
+        switch (v.charAt(v.length() - 1)) {
+            case 'K': multiplier = 1L << 10; break;
+            case 'M': multiplier = 1L << 20; break;
+            case 'G': multiplier = 1L << 30; break;
+        }
+        if (multiplier > 1) v = v.substring(0, v.length() - 1);
+        return (long) (Double.parseDouble(v) * multiplier);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Cuts an arbitrarily chunked byte stream into complete BGZF blocks.
+ *
+ * Bytes are fed in as they arrive from the network; every time a complete
+ * block is available it is handed to the BlockHandler together with its
+ * compressed offset in the stream (the block address of a virtual file offset).
+ */
+class BgzfBlockSplitter {
+    private static final int HEADER_FIXED_LENGTH = 12; // ID1 ID2 CM FLG MTIME(4) XFL OS XLEN(2)
+
+    interface BlockHandler {
+        void block(byte[] block, long address) throws IOException;
+    }
+
+    private final BlockHandler handler;
+    private byte[] buffer = new byte[2 * BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
+    private int length = 0;
+    private long address = 0;
+
+    BgzfBlockSplitter(BlockHandler handler) {
+        this.handler = handler;
+    }
+
+    void feed(byte[] b, int off, int len) throws IOException {
+        if (length + len > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + len));
+        }
+        System.arraycopy(b, off, buffer, length, len);
+        length += len;
+
+        int start = 0, blockSize;
+        while ((blockSize = blockSize(buffer, start, length - start, address)) > 0) {
+            handler.block(Arrays.copyOfRange(buffer, start, start + blockSize), address);
+            address += blockSize;
+            start += blockSize;
+        }
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, length - start);
+            length -= start;
+        }
+    }
+
+    /*
+     * Bytes of an incomplete block still held back; non-zero at the end of
+     * the stream means the data was truncated.
+     */
+    int pending() {
+        return length;
+    }
+
+    long address() {
+        return address;
+    }
+
+    /*
+     * True if the bytes start with a gzip member carrying the BGZF 'BC' field,
+     * null if they are too few to tell (the header is not complete yet)
+     */
+    static Boolean isBgzf(byte[] b, int off, int len) {
+        if (len >= 1 && b[off] != BlockCompressedStreamConstants.GZIP_ID1) return false;
+        if (len >= 2 && (b[off + 1] & 0xFF) != BlockCompressedStreamConstants.GZIP_ID2) return false;
+        if (len >= 4 && (b[off + 3] & BlockCompressedStreamConstants.GZIP_FLG) == 0) return false;
+        if (len < HEADER_FIXED_LENGTH || len < HEADER_FIXED_LENGTH + unsignedShort(b, off + 10)) return null;
+        return findBsize(b, off, len) >= 0;
+    }
+
+    /*
+     * Size of the complete block starting at off (at 'address' in the
+     * stream), or 0 if more bytes are needed
+     */
+    private static int blockSize(byte[] b, int off, int len, long address) throws IOException {
+        if (len < HEADER_FIXED_LENGTH) return 0;
+        if (b[off] != BlockCompressedStreamConstants.GZIP_ID1 || (b[off + 1] & 0xFF) != BlockCompressedStreamConstants.GZIP_ID2) {
+            throw new IOException("Invalid BGZF block header at stream offset " + address);
+        }
+        int xlen = unsignedShort(b, off + 10);
+        if (len < HEADER_FIXED_LENGTH + xlen) return 0;
+        int bsize = findBsize(b, off, len);
+        if (bsize < 0) {
+            throw new IOException("gzip member without BGZF 'BC' extra field at stream offset " + address);
+        }
+        return (bsize + 1 <= len) ? bsize + 1 : 0;
+    }
+
+    private static int findBsize(byte[] b, int off, int len) {
+        int xlen = unsignedShort(b, off + 10);
+        int pos = off + HEADER_FIXED_LENGTH, end = Math.min(pos + xlen, off + len);
+        while (pos + 4 <= end) {
+            int slen = unsignedShort(b, pos + 2);
+            if (b[pos] == BlockCompressedStreamConstants.BGZF_ID1 && b[pos + 1] == BlockCompressedStreamConstants.BGZF_ID2 && slen == 2) {
+                return (pos + 6 <= end) ? unsignedShort(b, pos + 4) : -1;
+            }
+            pos += 4 + slen;
+        }
+        return -1;
+    }
+
+    /*
+     * Inflates one complete block (as emitted by the splitter) and checks its
+     * CRC32 and ISIZE footer.
+     */
+    static byte[] inflate(byte[] block, Inflater inflater) throws IOException {
+        int header = HEADER_FIXED_LENGTH + unsignedShort(block, 10);
+        int footer = block.length - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+        int expectedCrc = int32(block, footer);
+        int isize = int32(block, footer + 4);
+
+        byte[] result = new byte[isize];
+        inflater.reset();
+        inflater.setInput(block, header, footer - header);
+        try {
+            int n = 0;
+            while (n < isize) {
+                int count = inflater.inflate(result, n, isize - n);
+                if (count == 0 && (inflater.finished() || inflater.needsInput())) break;
+                n += count;
+            }
+            if (n != isize) {
+                throw new IOException("BGZF block inflated to " + n + " bytes, expected " + isize);
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupt BGZF block", ex);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(result, 0, isize);
+        if ((int) crc.getValue() != expectedCrc) {
+            throw new IOException("CRC mismatch in BGZF block");
+        }
+        return result;
+    }
+
+    static int unsignedShort(byte[] b, int off) {
+        return (b[off] & 0xFF) | ((b[off + 1] & 0xFF) << 8);
+    }
+
+    static int int32(byte[] b, int off) {
+        return (b[off] & 0xFF) | ((b[off + 1] & 0xFF) << 8) |
+               ((b[off + 2] & 0xFF) << 16) | ((b[off + 3] & 0xFF) << 24);
+    }
+}
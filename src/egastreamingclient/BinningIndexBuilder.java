@@ -0,0 +1,248 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Accumulates the hierarchical binning index shared by BAI, CSI and tabix
+ * (SAM/BAM specification, section 5) from records presented in coordinate
+ * order, and serialises it in any of the three file formats.
+ *
+ * Records are added with their 0-based [beg, end) interval and the virtual
+ * file offsets of their first byte and of the byte just after them.
+ */
+class BinningIndexBuilder {
+    private static final int LINEAR_SHIFT = 14;
+
+    private final int minShift;
+    private final int depth;
+    private final int metaBin;
+    private final List<Reference> references = new ArrayList<>();
+    private long noCoordinate = 0;
+
+    BinningIndexBuilder() {
+        this(14, 5); // BAI / tabix geometry
+    }
+
+    BinningIndexBuilder(int minShift, int depth) {
+        this.minShift = minShift;
+        this.depth = depth;
+        this.metaBin = ((1 << ((depth + 1) * 3)) - 1) / 7 + 1;
+    }
+
+    private static class Reference {
+        final TreeMap<Integer, Bin> bins = new TreeMap<>();
+        long[] linear = new long[0];
+        long first = -1, last = 0, mapped = 0, unmapped = 0;
+    }
+
+    private static class Bin {
+        long[] chunks = new long[4];
+        int n = 0; // number of longs used - two per chunk
+
+        void add(long start, long end) {
+            // Extend the previous chunk if the new one continues it directly or in the same BGZF block
+            if (n > 0 && (start <= chunks[n - 1] || (chunks[n - 1] >>> 16) == (start >>> 16))) {
+                chunks[n - 1] = Math.max(chunks[n - 1], end);
+                return;
+            }
+            if (n == chunks.length) chunks = Arrays.copyOf(chunks, n * 2);
+            chunks[n++] = start;
+            chunks[n++] = end;
+        }
+    }
+
+    void add(int refId, int beg, int end, long vStart, long vEnd, boolean mapped) {
+        if (refId < 0) {
+            noCoordinate++;
+            return;
+        }
+        Reference ref = reference(refId);
+        if (end <= beg) end = beg + 1;
+
+        int bin = reg2bin(beg, end);
+        Bin b = ref.bins.get(bin);
+        if (b == null) ref.bins.put(bin, b = new Bin());
+        b.add(vStart, vEnd);
+
+        int first = beg >> LINEAR_SHIFT, last = (end - 1) >> LINEAR_SHIFT;
+        if (ref.linear.length <= last) {
+            int n = ref.linear.length;
+            ref.linear = Arrays.copyOf(ref.linear, Math.max(last + 1, n * 2));
+            Arrays.fill(ref.linear, n, ref.linear.length, -1L);
+        }
+        for (int w = first; w <= last; w++) {
+            if (ref.linear[w] == -1L) ref.linear[w] = vStart;
+        }
+
+        if (ref.first < 0) ref.first = vStart;
+        ref.last = vEnd;
+        if (mapped) ref.mapped++; else ref.unmapped++;
+    }
+
+    /*
+     * Make sure the index lists at least this many references
+     */
+    void references(int count) {
+        if (count > 0) reference(count - 1);
+    }
+
+    private Reference reference(int refId) {
+        while (references.size() <= refId) references.add(new Reference());
+        return references.get(refId);
+    }
+
+    int reg2bin(int beg, int end) {
+        int l = depth, s = minShift, t = ((1 << depth * 3) - 1) / 7;
+        for (--end; l > 0; --l, s += 3, t -= 1 << l * 3) {
+            if (beg >> s == end >> s) return t + (beg >> s);
+        }
+        return 0;
+    }
+
+    /*
+     * Linear index trimmed to the last window used, with gaps filled from the
+     * preceding window (as samtools does)
+     */
+    private static long[] linear(Reference ref) {
+        int n = ref.linear.length;
+        while (n > 0 && ref.linear[n - 1] == -1L) n--;
+        long[] linear = Arrays.copyOf(ref.linear, n);
+        for (int i = 1; i < n; i++) {
+            if (linear[i] == -1L) linear[i] = linear[i - 1];
+        }
+        for (int i = 0; i < n && linear[i] == -1L; i++) linear[i] = 0;
+        return linear;
+    }
+
+    /*
+     * Smallest virtual offset a query starting in this bin has to look at (CSI loffset)
+     */
+    private long loffset(int bin, long[] linear) {
+        int l = 0, t = 0;
+        while (l < depth && bin >= t + (1 << 3 * l)) {
+            t += 1 << 3 * l;
+            l++;
+        }
+        long beg = (long) (bin - t) << (minShift + 3 * (depth - l));
+        int window = (int) (beg >> LINEAR_SHIFT);
+        if (linear.length == 0) return 0;
+        return linear[Math.min(window, linear.length - 1)];
+    }
+
+    void writeBai(OutputStream out) throws IOException {
+        LittleEndian le = new LittleEndian();
+        le.bytes("BAI\1".getBytes(StandardCharsets.US_ASCII));
+        le.int32(references.size());
+        for (Reference ref : references) {
+            writeBins(le, ref, null);
+            long[] linear = linear(ref);
+            le.int32(linear.length);
+            for (long offset : linear) le.int64(offset);
+        }
+        le.int64(noCoordinate);
+        le.writeTo(out);
+    }
+
+    void writeCsi(OutputStream out) throws IOException {
+        LittleEndian le = new LittleEndian();
+        le.bytes("CSI\1".getBytes(StandardCharsets.US_ASCII));
+        le.int32(minShift);
+        le.int32(depth);
+        le.int32(0); // no auxiliary data for BCF
+        le.int32(references.size());
+        for (Reference ref : references) {
+            writeBins(le, ref, linear(ref));
+        }
+        le.int64(noCoordinate);
+        le.writeTo(out);
+    }
+
+    void writeTbi(OutputStream out, List<String> names) throws IOException {
+        LittleEndian le = new LittleEndian();
+        le.bytes("TBI\1".getBytes(StandardCharsets.US_ASCII));
+        le.int32(references.size());
+        le.int32(2);     // format: VCF
+        le.int32(1);     // col_seq
+        le.int32(2);     // col_beg
+        le.int32(0);     // col_end
+        le.int32('#');   // meta character
+        le.int32(0);     // lines to skip
+        ByteArrayOutputStream nm = new ByteArrayOutputStream();
+        for (String name : names) {
+            nm.write(name.getBytes(StandardCharsets.US_ASCII));
+            nm.write(0);
+        }
+        le.int32(nm.size());
+        le.bytes(nm.toByteArray());
+        for (Reference ref : references) {
+            writeBins(le, ref, null);
+            long[] linear = linear(ref);
+            le.int32(linear.length);
+            for (long offset : linear) le.int64(offset);
+        }
+        le.int64(noCoordinate);
+        le.writeTo(out);
+    }
+
+    /*
+     * Bins plus the pseudo-bin with the per reference metadata; CSI (linear
+     * passed in) writes a loffset per bin instead of a linear index
+     */
+    private void writeBins(LittleEndian le, Reference ref, long[] linear) {
+        boolean meta = ref.first >= 0;
+        le.int32(ref.bins.size() + (meta ? 1 : 0));
+        for (java.util.Map.Entry<Integer, Bin> e : ref.bins.entrySet()) {
+            le.int32(e.getKey());
+            if (linear != null) le.int64(loffset(e.getKey(), linear));
+            Bin b = e.getValue();
+            le.int32(b.n / 2);
+            for (int i = 0; i < b.n; i++) le.int64(b.chunks[i]);
+        }
+        if (meta) {
+            le.int32(metaBin);
+            if (linear != null) le.int64(0);
+            le.int32(2);
+            le.int64(ref.first);
+            le.int64(ref.last);
+            le.int64(ref.mapped);
+            le.int64(ref.unmapped);
+        }
+    }
+
+    private static class LittleEndian extends ByteArrayOutputStream {
+        void int32(int v) {
+            write(v); write(v >>> 8); write(v >>> 16); write(v >>> 24);
+        }
+
+        void int64(long v) {
+            int32((int) v);
+            int32((int) (v >>> 32));
+        }
+
+        void bytes(byte[] b) {
+            write(b, 0, b.length);
+        }
+    }
+}
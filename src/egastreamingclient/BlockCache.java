@@ -0,0 +1,201 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Fixed size LRU cache of block aligned byte ranges of remote resources,
+ * shared by all readers in the process.
+ *
+ * Blocks missing from the cache are loaded in runs of consecutive blocks
+ * (one upstream request per run, at most MAX_RUN blocks). A block being
+ * loaded is shared: readers needing it wait for the load already in flight
+ * instead of requesting it again. A block shorter than blockSize marks the
+ * end of the resource; an empty block means the block lies beyond it.
+ *
+ * Off heap, the blocks are kept in direct buffers: a large cache then
+ * doesn't add to the heap the garbage collector has to walk (the limit is
+ * -XX:MaxDirectMemorySize, by default the maximum heap size).
+ */
+class BlockCache {
+    static final int MAX_RUN = 64;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    interface Loader {
+        /*
+         * Loads 'count' blocks starting at block 'first'; may return fewer
+         * at the end of the resource
+         */
+        List<byte[]> load(String resource, long first, int count) throws IOException;
+    }
+
+    private final int blockSize;
+    private final long capacity;
+    private final boolean offHeap;
+    private long size = 0;
+    private final LinkedHashMap<Key, ByteBuffer> blocks = new LinkedHashMap<>(1024, 0.75f, true);
+    private final Map<Key, CompletableFuture<ByteBuffer>> loading = new HashMap<>();
+    private long hits = 0, misses = 0;
+
+    BlockCache(int blockSize, long capacityBytes) {
+        this(blockSize, capacityBytes, false);
+    }
+
+    BlockCache(int blockSize, long capacityBytes, boolean offHeap) {
+        this.blockSize = blockSize;
+        this.capacity = capacityBytes;
+        this.offHeap = offHeap;
+    }
+
+    int blockSize() {
+        return blockSize;
+    }
+
+    private static final class Key {
+        final String resource;
+        final long block;
+
+        Key(String resource, long block) {
+            this.resource = resource;
+            this.block = block;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof Key) && ((Key) o).block == block && ((Key) o).resource.equals(resource);
+        }
+
+        @Override
+        public int hashCode() {
+            return resource.hashCode() * 31 + Long.hashCode(block);
+        }
+    }
+
+    /*
+     * Blocks first .. first+count-1 of the resource, from the cache or loaded
+     */
+    List<byte[]> get(String resource, long first, int count, Loader loader) throws IOException {
+        List<byte[]> out = new ArrayList<>(count);
+        for (ByteBuffer block : getBuffers(resource, first, count, loader)) {
+            if (block.hasArray() && block.arrayOffset() == 0 && block.array().length == block.remaining()) {
+                out.add(block.array());
+            } else { // off heap
+                byte[] b = new byte[block.remaining()];
+                block.get(b);
+                out.add(b);
+            }
+        }
+        return out;
+    }
+
+    /*
+     * As get, without copying blocks kept off heap: views of the cached
+     * blocks, each with its own position
+     */
+    List<ByteBuffer> getBuffers(String resource, long first, int count, Loader loader) throws IOException {
+        List<CompletableFuture<ByteBuffer>> result = new ArrayList<>(count);
+        List<long[]> runs = new ArrayList<>(); // {first block, count} this caller loads
+        synchronized (this) {
+            long runStart = -1;
+            for (long b = first; b < first + count; b++) {
+                Key key = new Key(resource, b);
+                ByteBuffer block = blocks.get(key);
+                CompletableFuture<ByteBuffer> f;
+                if (block != null) {
+                    hits++;
+                    f = CompletableFuture.completedFuture(block);
+                } else if ((f = loading.get(key)) == null) {
+                    misses++;
+                    f = new CompletableFuture<>();
+                    loading.put(key, f);
+                    if (runStart >= 0 && b - runStart < MAX_RUN && runs.get(runs.size() - 1)[0] + runs.get(runs.size() - 1)[1] == b) {
+                        runs.get(runs.size() - 1)[1]++;
+                    } else {
+                        runStart = b;
+                        runs.add(new long[] {b, 1});
+                    }
+                }
+                result.add(f);
+            }
+        }
+        for (long[] run : runs) {
+            load(resource, run[0], (int) run[1], loader);
+        }
+        List<ByteBuffer> out = new ArrayList<>(count);
+        try {
+            for (CompletableFuture<ByteBuffer> f : result) out.add(f.get().duplicate());
+        } catch (InterruptedException ex) {
+            throw new IOException("Interrupted while waiting for a block", ex);
+        } catch (ExecutionException ex) {
+            throw (ex.getCause() instanceof IOException) ? (IOException) ex.getCause() : new IOException(ex.getCause());
+        }
+        return out;
+    }
+
+    private void load(String resource, long first, int count, Loader loader) {
+        List<byte[]> loaded = null;
+        Throwable failure = null;
+        try {
+            loaded = loader.load(resource, first, count);
+        } catch (Throwable th) {
+            failure = th;
+        }
+        synchronized (this) {
+            for (int i = 0; i < count; i++) {
+                Key key = new Key(resource, first + i);
+                CompletableFuture<ByteBuffer> f = loading.remove(key);
+                if (failure != null) {
+                    f.completeExceptionally(failure);
+                } else {
+                    ByteBuffer block = (i < loaded.size()) ? store(loaded.get(i)) : EMPTY;
+                    if (block.capacity() > 0) put(key, block);
+                    f.complete(block);
+                }
+            }
+        }
+    }
+
+    private ByteBuffer store(byte[] block) {
+        if (!offHeap) return ByteBuffer.wrap(block);
+        ByteBuffer direct = ByteBuffer.allocateDirect(block.length);
+        direct.put(block).flip();
+        return direct;
+    }
+
+    private void put(Key key, ByteBuffer block) {
+        ByteBuffer old = blocks.put(key, block);
+        size += block.capacity() - (old == null ? 0 : old.capacity());
+        Iterator<Map.Entry<Key, ByteBuffer>> it = blocks.entrySet().iterator();
+        while (size > capacity && it.hasNext()) {
+            size -= it.next().getValue().capacity();
+            it.remove();
+        }
+    }
+
+    synchronized String stats() {
+        return String.format("%d blocks, %d bytes cached%s, %d hits, %d misses", blocks.size(), size, offHeap ? " off heap" : "", hits, misses);
+    }
+}
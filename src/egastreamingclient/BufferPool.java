@@ -0,0 +1,222 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The buffers of the transfers, shared by the process, within a memory
+ * budget (--memory-budget). A transfer reserves what its buffers take
+ * (stream buffers, the background reader's queue, the copy buffer) before
+ * it opens its source, and waits while the transfers running would exceed
+ * the budget with it - the scheduler slows down instead of the heap
+ * growing with --parallel. All of it is reserved at once, so a transfer
+ * never waits holding part of it; one larger than the budget runs alone.
+ *
+ * Buffers of finished transfers are kept for the next ones, as long as
+ * they fit in the budget next to the reservations (MAX_IDLE without one).
+ * Copy buffers are direct with --direct-buffers: file channels write from
+ * them as they are, where a heap buffer is first copied to a temporary
+ * direct buffer the JDK keeps per thread, outside of any budget.
+ */
+class BufferPool {
+    private static final long MAX_IDLE = 64L << 20;
+
+    private static volatile BufferPool global = new BufferPool(0, false);
+
+    private final long budget; // 0: none
+    private final boolean direct;
+    private final Map<Integer, ArrayDeque<byte[]>> arrays = new HashMap<>();
+    private final Map<Integer, ArrayDeque<ByteBuffer>> buffers = new HashMap<>();
+    private long reserved = 0, idle = 0;
+    private long peak = 0, waits = 0, allocated = 0, reused = 0;
+
+    BufferPool(long budget, boolean direct) {
+        this.budget = budget;
+        this.direct = direct;
+    }
+
+    /*
+     * The pool of the transfers; budget 0 for none
+     */
+    static void configure(long budget, boolean direct) {
+        global = new BufferPool(budget, direct);
+    }
+
+    static BufferPool get() {
+        return global;
+    }
+
+    /*
+     * Reserves 'bytes' of the budget, waiting for running transfers to
+     * release theirs if needed; released by closing the reservation
+     */
+    Reservation reserve(long bytes) throws InterruptedIOException {
+        synchronized (this) {
+            if (budget > 0) {
+                boolean waited = false;
+                while (reserved > 0 && reserved + bytes > budget) {
+                    if (!waited) waits++;
+                    waited = true;
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for " + bytes + " bytes of the memory budget");
+                    }
+                }
+                while (idle > 0 && reserved + bytes + idle > budget) evict();
+            }
+            reserved += bytes;
+            peak = Math.max(peak, reserved);
+        }
+        return new Reservation(bytes);
+    }
+
+    private synchronized void unreserve(long bytes) {
+        reserved -= bytes;
+        notifyAll();
+    }
+
+    /*
+     * A heap buffer for a stream (not blocking: the caller has reserved it)
+     */
+    synchronized byte[] array(int size) {
+        ArrayDeque<byte[]> free = arrays.get(size);
+        if (free != null && !free.isEmpty()) {
+            idle -= size;
+            reused++;
+            return free.pop();
+        }
+        allocated++;
+        return new byte[size];
+    }
+
+    /*
+     * A copy buffer, direct with --direct-buffers
+     */
+    ByteBuffer buffer(int size) {
+        synchronized (this) {
+            ArrayDeque<ByteBuffer> free = buffers.get(size);
+            if (free != null && !free.isEmpty()) {
+                idle -= size;
+                reused++;
+                return free.pop();
+            }
+            allocated++;
+        }
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    /*
+     * Takes back a buffer that is no longer used anywhere
+     */
+    synchronized void recycle(byte[] array) {
+        if (array != null && keep(array.length)) {
+            arrays.computeIfAbsent(array.length, k -> new ArrayDeque<>()).push(array);
+        }
+    }
+
+    synchronized void recycle(ByteBuffer buffer) {
+        if (buffer != null && keep(buffer.capacity())) {
+            buffer.clear();
+            buffers.computeIfAbsent(buffer.capacity(), k -> new ArrayDeque<>()).push(buffer);
+        }
+    }
+
+    private boolean keep(int size) {
+        if ((budget > 0) ? reserved + idle + size > budget : idle + size > MAX_IDLE) return false;
+        idle += size;
+        return true;
+    }
+
+    /*
+     * Drops one idle buffer (the largest kind first)
+     */
+    private void evict() {
+        int size = -1;
+        boolean array = true;
+        for (Map.Entry<Integer, ArrayDeque<byte[]>> e : arrays.entrySet()) {
+            if (!e.getValue().isEmpty() && e.getKey() > size) size = e.getKey();
+        }
+        for (Map.Entry<Integer, ArrayDeque<ByteBuffer>> e : buffers.entrySet()) {
+            if (!e.getValue().isEmpty() && e.getKey() > size) {
+                size = e.getKey();
+                array = false;
+            }
+        }
+        if (size < 0) {
+            idle = 0;
+            return;
+        }
+        if (array) arrays.get(size).pop();
+        else buffers.get(size).pop();
+        idle -= size;
+    }
+
+    /*
+     * Fills the buffer from the stream (through 'transfer' if it is direct);
+     * the number of bytes read, -1 at the end of the stream
+     */
+    static int read(InputStream in, ByteBuffer buffer, byte[] transfer) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int n;
+            if (buffer.hasArray()) {
+                n = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                if (n > 0) buffer.position(buffer.position() + n);
+            } else {
+                n = in.read(transfer, 0, Math.min(transfer.length, buffer.remaining()));
+                if (n > 0) buffer.put(transfer, 0, n);
+            }
+            if (n < 0) break;
+            total += n;
+        }
+        return (total == 0 && buffer.hasRemaining()) ? -1 : total;
+    }
+
+    synchronized String stats() {
+        return String.format("budget %s, peak reserved %d bytes, %d transfers waited, %d buffers allocated, %d reused%s",
+                             budget > 0 ? budget + " bytes" : "none", peak, waits, allocated, reused, direct ? ", direct" : "");
+    }
+
+    /*
+     * Part of the budget, until closed
+     */
+    final class Reservation implements AutoCloseable {
+        private long bytes;
+
+        private Reservation(long bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void close() {
+            long b;
+            synchronized (this) {
+                b = bytes;
+                bytes = 0;
+            }
+            if (b > 0) unreserve(b);
+        }
+    }
+}
@@ -39,13 +39,17 @@ public class BufferedBackgroundInputStream extends InputStream implements Iterab
         private static final int QUEUE_SIZE = 5;
         private static final int BUFFER_SIZE = 32768;
         private static final byte[] EOF_MARKER = new byte[0];
+        // Memory of a stream with the default sizes: the queue, the buffer being filled and the one being read
+        static final int FOOTPRINT = (QUEUE_SIZE + 2) * BUFFER_SIZE;
 
         // These variables are accessed from both threads
         private final BlockingQueue<byte[]> inQueue;
         private final BlockingQueue<byte[]> recycleQueue;
         private final int bufferSize;
+        private final BufferPool pool = BufferPool.get();
         private final InputStream sourceStream;
         private volatile boolean closed;
+        private volatile IOException failure;
 
         // These variables are only accessed from the reader thread
         private byte[] currentBuffer;
@@ -106,12 +110,20 @@ public class BufferedBackgroundInputStream extends InputStream implements Iterab
                 }
                 if (currentBuffer == null) {
                         try {
-                                currentBuffer = inQueue.take();
+                                currentBuffer = inQueue.poll();
+                                if (currentBuffer == null) { // waiting for the source
+                                        RequestTracer.Span starved = RequestTracer.begin("starved");
+                                        currentBuffer = inQueue.take();
+                                        RequestTracer.end(starved);
+                                }
                         } catch (InterruptedException e) {
                                 throw new IOException("Failed to take a buffer from the queue", e);
                         }
                         currentIndex = 0;
                 }
+                if (currentBuffer == EOF_MARKER && failure != null) {
+                        throw new IOException("Unable to read from stream", failure);
+                }
                 return currentBuffer != EOF_MARKER;
         }
 
@@ -132,36 +144,61 @@ public class BufferedBackgroundInputStream extends InputStream implements Iterab
         @Override
         public void close() throws IOException {
                 closed = true;
-                inQueue.clear();
-                recycleQueue.clear();
+                drain();
+                if (currentBuffer != null && currentBuffer.length == bufferSize) {
+                        pool.recycle(currentBuffer);
+                }
                 currentBuffer = null;
         }
 
+        /*
+         * Gives the buffers of the queues back to the pool (once closed)
+         */
+        private void drain() {
+                for (byte[] b; (b = inQueue.poll()) != null; ) {
+                        if (b.length == bufferSize) pool.recycle(b);
+                }
+                for (byte[] b; (b = recycleQueue.poll()) != null; ) {
+                        pool.recycle(b);
+                }
+        }
+
         private class Loader implements Runnable {
                 @Override
                 public void run() {
+                        BandwidthGovernor.deferToLoader(true); // every byte is charged here, once
                         {
                                 int bytesRead = 0;
                                 while (!closed) {
                                         byte[] buffer = recycleQueue.poll();
                                         if (buffer == null) {
-                                                buffer = new byte[bufferSize];
+                                                buffer = pool.array(bufferSize);
                                         }
                                         
                                         int offset = 0;
                                         try {
                                                 while ((offset < bufferSize) && ((bytesRead = sourceStream.read(buffer, offset, bufferSize - offset)) != -1)) {
                                                         offset += bytesRead;
+                                                        BandwidthGovernor.charge(bytesRead);
                                                 }
                                         } catch (IOException e) {
-                                                throw new RuntimeException("Unable to read from stream", e);
+                                                // Hand the error to the reader instead of leaving it blocked on the queue
+                                                failure = e;
+                                                bytesRead = -1;
                                         }
                                         
                                         if (offset < bufferSize) {
+                                                byte[] full = buffer;
                                                 buffer = Arrays.copyOf(buffer, offset);
+                                                pool.recycle(full);
                                         }
+                                        boolean abandoned = closed; // by the reader
                                         try {
-                                                inQueue.put(buffer);
+                                                if (!inQueue.offer(buffer)) { // waiting for the reader
+                                                        RequestTracer.Span backpressure = RequestTracer.begin("backpressure");
+                                                        inQueue.put(buffer);
+                                                        RequestTracer.end(backpressure, offset);
+                                                }
                                                 if (bytesRead == -1) {
                                                         inQueue.put(EOF_MARKER);
                                                         closed = true;
@@ -169,6 +206,9 @@ public class BufferedBackgroundInputStream extends InputStream implements Iterab
                                         } catch (InterruptedException e) {
                                                 throw new RuntimeException("Unable to put data onto queue", e);
                                         }
+                                        if (abandoned) {
+                                                drain();
+                                        }
                                         if (closed) {
                                                 try {
                                                         sourceStream.close();
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import htsjdk.samtools.seekablestream.SeekableStream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Block cache in front of a remote SeekableStream (EgaSeekableHTTPStream,
+ * EgaSeekableHTTPStreamOAuth or htsjdk's SeekableHTTPStream): htsjdk reads
+ * a BAM or its index in many small seek/read calls, each of them a request
+ * of its own without this. Reads are served from block aligned pieces of
+ * the resource kept in the process-wide BlockCache (--block-cache), keyed
+ * by the URL - other streams of the same URL share them.
+ *
+ * A miss loads the blocks the read needs in one request of the stream
+ * below; a read that continues where the last one ended also loads the
+ * next readAhead blocks with them (a BGZF scan is sequential, index hops
+ * are not). Read-ahead never goes past 'end', the last byte the caller
+ * will read if known.
+ */
+class CachingSeekableStream extends SeekableStream {
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    private static volatile BlockCache global = null;
+    private static volatile int globalReadAhead = 0;
+
+    private final SeekableStream source;
+    private final BlockCache cache;
+    private final String resource;
+    private final int readAhead;
+    private final long end;
+    private long position = 0;
+    private long next = -1; // where the last read ended
+    private long length;
+
+    CachingSeekableStream(SeekableStream source, BlockCache cache, int readAhead, long end) {
+        this.source = source;
+        this.cache = cache;
+        this.resource = source.getSource();
+        this.readAhead = Math.max(0, readAhead);
+        this.end = end;
+        this.length = source.length();
+    }
+
+    /*
+     * The cache used by wrap(); capacity 0 turns it off
+     */
+    static void configure(long capacityBytes, int readAhead, boolean offHeap) {
+        global = (capacityBytes > 0) ? new BlockCache(BLOCK_SIZE, capacityBytes, offHeap) : null;
+        globalReadAhead = readAhead;
+    }
+
+    /*
+     * The stream read through the configured cache (as it is if there is
+     * none); end: the last byte that will be read, -1 if unknown
+     */
+    static SeekableStream wrap(SeekableStream source, long end) {
+        BlockCache cache = global;
+        return (cache == null) ? source : new CachingSeekableStream(source, cache, globalReadAhead, end);
+    }
+
+    static String stats() {
+        BlockCache cache = global;
+        return (cache == null) ? null : cache.stats();
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public void seek(long position) {
+        this.position = position;
+    }
+
+    @Override
+    public boolean eof() throws IOException {
+        return length >= 0 && position >= length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int len) throws IOException {
+        if (offset < 0 || len < 0 || offset + len > buffer.length) {
+            throw new IndexOutOfBoundsException("Offset=" + offset + ",len=" + len + ",buflen=" + buffer.length);
+        }
+        if (eof()) return -1;
+        if (len == 0) return 0;
+        long first = position / BLOCK_SIZE;
+        long last = (position + len - 1) / BLOCK_SIZE;
+        if (position == next) last += readAhead;
+        if (end >= 0) last = Math.min(last, Math.max(end, position) / BLOCK_SIZE);
+        if (length >= 0) last = Math.min(last, (length - 1) / BLOCK_SIZE);
+        int count = (int) Math.min(BlockCache.MAX_RUN, last - first + 1);
+
+        int n = 0;
+        for (ByteBuffer block : cache.getBuffers(resource, first, count, this::load)) {
+            int from = (int) (position - first * BLOCK_SIZE);
+            if (from < block.remaining()) {
+                int k = Math.min(len - n, block.remaining() - from);
+                block.position(block.position() + from);
+                block.get(buffer, offset + n, k);
+                position += k;
+                n += k;
+            }
+            if (block.capacity() < BLOCK_SIZE) { // the end of the resource (see load)
+                if (length < 0) length = first * BLOCK_SIZE + block.capacity();
+                break;
+            }
+            if (n == len) break;
+            first++;
+        }
+        next = position;
+        return (n == 0) ? -1 : n;
+    }
+
+    /*
+     * Blocks first .. first+count-1 from the stream below, in one read. A
+     * short block is only the end of the resource: at its known length, or
+     * where the stream reports the end if the length is not known - any
+     * other short read fails rather than end the resource in the cache.
+     */
+    private List<byte[]> load(String resource, long first, int count) throws IOException {
+        byte[] data = new byte[count * BLOCK_SIZE];
+        int n = 0, r = 0;
+        source.seek(first * BLOCK_SIZE);
+        while (n < data.length && (r = source.read(data, n, data.length - n)) > 0) n += r;
+        if (n < data.length) {
+            long end = first * BLOCK_SIZE + n;
+            boolean atEnd = (length >= 0) ? end == length : r < 0;
+            if (!atEnd) throw new EOFException("Expected " + data.length + " bytes at " + first * BLOCK_SIZE + " of " + resource
+                                               + ", got " + n + (length >= 0 ? " (length " + length + ")" : ""));
+        }
+        List<byte[]> blocks = new ArrayList<>(count);
+        for (int i = 0; i < count && i * BLOCK_SIZE <= n; i++) {
+            int size = Math.min(BLOCK_SIZE, n - i * BLOCK_SIZE);
+            byte[] block = new byte[size];
+            System.arraycopy(data, i * BLOCK_SIZE, block, 0, size);
+            blocks.add(block);
+            if (size < BLOCK_SIZE) break;
+        }
+        return blocks;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+    @Override
+    public String getSource() {
+        return resource;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compressed transfer of responses without a Range: tickets (JSON compresses
+ * about 20 times) and whole-URL payloads such as plain VCF. ACCEPT is sent
+ * as Accept-Encoding, the body is inflated as it streams in.
+ *
+ * Setting Accept-Encoding turns off the transparent gzip of OkHttp, which
+ * inflates the first gzip member only - wrong for BGZF data that a server
+ * labels as gzip (a .bam or .vcf.gz with Content-Encoding: gzip). BGZF is
+ * detected by its first block and passed on as it is.
+ *
+ * Range requests are never encoded: a range of an encoded response counts
+ * encoded bytes, not bytes of the file.
+ */
+class ContentEncoding {
+    static final String ACCEPT = "gzip, deflate";
+
+    private static final int BUFFER_SIZE = 65536;
+
+    /*
+     * The decoded body of a response with this Content-Encoding (null: none)
+     */
+    static InputStream decode(InputStream in, String contentEncoding) throws IOException {
+        String encoding = (contentEncoding == null) ? "" : contentEncoding.trim().toLowerCase();
+        switch (encoding) {
+            case "":
+            case "identity":
+                return in;
+            case "gzip":
+            case "x-gzip": {
+                BufferedInputStream b = new BufferedInputStream(in, BUFFER_SIZE);
+                if (bgzf(b)) return b;
+                return new GZIPInputStream(b, BUFFER_SIZE); // all members
+            }
+            case "deflate": { // zlib wrapped, or raw deflate from some servers
+                BufferedInputStream b = new BufferedInputStream(in, BUFFER_SIZE);
+                final Inflater inflater = new Inflater(!zlib(b));
+                return new InflaterInputStream(b, inflater, BUFFER_SIZE) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            inflater.end();
+                        }
+                    }
+                };
+            }
+            default:
+                in.close();
+                throw new IOException("Unsupported Content-Encoding: " + contentEncoding);
+        }
+    }
+
+    /*
+     * Whether the stream starts with a BGZF block header: gzip with the
+     * extra field "BC" (the stream is not moved)
+     */
+    private static boolean bgzf(BufferedInputStream in) throws IOException {
+        byte[] h = peek(in, 14);
+        return h.length == 14 && (h[0] & 0xFF) == 0x1f && (h[1] & 0xFF) == 0x8b && h[2] == 8 && (h[3] & 4) != 0
+                && h[12] == 'B' && h[13] == 'C';
+    }
+
+    /*
+     * Whether the stream starts with a zlib header (RFC 1950)
+     */
+    private static boolean zlib(BufferedInputStream in) throws IOException {
+        byte[] h = peek(in, 2);
+        return h.length == 2 && (h[0] & 0x0F) == 8 && ((h[0] & 0xFF) << 8 | (h[1] & 0xFF)) % 31 == 0;
+    }
+
+    private static byte[] peek(BufferedInputStream in, int n) throws IOException {
+        byte[] b = new byte[n];
+        in.mark(n);
+        int read = 0, r;
+        while (read < n && (r = in.read(b, read, n - read)) > 0) read += r;
+        in.reset();
+        return (read == n) ? b : new byte[0];
+    }
+}
@@ -0,0 +1,581 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import htsjdk.samtools.util.Tuple;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the downloads of ticket URLs in parallel, each into its own temp file,
+ * or straight into its region of the output file. Waiting downloads form one
+ * queue ordered by priority (higher first), then by submission order.
+ *
+ * Tail latency control:
+ * - failed attempts are retried with exponential backoff and jitter
+ * - transfers are opened through a minimum throughput watchdog (see
+ *   ThroughputWatchdog), so a trickling connection fails and is retried
+ *   instead of running into the read timeout
+ * - a transfer running much slower than its completed peers gets a hedged
+ *   duplicate request; whichever attempt finishes first wins, the other one
+ *   is cancelled
+ *
+ * With an AsyncTransport, ranged URLs (not continued from a part file) are
+ * fetched on its I/O thread instead, any number at a time; one that fails
+ * there becomes an ordinary transfer on a worker thread, with all of the above.
+ *
+ * A transfer reserves the memory of its buffers in the BufferPool before it
+ * opens its source, and waits there while the budget is taken.
+ */
+class DownloadScheduler implements Closeable {
+    private static final long HEDGE_CHECK_MILLIS = 500;
+    private static final long MIN_HEDGE_DELAY_MILLIS = 2000;
+    private static final int MIN_PEERS_FOR_HEDGING = 3;
+    private static final int TRANSFER_SIZE = 64 * 1024; // from a stream into a direct copy buffer
+
+    interface Fetcher {
+        /*
+         * The data of the URL; 'granted' runs once the host has a slot for it
+         */
+        InputStream open(TicketResponse.URL_OBJECT uo, Runnable granted) throws Exception;
+    }
+
+    private final Fetcher fetcher;
+    private final int retries;
+    private final int bufferSize;
+    private final double hedgeFactor;
+    private final boolean debug;
+    private final ExecutorService workers;
+    private final ExecutorService hedgeWorkers;
+    private final Semaphore hedges;
+    private final ScheduledExecutorService monitor;
+    private final AsyncTransport async;       // null: a worker thread per transfer
+    private final ExecutorService completions; // keeps follow-up work off the I/O thread
+    private final List<Transfer> running = new CopyOnWriteArrayList<>();
+    private final AtomicLong submitted = new AtomicLong();
+
+    // Throughput (bytes/ms) and duration (ms) of recently completed transfers
+    private final double[] throughputs = new double[64];
+    private final long[] durations = new long[64];
+    private int completed = 0;
+
+    DownloadScheduler(int parallel, int retries, int bufferSize, double hedgeFactor,
+                      boolean debug, Fetcher fetcher) {
+        this(parallel, retries, bufferSize, hedgeFactor, debug, fetcher, null);
+    }
+
+    DownloadScheduler(int parallel, int retries, int bufferSize, double hedgeFactor,
+                      boolean debug, Fetcher fetcher, AsyncTransport async) {
+        this.fetcher = fetcher;
+        this.retries = retries;
+        this.bufferSize = bufferSize;
+        this.hedgeFactor = hedgeFactor;
+        this.debug = debug;
+        this.workers = new ThreadPoolExecutor(Math.max(1, parallel), Math.max(1, parallel), 0L, TimeUnit.MILLISECONDS,
+                                              new PriorityBlockingQueue<>(), daemon("Download"));
+        this.hedgeWorkers = Executors.newCachedThreadPool(daemon("HedgedDownload"));
+        this.hedges = new Semaphore(Math.max(1, parallel / 4));
+        this.monitor = Executors.newSingleThreadScheduledExecutor(daemon("HedgeMonitor"));
+        this.async = async;
+        this.completions = (async == null) ? null : Executors.newSingleThreadExecutor(daemon("AsyncCompletion"));
+        if (hedgeFactor > 0) {
+            monitor.scheduleAtFixedRate(this::hedge, HEDGE_CHECK_MILLIS, HEDGE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /*
+     * Schedules the download of one ticket URL; size is the expected number of
+     * bytes (-1 if unknown). The future yields the temp file holding the data.
+     */
+    CompletableFuture<File> submit(TicketResponse.URL_OBJECT uo, long size) {
+        return submit(uo, size, 0);
+    }
+
+    CompletableFuture<File> submit(TicketResponse.URL_OBJECT uo, long size, int priority) {
+        return submit(uo, size, priority, null);
+    }
+
+    /*
+     * With a part file, the primary attempt writes there and continues after
+     * the bytes it already holds (ranged URLs only), across retries and runs.
+     * The future then yields the part file, unless a hedged attempt won.
+     */
+    CompletableFuture<File> submit(TicketResponse.URL_OBJECT uo, long size, int priority, File partFile) {
+        if (async != null && partFile == null && acceptsAsync(uo)) {
+            return submitAsync(uo, size, priority, null, 0);
+        }
+        Transfer t = new Transfer(uo, size, partFile, null, 0);
+        t.active.incrementAndGet();
+        workers.execute(new Queued(priority, submitted.getAndIncrement(), () -> t.run(false)));
+        return t.result;
+    }
+
+    /*
+     * Schedules the download of a ranged ticket URL of 'size' bytes straight
+     * into the output channel at 'position' (positional writes - no temp
+     * file). The future yields the number of bytes written. Retries continue
+     * after the bytes already written; a hedged attempt writes the same bytes
+     * to the same place. Closing the channel abandons the transfer.
+     */
+    CompletableFuture<Long> submit(TicketResponse.URL_OBJECT uo, long size, int priority, FileChannel channel, long position) {
+        if (async != null && acceptsAsync(uo)) {
+            return submitAsync(uo, size, priority, channel, position).thenApply(f -> size);
+        }
+        Transfer t = new Transfer(uo, size, null, channel, position);
+        t.active.incrementAndGet();
+        workers.execute(new Queued(priority, submitted.getAndIncrement(), () -> t.run(false)));
+        return t.result.thenApply(f -> size);
+    }
+
+    /*
+     * Ranged URLs, except multi-range requests to hosts known to answer them
+     * with the whole resource (those go one request per range)
+     */
+    private static boolean acceptsAsync(TicketResponse.URL_OBJECT uo) {
+        try {
+            return AsyncTransport.accepts(uo) && (uo.getRanges().size() == 1 || MultiRangeInputStream.supported(uo.url));
+        } catch (ParseException ex) {
+            return false;
+        }
+    }
+
+    /*
+     * A ranged URL over the async transport, into a temp file or the region
+     * of the channel; a multi-range response is received into a temp file
+     * first and split into the ranges from there
+     */
+    private CompletableFuture<File> submitAsync(final TicketResponse.URL_OBJECT uo, final long size, final int priority,
+                                                final FileChannel channel, final long position) {
+        final CompletableFuture<File> result = new CompletableFuture<>();
+        final long t0 = System.currentTimeMillis();
+        try {
+            final List<Tuple<Long, Long>> ranges = uo.getRanges();
+            final File raw = (channel == null || ranges.size() > 1) ? File.createTempFile("tempfile", ".tmp") : null;
+            if (raw != null) raw.deleteOnExit();
+            final FileChannel sink = (raw == null) ? channel : FileChannel.open(raw.toPath(), StandardOpenOption.WRITE);
+            async.fetch(uo, sink, (raw == null) ? position : 0, priority).whenCompleteAsync((response, ex) -> {
+                File data = null;
+                try {
+                    if (raw != null) sink.close();
+                    if (ex != null) throw ex;
+                    data = (ranges.size() > 1) ? split(uo.url, raw, response, ranges, channel, position) : raw;
+                    long length = (data == null) ? size : data.length();
+                    if (ranges.size() == 1 && response.length != size) {
+                        throw new IOException("Received " + response.length + " of " + size + " bytes from " + uo.url);
+                    }
+                    recordCompletion(length, System.currentTimeMillis() - t0);
+                    result.complete(data);
+                } catch (Throwable th) {
+                    if (raw != null) raw.delete();
+                    if (data != null) data.delete();
+                    Throwable cause = (th instanceof CompletionException) ? th.getCause() : th;
+                    if (cause instanceof AsyncTransport.StatusException && ranges.size() > 1
+                            && ((AsyncTransport.StatusException) cause).status / 100 != 5
+                            && ((AsyncTransport.StatusException) cause).status != 429) {
+                        MultiRangeInputStream.unsupported(uo.url); // 200, 416: one request per range from now on
+                    }
+                    if (debug) System.out.println("Async transfer failed (" + cause + ") - retrying on a worker: " + uo.url);
+                    fallback(uo, size, priority, channel, position, result);
+                }
+            }, completions);
+        } catch (Exception ex) {
+            fallback(uo, size, priority, channel, position, result);
+        }
+        return result;
+    }
+
+    /*
+     * The ranges of a multi-range response of 'url' (received into 'raw'), back to
+     * back: into a new temp file, or into the region of the channel (null then)
+     */
+    private File split(String url, File raw, AsyncTransport.Response response, List<Tuple<Long, Long>> ranges,
+                       FileChannel channel, long position) throws IOException {
+        List<long[]> spans = new ArrayList<>(ranges.size());
+        for (Tuple<Long, Long> r : ranges) spans.add(new long[] {r.a, r.b});
+        String boundary = MultiRangeInputStream.boundary(response.headers.get("Content-Type"));
+        long[] single = MultiRangeInputStream.contentRange(response.headers.get("Content-Range"));
+        if (boundary == null && single == null) throw new IOException("Range response without Content-Range");
+        File data = (channel == null) ? File.createTempFile("tempfile", ".tmp") : null;
+        BufferPool pool = BufferPool.get();
+        ByteBuffer buffer = null;
+        byte[] transfer = null;
+        BufferPool.Reservation reservation = pool.reserve(footprint(bufferSize));
+        try (InputStream in = (boundary != null)
+                ? new MultiRangeInputStream(new PooledBufferedInputStream(new FileInputStream(raw), bufferSize), url, boundary, spans)
+                : new MultiRangeInputStream(new PooledBufferedInputStream(new FileInputStream(raw), bufferSize), url, single, spans);
+             FileOutputStream out = (data != null) ? new FileOutputStream(data) : null) {
+            buffer = pool.buffer(bufferSize);
+            if (!buffer.hasArray()) transfer = pool.array(TRANSFER_SIZE);
+            long p = position;
+            while (BufferPool.read(in, buffer, transfer) > 0) {
+                buffer.flip();
+                if (out != null) {
+                    write(buffer, out);
+                } else {
+                    while (buffer.hasRemaining()) p += channel.write(buffer, p);
+                }
+                buffer.clear();
+            }
+        } catch (IOException ex) {
+            if (data != null) data.delete();
+            throw ex;
+        } finally {
+            reservation.close();
+            pool.recycle(buffer);
+            pool.recycle(transfer);
+            raw.delete();
+        }
+        if (data != null) data.deleteOnExit();
+        return data;
+    }
+
+    /*
+     * The memory a transfer reserves: the buffers of its stream (two of
+     * bufferSize, see EgaStreamingClient.openTicketURL), the background
+     * reader and the copy buffer
+     */
+    private static long footprint(int bufferSize) {
+        return 3L * bufferSize + BufferedBackgroundInputStream.FOOTPRINT + TRANSFER_SIZE;
+    }
+
+    /*
+     * Writes the (flipped) buffer to the stream, through its channel if
+     * the buffer is direct
+     */
+    private static void write(ByteBuffer buffer, FileOutputStream out) throws IOException {
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            while (buffer.hasRemaining()) out.getChannel().write(buffer);
+        }
+    }
+
+    /*
+     * The URL as an ordinary transfer on a worker thread, completing 'result'
+     */
+    private void fallback(TicketResponse.URL_OBJECT uo, long size, int priority, FileChannel channel, long position,
+                          final CompletableFuture<File> result) {
+        if (channel != null && !channel.isOpen()) { // abandoned
+            result.completeExceptionally(new CancellationException());
+            return;
+        }
+        Transfer t = new Transfer(uo, size, null, channel, position);
+        t.active.incrementAndGet();
+        t.result.whenComplete((f, ex) -> {
+            if (ex == null) result.complete(f);
+            else result.completeExceptionally(ex);
+        });
+        workers.execute(new Queued(priority, submitted.getAndIncrement(), () -> t.run(false)));
+    }
+
+    @Override
+    public void close() {
+        if (debug && CachingSeekableStream.stats() != null) System.out.println("Block cache: " + CachingSeekableStream.stats());
+        if (debug && MirroredSeekableStream.stats() != null) System.out.println("Local mirror: " + MirroredSeekableStream.stats());
+        if (debug) System.out.println("Buffer pool: " + BufferPool.get().stats());
+        if (async != null) {
+            if (debug) System.out.println("Async transport: " + async.stats());
+            async.close();
+            completions.shutdownNow();
+        }
+        monitor.shutdownNow();
+        workers.shutdownNow();
+        hedgeWorkers.shutdownNow();
+    }
+
+    /*
+     * Starts a duplicate of every transfer running much longer than expected
+     * from the throughput (or duration) of its completed peers
+     */
+    private void hedge() {
+        double medianThroughput;
+        long medianDuration;
+        synchronized (this) {
+            if (completed < MIN_PEERS_FOR_HEDGING) return;
+            int n = Math.min(completed, throughputs.length);
+            double[] t = Arrays.copyOf(throughputs, n);
+            long[] d = Arrays.copyOf(durations, n);
+            Arrays.sort(t);
+            Arrays.sort(d);
+            medianThroughput = t[n / 2];
+            medianDuration = d[n / 2];
+        }
+        long now = System.currentTimeMillis();
+        for (Transfer t : running) {
+            if (t.hedged || t.start == 0 || t.result.isDone()) continue; // queued for a slot or memory, or retrying
+            long expected = (t.size > 0 && medianThroughput > 0) ? (long) (t.size / medianThroughput) : medianDuration;
+            long elapsed = now - t.start;
+            if (elapsed > MIN_HEDGE_DELAY_MILLIS && elapsed > hedgeFactor * expected && hedges.tryAcquire()) {
+                t.hedged = true;
+                t.active.incrementAndGet();
+                if (debug) System.out.println("Hedging slow transfer (" + elapsed + " ms, expected " + expected + " ms): " + t.uo.url);
+                hedgeWorkers.execute(() -> {
+                    try {
+                        t.run(true);
+                    } finally {
+                        hedges.release();
+                    }
+                });
+            }
+        }
+    }
+
+    private synchronized void recordCompletion(long bytes, long millis) {
+        int i = completed++ % throughputs.length;
+        durations[i] = millis;
+        throughputs[i] = (double) bytes / Math.max(1, millis);
+    }
+
+    private static class Queued implements Runnable, Comparable<Queued> {
+        final int priority;
+        final long sequence;
+        final Runnable task;
+
+        Queued(int priority, long sequence, Runnable task) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        @Override
+        public int compareTo(Queued o) {
+            return (priority != o.priority) ? Integer.compare(o.priority, priority) : Long.compare(sequence, o.sequence);
+        }
+    }
+
+    private class Transfer {
+        final TicketResponse.URL_OBJECT uo;
+        final long size;
+        final File partFile;
+        final FileChannel channel;  // region target instead of a file, with its position
+        final long position;
+        volatile long regionDone = 0; // bytes of the region written by the primary attempt
+        final CompletableFuture<File> result = new CompletableFuture<>();
+        final List<InputStream> streams = new CopyOnWriteArrayList<>();
+        final AtomicInteger active = new AtomicInteger(); // attempt chains still running
+        volatile long start = 0;      // when the primary attempt got its data flowing, 0 while it is not
+        volatile long hedgeStart = 0;
+        volatile boolean hedged = false;
+
+        Transfer(TicketResponse.URL_OBJECT uo, long size, File partFile, FileChannel channel, long position) {
+            this.uo = uo;
+            this.size = size;
+            this.partFile = partFile;
+            this.channel = channel;
+            this.position = position;
+        }
+
+        /*
+         * One attempt chain (the primary, or the hedge) with its own retries
+         */
+        void run(boolean hedge) {
+            if (!hedge) {
+                running.add(this);
+            }
+            Exception last = null;
+            for (int attempt = 0; attempt <= retries && !result.isDone(); attempt++) {
+                if (attempt > 0 && !Backoff.TRANSFER.sleep(attempt - 1)) break;
+                if (channel != null && !channel.isOpen()) { // the writer has given up - queued, not needed any more
+                    last = new ClosedChannelException();
+                    break;
+                }
+                try {
+                    File file = (channel != null) ? fetchRegion(hedge) : fetch(hedge ? null : partFile, hedge);
+                    if (result.complete(file)) {
+                        long began = hedge ? hedgeStart : start; // 0: complete from an earlier attempt
+                        if (began > 0) recordCompletion(file == null ? size : file.length(), System.currentTimeMillis() - began);
+                        cancelOthers();
+                    } else if (file != partFile) {
+                        file.delete(); // the other attempt won
+                    }
+                    break;
+                } catch (Exception ex) {
+                    if (!hedge) start = 0; // backing off, not moving data
+                    if (result.isDone() || (channel != null && !channel.isOpen())) break;
+                    System.out.println(ex.toString());
+                    last = ex;
+                }
+            }
+            if (!hedge) {
+                running.remove(this);
+            }
+            if (active.decrementAndGet() == 0 && !result.isDone()) {
+                // Only fail once no other attempt can still deliver
+                result.completeExceptionally(last != null ? last : new IOException("Download failed: " + uo.url));
+            }
+        }
+
+        /*
+         * The attempt has its memory and a slot of the host: from now on it
+         * moves data, and can be compared with its peers
+         */
+        private void moving(boolean hedge) {
+            if (hedge) hedgeStart = System.currentTimeMillis();
+            else start = System.currentTimeMillis();
+        }
+
+        private File fetch(File part, boolean hedge) throws Exception {
+            File tempFile = part;
+            TicketResponse.URL_OBJECT request = uo;
+            long offset = 0;
+            if (part == null) {
+                tempFile = File.createTempFile("tempfile", ".tmp");
+                tempFile.deleteOnExit(); // just in case of exception.
+            } else if (part.exists()) {
+                offset = part.length();
+                Tuple<Long, Long> range = uo.getRange();
+                if (range != null && size > 0 && offset == size) {
+                    return part; // complete from an earlier attempt
+                }
+                if (range != null && size > 0 && size - offset > 1) {
+                    request = uo.withRange(range.a + offset, range.b);
+                } else {
+                    offset = 0; // can't continue here - start over
+                }
+            }
+            InputStream source = null;
+            BufferPool pool = BufferPool.get();
+            ByteBuffer buffer = null;
+            byte[] transfer = null;
+            BufferPool.Reservation reservation = pool.reserve(footprint(bufferSize));
+            try (FileOutputStream fos = new FileOutputStream(tempFile, offset > 0)) {
+                BandwidthGovernor.deferToLoader(true); // opening may read ahead; the Loader charges those bytes
+                source = fetcher.open(request, () -> moving(hedge));
+                if (source == null) throw new IOException("Unable to open " + uo.url);
+                streams.add(source);
+                buffer = pool.buffer(bufferSize);
+                if (!buffer.hasArray()) transfer = pool.array(TRANSFER_SIZE);
+                try (InputStream is = new BufferedBackgroundInputStream(source)) {
+                    while (BufferPool.read(is, buffer, transfer) > 0) {
+                        if (result.isDone()) throw new CancellationException();
+                        buffer.flip();
+                        write(buffer, fos);
+                        buffer.clear();
+                    }
+                }
+                return tempFile;
+            } catch (Exception ex) {
+                if (tempFile != part) tempFile.delete(); // a part file keeps what it has got
+                throw ex;
+            } finally {
+                reservation.close();
+                pool.recycle(buffer);
+                pool.recycle(transfer);
+                BandwidthGovernor.deferToLoader(false);
+                if (source != null) {
+                    streams.remove(source);
+                    try { source.close(); } catch (IOException ignored) {}
+                }
+            }
+        }
+
+        /*
+         * Writes the data to its region of the output channel; yields null
+         */
+        private File fetchRegion(boolean hedge) throws Exception {
+            long offset = hedge ? 0 : regionDone;
+            TicketResponse.URL_OBJECT request = uo;
+            if (offset > 0 && size - offset > 1 && uo.getRanges().size() == 1) { // multi-range: start over
+                Tuple<Long, Long> range = uo.getRange();
+                request = uo.withRange(range.a + offset, range.b);
+            } else {
+                offset = 0;
+            }
+            InputStream source = null;
+            BufferPool pool = BufferPool.get();
+            ByteBuffer buffer = null;
+            byte[] transfer = null;
+            BufferPool.Reservation reservation = pool.reserve(footprint(bufferSize));
+            try {
+                BandwidthGovernor.deferToLoader(true);
+                source = fetcher.open(request, () -> moving(hedge));
+                if (source == null) throw new IOException("Unable to open " + uo.url);
+                streams.add(source);
+                buffer = pool.buffer(bufferSize);
+                if (!buffer.hasArray()) transfer = pool.array(TRANSFER_SIZE);
+                try (InputStream is = new BufferedBackgroundInputStream(source)) {
+                    int bytesRead;
+                    while ((bytesRead = BufferPool.read(is, buffer, transfer)) > 0) {
+                        if (result.isDone()) throw new CancellationException();
+                        buffer.flip();
+                        long p = position + offset;
+                        while (buffer.hasRemaining()) p += channel.write(buffer, p);
+                        buffer.clear();
+                        offset += bytesRead;
+                        if (!hedge) regionDone = offset;
+                    }
+                }
+                if (offset != size) throw new IOException("Received " + offset + " of " + size + " bytes from " + uo.url);
+                return null;
+            } finally {
+                reservation.close();
+                pool.recycle(buffer);
+                pool.recycle(transfer);
+                BandwidthGovernor.deferToLoader(false);
+                if (source != null) {
+                    streams.remove(source);
+                    try { source.close(); } catch (IOException ignored) {}
+                }
+            }
+        }
+
+        private void cancelOthers() {
+            for (InputStream s : new ArrayList<>(streams)) {
+                try { s.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+}
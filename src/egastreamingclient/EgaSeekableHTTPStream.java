@@ -16,7 +16,6 @@
 package egastreamingclient;
 
 import htsjdk.samtools.seekablestream.SeekableStream;
-import htsjdk.samtools.util.HttpUtils;
 
 import java.io.EOFException;
 import java.io.IOException;
@@ -35,6 +34,7 @@ public class EgaSeekableHTTPStream extends SeekableStream {
     private final URL url;
     private final Proxy proxy;
     private final String auth;
+    private volatile HttpURLConnection current = null; // connection of a read in progress
 
     public EgaSeekableHTTPStream(final URL url) {
         this(url, null, null);
@@ -59,17 +59,56 @@ public class EgaSeekableHTTPStream extends SeekableStream {
         this.auth = auth;
         this.contentLength = fileSize;
 
-        // Try to get the file length
-        // Note: This also sets setDefaultUseCaches(false), which is important
-        final String contentLengthString = HttpUtils.getHeaderField(url, "Content-Length");
-        if (contentLengthString != null && contentLength == -1) {
-            try {
-                contentLength = Long.parseLong(contentLengthString);
-            }
-            catch (NumberFormatException ignored) {
-                System.err.println("WARNING: Invalid content length (" + contentLengthString + "  for: " + url);
-                contentLength = -1;
+        // Get the file length, unless given
+        if (contentLength == -1) {
+            contentLength = probeLength(url, proxy, basicAuth(auth));
+        }
+    }
+
+    private static String basicAuth(String auth) {
+        if (auth == null || auth.length() == 0) return null;
+        // Java bug : http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6459815
+        String encoding = new sun.misc.BASE64Encoder().encode (auth.getBytes());
+        encoding = encoding.replaceAll("\n", "");
+        return "Basic " + encoding;
+    }
+
+    /*
+     * Length of the resource from a one byte range request (Content-Range:
+     * bytes 0-0/length), -1 if unknown. A plain GET for the Content-Length
+     * would have the server start sending the whole resource.
+     */
+    static long probeLength(URL url, Proxy proxy, String authorization) {
+        HttpURLConnection connection = null;
+        boolean complete = false;
+        try {
+            connection = proxy == null ?
+                    (HttpURLConnection) url.openConnection() :
+                    (HttpURLConnection) url.openConnection(proxy);
+            connection.setDefaultUseCaches(false);
+            if (authorization != null) connection.setRequestProperty("Authorization", authorization);
+            connection.setRequestProperty("Range", "bytes=0-0");
+            connection.setConnectTimeout(120000);
+            connection.setReadTimeout(180000);
+            int code = connection.getResponseCode();
+            long length = -1;
+            String contentRange = connection.getHeaderField("Content-Range");
+            if (code == HttpURLConnection.HTTP_PARTIAL && contentRange != null && contentRange.indexOf('/') >= 0) {
+                String total = contentRange.substring(contentRange.lastIndexOf('/') + 1).trim();
+                if (!total.equals("*")) length = Long.parseLong(total);
+                try (InputStream is = connection.getInputStream()) { // one byte: the connection is kept alive
+                    while (is.read() >= 0);
+                }
+                complete = true;
+            } else if (code == HttpURLConnection.HTTP_OK) { // range ignored - not read
+                length = connection.getContentLengthLong();
             }
+            return length;
+        } catch (IOException | NumberFormatException ex) {
+            System.err.println("WARNING: No content length for " + url + ": " + ex);
+            return -1;
+        } finally {
+            if (connection != null && !complete) connection.disconnect();
         }
     }
 
@@ -112,16 +151,15 @@ public class EgaSeekableHTTPStream extends SeekableStream {
         InputStream is = null;
         String byteRange = "";
         int n = 0;
+        boolean complete = false;
+        long request = 0;
+        RequestTracer.Span whole = null, phase = null;
         try {
             connection = proxy == null ?
                     (HttpURLConnection) url.openConnection() :
                     (HttpURLConnection) url.openConnection(proxy);
             if (auth!=null && auth.length() > 0) {
-                // Java bug : http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6459815
-                String encoding = new sun.misc.BASE64Encoder().encode (auth.getBytes());
-                encoding = encoding.replaceAll("\n", "");  
-                String basicAuth = "Basic " + encoding;
-                connection.setRequestProperty ("Authorization", basicAuth);
+                connection.setRequestProperty ("Authorization", basicAuth(auth));
             }
 
             long endRange = position + len - 1;
@@ -134,7 +172,16 @@ public class EgaSeekableHTTPStream extends SeekableStream {
 
             connection.setConnectTimeout(120000);
             connection.setReadTimeout(180000);
+            current = connection;
+            request = RequestTracer.request(url.toString(), byteRange);
+            whole = RequestTracer.begin(request, "request");
+            phase = RequestTracer.begin(request, "connect"); // dns, tcp and tls - none on a kept-alive connection
+            connection.connect();
+            RequestTracer.end(phase);
+            phase = RequestTracer.begin(request, "ttfb");
             is = connection.getInputStream();
+            RequestTracer.end(phase);
+            phase = RequestTracer.begin(request, "transfer");
 
             while (n < len) {
                 int count = is.read(buffer, offset + n, len - n);
@@ -146,9 +193,11 @@ public class EgaSeekableHTTPStream extends SeekableStream {
                     }
                 }
                 n += count;
+                BandwidthGovernor.chargeSource(count);
             }
 
             position += n;
+            complete = true;
 
             return n;
         }
@@ -175,18 +224,27 @@ public class EgaSeekableHTTPStream extends SeekableStream {
         }
 
         finally {
+            RequestTracer.end(phase, n);
+            RequestTracer.end(whole, n);
             if (is != null) {
                 is.close();
             }
             if (connection != null) {
-                connection.disconnect();
+                current = null;
+                // A response read to its end goes back to the keep-alive cache:
+                // the next read reuses the connection (no new TCP/TLS handshake)
+                if (!complete) connection.disconnect();
             }
         }
     }
 
 
     public void close() throws IOException {
-        // Nothing to do
+        // Abort a read that is blocked on the network (e.g. a stalled transfer)
+        HttpURLConnection connection = current;
+        if (connection != null) {
+            connection.disconnect();
+        }
     }
 
 
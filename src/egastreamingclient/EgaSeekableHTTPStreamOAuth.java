@@ -16,7 +16,6 @@
 package egastreamingclient;
 
 import htsjdk.samtools.seekablestream.SeekableStream;
-import htsjdk.samtools.util.HttpUtils;
 
 import java.io.EOFException;
 import java.io.IOException;
@@ -35,6 +34,7 @@ public class EgaSeekableHTTPStreamOAuth extends SeekableStream {
     private final URL url;
     private final Proxy proxy;
     private final String auth;
+    private volatile HttpURLConnection current = null; // connection of a read in progress
 
     public EgaSeekableHTTPStreamOAuth(final URL url) {
         this(url, null, null);
@@ -59,19 +59,10 @@ public class EgaSeekableHTTPStreamOAuth extends SeekableStream {
         this.auth = auth;
         this.contentLength = fileSize;
 
-        // Try to get the file length
-        // Note: This also sets setDefaultUseCaches(false), which is important
-        final String contentLengthString = HttpUtils.getHeaderField(url, "Content-Length");
-        if (contentLengthString != null && contentLength == -1) {
-            try {
-                contentLength = Long.parseLong(contentLengthString);
-            }
-            catch (NumberFormatException ignored) {
-                System.err.println("WARNING: Invalid content length (" + contentLengthString + "  for: " + url);
-                contentLength = -1;
-            }
+        // Get the file length, unless given
+        if (contentLength == -1) {
+            contentLength = EgaSeekableHTTPStream.probeLength(url, proxy, (auth != null && auth.length() > 0) ? "Bearer " + auth : null);
         }
-        
     }
 
     public long position() {
@@ -113,6 +104,9 @@ public class EgaSeekableHTTPStreamOAuth extends SeekableStream {
         InputStream is = null;
         String byteRange = "";
         int n = 0;
+        boolean complete = false;
+        long request = 0;
+        RequestTracer.Span whole = null, phase = null;
         try {
             connection = proxy == null ?
                     (HttpURLConnection) url.openConnection() :
@@ -132,7 +126,16 @@ public class EgaSeekableHTTPStreamOAuth extends SeekableStream {
 
             connection.setConnectTimeout(120000);
             connection.setReadTimeout(180000);
+            current = connection;
+            request = RequestTracer.request(url.toString(), byteRange);
+            whole = RequestTracer.begin(request, "request");
+            phase = RequestTracer.begin(request, "connect"); // dns, tcp and tls - none on a kept-alive connection
+            connection.connect();
+            RequestTracer.end(phase);
+            phase = RequestTracer.begin(request, "ttfb");
             is = connection.getInputStream();
+            RequestTracer.end(phase);
+            phase = RequestTracer.begin(request, "transfer");
 
             while (n < len) {
                 int count = is.read(buffer, offset + n, len - n);
@@ -144,9 +147,11 @@ public class EgaSeekableHTTPStreamOAuth extends SeekableStream {
                     }
                 }
                 n += count;
+                BandwidthGovernor.chargeSource(count);
             }
 
             position += n;
+            complete = true;
 
             return n;
 
@@ -174,18 +179,27 @@ public class EgaSeekableHTTPStreamOAuth extends SeekableStream {
         }
 
         finally {
+            RequestTracer.end(phase, n);
+            RequestTracer.end(whole, n);
             if (is != null) {
                 is.close();
             }
             if (connection != null) {
-                connection.disconnect();
+                current = null;
+                // A response read to its end goes back to the keep-alive cache:
+                // the next read reuses the connection (no new TCP/TLS handshake)
+                if (!complete) connection.disconnect();
             }
         }
     }
 
 
     public void close() throws IOException {
-        // Nothing to do
+        // Abort a read that is blocked on the network (e.g. a stalled transfer)
+        HttpURLConnection connection = current;
+        if (connection != null) {
+            connection.disconnect();
+        }
     }
 
 
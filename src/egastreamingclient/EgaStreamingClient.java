@@ -26,14 +26,14 @@ import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson.JacksonFactory;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import htsjdk.samtools.seekablestream.SeekableHTTPStream;
 import htsjdk.samtools.seekablestream.SeekableStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
 import htsjdk.samtools.util.Tuple;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileReader;
@@ -41,19 +41,33 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import javax.net.ssl.HttpsURLConnection;
+import okhttp3.Call;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
@@ -69,6 +83,13 @@ public class EgaStreamingClient {
     
     private static OkHttpClient client = null;
 
+    // EGA Ticket Endpoints as defaults - overwritten if parameters are specified
+    private static final String FILES_ENDPOINT_URL = "https://ega.ebi.ac.uk:8051/elixir/data/tickets/files/";
+    private static final String VARIANTS_ENDPOINT_URL = "https://ega.ebi.ac.uk:8051/elixir/data/tickets/variants/";
+
+    // Aborts data transfers that fall below the minimum throughput
+    private static ThroughputWatchdog watchdog = new ThroughputWatchdog(0);
+
      // EGA AAI
     private static String TOKEN_SERVER_URL = "https://ega.ebi.ac.uk:8443/ega-openid-connect-server/token";
     private static final String AUTHORIZATION_SERVER_URL = "https://ega.ebi.ac.uk:8443/ega-openid-connect-server/authorize";
@@ -79,17 +100,23 @@ public class EgaStreamingClient {
     /** OAuth 2 scope. */
     private static String SCOPE = "openid";
 
-    /** Global instance of the HTTP transport. */
-    private static final HttpTransport HTTP_TRANSPORT = new NetHttpTransport();
+    /*
+     * The OAuth stack (HTTP transport, JSON factory) - loaded only when a
+     * token is requested, not on every start
+     */
+    private static final class OAuth {
+        /** Global instance of the HTTP transport. */
+        static final HttpTransport HTTP_TRANSPORT = new NetHttpTransport();
 
-    /** Global instance of the JSON factory. */
-    static final JsonFactory JSON_FACTORY = new JacksonFactory();
+        /** Global instance of the JSON factory. */
+        static final JsonFactory JSON_FACTORY = new JacksonFactory();
+    }
     
     private static void error(String message) {
         System.err.println(message);
         System.exit(1);
     }
-    private static enum Format {
+    static enum Format {
         BAM,
         CRAM,
         VCF,
@@ -100,16 +127,17 @@ public class EgaStreamingClient {
      * @param args the command line arguments
      */
     public static void main(String[] args) throws NoSuchAlgorithmException, KeyManagementException {
-        // EGA Ticket Endpoint as defaults - overwritten if parameters are specified
-        String endpointUrl = "https://ega.ebi.ac.uk:8051/elixir/data/tickets/files/";
-        String vcfEndpointUrl = "https://ega.ebi.ac.uk:8051/elixir/data/tickets/variants/";
-        
         client = SSLUtilities.getUnsafeOkHttpClient();
 
         Params params = new Params();
         JCommander jc = new JCommander(params);
         jc.parse(args);
         
+        // Idle range request connections kept for reuse (per host; JDK default 5)
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", String.valueOf(Math.max(5, params.parallel)));
+        }
+        
         // Print Help
         if (params.help) {
             jc.usage();
@@ -121,6 +149,38 @@ public class EgaStreamingClient {
             return;
         }
         
+        // Aggregate bandwidth cap, shared by all transfers of this process
+        try {
+            BandwidthGovernor.configure(BandwidthGovernor.parseBytes(params.maxBandwidth),
+                                        BandwidthGovernor.parseBytes(params.bandwidthBurst));
+        } catch (NumberFormatException ex) {
+            error("Invalid bandwidth: " + ex.getMessage());
+        }
+        
+        // Block cache of ranged reads, shared by the streams of this process
+        try {
+            CachingSeekableStream.configure(BandwidthGovernor.parseBytes(params.blockCache), params.readAhead, params.offHeapCache);
+        } catch (NumberFormatException ex) {
+            error("Invalid block cache size: " + ex.getMessage());
+        }
+        // Latency tracing of the requests
+        if (params.trace != null || params.traceJfr) {
+            RequestTracer.configure(params.trace, params.traceJfr);
+            client = client.newBuilder().eventListenerFactory(RequestTracer.listenerFactory()).build();
+        }
+
+        // Buffers of the transfers, within the memory budget
+        try {
+            BufferPool.configure(BandwidthGovernor.parseBytes(params.memoryBudget), params.directBuffers);
+        } catch (NumberFormatException ex) {
+            error("Invalid memory budget: " + ex.getMessage());
+        }
+        try {
+            MirroredSeekableStream.configure(params.mirrorDir);
+        } catch (IOException ex) {
+            error(ex.getMessage());
+        }
+        
         // Handle tokens, if necessary [requires access to an EGA AAI client]
         if (params.tokenUser!=null && params.tokenPass!=null) try {
             if (params.tokenUrl!=null)
@@ -132,6 +192,44 @@ public class EgaStreamingClient {
             refreshToken = token.getRefreshToken();
         } catch (Exception ex) {System.out.println("ERROR " + ex.toString());}
         
+        // Server mode - local caching htsget endpoint for the processes of this node
+        if (params.serve > 0) {
+            try {
+                new HtsgetProxy(params, client, fileTest(params.oauthToken)).start();
+            } catch (IOException | NumberFormatException ex) {
+                error("Cannot serve on " + params.serveAddress + ":" + params.serve + ": " + ex.getMessage());
+            }
+            return;
+        }
+        
+        // Rank the mirrors of a named endpoint
+        if (params.endpointName != null && params.endpointUrl == null) {
+            try {
+                endpointUrls(params.format, params);
+            } catch (IllegalArgumentException ex) {
+                error(ex.getMessage());
+            }
+        }
+        
+        // Connect to the data hosts while the ticket is requested
+        if (params.fastStart) {
+            Prewarmer.start(endpointUrl(params.format, params), client, params.debug);
+        }
+        
+        // Bulk mode - every entry of the manifest
+        if (params.manifest != null) {
+            try {
+                List<ManifestDownloader.Entry> entries = ManifestDownloader.read(params.manifest);
+                ManifestDownloader downloader = new ManifestDownloader(params, fileTest(params.oauthToken));
+                int failed = downloader.run(entries);
+                Prewarmer.save();
+                if (failed > 0) System.exit(1);
+            } catch (IOException | IllegalArgumentException ex) {
+                error("Manifest " + params.manifest + ": " + ex.getMessage());
+            }
+            return;
+        }
+        
         // Do the work
         try {
             // 1 - Get the Ticket!
@@ -139,93 +237,387 @@ public class EgaStreamingClient {
             query.sequence = params.referenceName;
             query.start = params.start;
             query.end = params.stop;
-            if (params.format==Format.VCF)
-                endpointUrl = vcfEndpointUrl;
-            if (params.endpointUrl!=null)
-                endpointUrl = params.endpointUrl;
-            String sURL = formatURL(endpointUrl, params.datasetId, query, params.format);
-            URL url = new URL(sURL);
-            if (params.debug) System.out.println("Version " + VERSION_MAJOR + "." + VERSION_MINOR + " Getting Ticket URL " + sURL);
-            TicketResponse r = getTicketOk(url, fileTest(params.oauthToken), params.printTicket);
-
-            // 2 - Download the Data for each URL in the ticket
-            IOException exception = null;
-            if (r!=null && r.urls!=null) { // Ticket is not NULL
-                exception = null;
-
-                OutputStream outputStream; // Output File
-                if (params.outputFile == null) outputStream = new BufferedOutputStream(System.out);
-                else outputStream = new FileOutputStream(params.outputFile);
-                try {
-                    /*
-                     * Iterate through Each Ticket URL!
-                     */
-                    long total = 0;
-                    for (TicketResponse.URL_OBJECT uo : r.urls) {
-                        if (params.debug) System.out.println("Version " + VERSION_MAJOR + "." + VERSION_MINOR + " Opening Data URL " + uo.url);
-                        if (uo.url.startsWith("data")) {
-                            // Embedded Data - write immediately to output
-                            final byte[] bytes = TicketResponse.fromDataURI(new URI(uo.url));
-                            total += bytes.length;
-                            outputStream.write(bytes);
+            projection(query, params.format, params);
+            byte[] header = null; // cached, spliced in front of the body
+            if (params.headerCache != null) {
+                header = new HeaderCache(params.headerCache, params, fileTest(params.oauthToken)).get(params.datasetId, params.format);
+                if (header != null) query.dataClass = "body";
+            }
+            List<String> endpoints = endpointUrls(params.format, params);
+            try (DownloadScheduler scheduler = newScheduler(params);
+                 FailoverDownload download = new FailoverDownload(params.outputFile, params.format, params, scheduler)) {
+                for (int m = 0; m < endpoints.size(); m++) {
+                    if (m > 0) System.out.println("Failing over to " + endpoints.get(m) + " after " + download.written() + " bytes");
+                    String sURL = formatURL(endpoints.get(m), params.datasetId, query, params.format);
+                    URL url = new URL(sURL);
+                    if (params.debug) System.out.println("Version " + VERSION_MAJOR + "." + VERSION_MINOR + " Getting Ticket URL " + sURL);
+                    try (TicketReader ticket = openTicket(url, fileTest(params.oauthToken))) {
+
+                        // 2 - Download the Data for each URL in the ticket, as the ticket arrives
+                        if (ticket == null || !ticket.hasUrls()) { // Ticket is NULL
+                            System.out.println("Ticket response is null.");
+                            continue;
+                        }
+                        long t0 = System.currentTimeMillis();
+                        long bytes;
+                        if (params.resume || params.printTicket) { // needs the whole ticket first
+                            TicketResponse r = ticket.readAll();
+                            if (params.printTicket) printTicket(r);
+                            if (header != null) r = HeaderCache.splice(header, r);
+                            bytes = download.download(r);
                         } else {
-                            // Data URL - write to temp file, until successful - including ReTries
-                            int tryCount = params.retries;
-                            Exception e_ = null;
-                            do {
-                                e_ = null;
-                                try {
-                                    // (1) Set up Temp File
-                                    File tempFile = File.createTempFile("tempfile", ".tmp");
-                                    tempFile.deleteOnExit(); // just in case of exception.
-                                    FileOutputStream fos = new FileOutputStream(tempFile);
-
-                                    // (2) Get Input Stream (with retries)
-                                    InputStream is = getInputStreamFromTicketURL(uo, params.bufferSize, params.debug);
-                                    is = new BufferedBackgroundInputStream(is);
-
-                                    // (3) Write Input Stream to file
-                                    final byte[] buffer = new byte[params.bufferSize];
-                                    int bytesRead;
-                                    while ((bytesRead = is.read(buffer)) > 0) {
-                                        //total += bytesRead;
-                                        fos.write(buffer, 0, bytesRead);
-                                    }
-                                    is.close();
-                                    fos.close();
-
-                                    // (4) Copy Temp file to Output File, delete Temp File
-                                    Path path = tempFile.toPath();
-                                    long copy = Files.copy(path, outputStream);
-                                    total += copy;
-                                    tempFile.delete();
-                                } catch (Exception e) {
-                                    System.out.println(e.toString());
-                                    e_ = e;
-                                }
-                            } while (tryCount-- > 0 && e_!=null);
+                            Iterator<TicketResponse.URL_OBJECT> urls = ticket.urls();
+                            if (header != null) urls = HeaderCache.splice(header, urls);
+                            bytes = download.download(urls);
                         }
-                        if (params.debug) System.out.println("Version " + VERSION_MAJOR + "." + VERSION_MINOR + " Total bytes read from stream: " + total);
+                        if (endpoints.size() > 1) EndpointRegistry.measured(endpoints.get(m), bytes, System.currentTimeMillis() - t0);
+                        break;
+                    } catch (FailoverDownload.TicketMismatchException e) {
+                        error(e.getMessage() + " - the output so far cannot be continued");
+                    } catch (IOException e) {
+                        System.out.println(e.toString());
+                        if (endpoints.size() > 1) EndpointRegistry.failed(endpoints.get(m));
                     }
-                } catch (IOException e) {
-                    System.out.println(e.toString());
                 }
-                outputStream.close();
-            } else {
-                System.out.println("Ticket response is null.");
+            } catch (IllegalArgumentException ex) {
+                error(ex.getMessage());
+            } catch (IOException e) {
+                System.out.println(e.toString());
             }
+            Prewarmer.save();
             
             return;
         } catch (Throwable th) {System.out.println(th.toString());return;}
     }
     
+    /*
+     * Whether the reads are projected on the client (fields, tags, notags) -
+     * for servers that ignore them; a no-op where the server has done it
+     */
+    static boolean projecting(Format format, Params params) {
+        return format == Format.BAM && !params.stats && (params.fields != null || params.tags != null || params.notags != null);
+    }
+
+    /*
+     * Sets the fields, tags and notags of the query; for --stats without
+     * --fields, only the fields the statistics need
+     */
+    static void projection(Query query, Format format, Params params) {
+        query.fields = params.fields;
+        query.tags = params.tags;
+        query.notags = params.notags;
+        if (params.stats && format == Format.BAM && params.fields == null && params.tags == null) {
+            query.fields = StatsOutputStream.FIELDS;
+            query.tags = "";
+        }
+    }
+
+    static String endpointUrl(Format format, Params params) {
+        if (params.endpointUrl != null) return params.endpointUrl;
+        if (params.endpointName != null) return endpointUrls(format, params).get(0);
+        return (format == Format.VCF) ? VARIANTS_ENDPOINT_URL : FILES_ENDPOINT_URL;
+    }
+
+    /*
+     * The endpoint URLs to try in turn: the mirrors of a named endpoint
+     * (best first), otherwise the one endpoint
+     */
+    static List<String> endpointUrls(Format format, Params params) {
+        if (params.endpointUrl == null && params.endpointName != null) {
+            return EndpointRegistry.mirrors(params.endpointName, format, params.config, client, params.debug);
+        }
+        return Collections.singletonList(endpointUrl(format, params));
+    }
+
+    /*
+     * Throws IllegalArgumentException for invalid combinations of output options
+     */
+    static void checkOutputOptions(File outputFile, Format format, Params params) {
+        if (params.resume) {
+            if (outputFile == null) throw new IllegalArgumentException("--resume requires --output-file");
+            if (params.buildIndex || params.uncompressed || params.compressionLevel >= 0) {
+                throw new IllegalArgumentException("--resume writes the data as received - not with --build-index, --uncompressed or --compression-level");
+            }
+        }
+        if (params.buildIndex) {
+            if (outputFile == null) throw new IllegalArgumentException("--build-index requires --output-file");
+            if (format == Format.CRAM || params.uncompressed) throw new IllegalArgumentException("--build-index requires BGZF output (BAM, BCF or VCF.gz)");
+        }
+        if (params.compressionLevel >= 0) {
+            if (format == Format.CRAM) throw new IllegalArgumentException("Re-compression is not available for CRAM");
+            if (params.uncompressed) throw new IllegalArgumentException("--uncompressed and --compression-level are mutually exclusive");
+        }
+        if (params.uncompressed && format == Format.CRAM) throw new IllegalArgumentException("Uncompressed output is not available for CRAM");
+        if (params.stats) {
+            if (format == Format.CRAM) throw new IllegalArgumentException("Statistics are not available for CRAM");
+            if (params.resume || params.buildIndex || params.uncompressed || params.compressionLevel >= 0) {
+                throw new IllegalArgumentException("--stats writes a summary, not the data - not with --resume, --build-index, --uncompressed or --compression-level");
+            }
+        }
+        if (params.fields != null || params.tags != null || params.notags != null) {
+            if (format != Format.BAM && format != Format.CRAM) throw new IllegalArgumentException("--fields, --tags and --notags are for reads (BAM, CRAM)");
+            if (params.resume) throw new IllegalArgumentException("--resume writes the data as received - not with --fields, --tags or --notags");
+            ProjectingOutputStream.check(params.fields, params.tags, params.notags);
+        }
+    }
+
+    /*
+     * Output file (STDOUT if null), wrapped in the processing stages selected
+     * by the parameters
+     */
+    static OutputStream openOutputStream(File outputFile, Format format, Params params) throws IOException {
+        checkOutputOptions(outputFile, format, params);
+
+        OutputStream outputStream;
+        if (outputFile == null) outputStream = new BufferedOutputStream(System.out);
+        else outputStream = new FileOutputStream(outputFile);
+        if (params.stats) { // Inflate and summarise the records - the data is not written
+            return new ParallelBgzfInflaterOutputStream(new StatsOutputStream(outputStream, format), params.threads);
+        }
+        if (params.buildIndex) { // Index the (final) BGZF bytes as they are written
+            outputStream = new IndexingOutputStream(outputStream, outputFile, format);
+        }
+        if (projecting(format, params)) { // Inflate, project the records, re-compress
+            if (!params.uncompressed) {
+                int level = (params.compressionLevel >= 0) ? params.compressionLevel : BlockCompressedStreamConstants.DEFAULT_COMPRESSION_LEVEL;
+                outputStream = new ParallelBgzfDeflaterOutputStream(outputStream, level, params.threads);
+            }
+            outputStream = new ProjectingOutputStream(outputStream, params.fields, params.tags, params.notags);
+            return new ParallelBgzfInflaterOutputStream(outputStream, params.threads);
+        }
+        if (params.compressionLevel >= 0) { // Re-compress BGZF blocks in parallel
+            outputStream = new ParallelBgzfDeflaterOutputStream(outputStream, params.compressionLevel, params.threads);
+            outputStream = new ParallelBgzfInflaterOutputStream(outputStream, params.threads);
+        }
+        if (params.uncompressed) { // Inflate BGZF blocks in parallel before writing
+            outputStream = new ParallelBgzfInflaterOutputStream(outputStream, params.threads);
+        }
+        return outputStream;
+    }
+
+    /*
+     * Downloads the ticket into the output file (STDOUT if null); with
+     * --resume, continues from the journal of an interrupted run
+     */
+    static long download(TicketResponse r, File outputFile, Format format, DownloadScheduler scheduler,
+                         Params params, int priority) throws IOException, URISyntaxException, ParseException {
+        if (!params.resume) {
+            long length = PositionalWriter.applies(outputFile, format, params) ? PositionalWriter.length(r) : -1;
+            return download(Arrays.asList(r.urls).iterator(), length, outputFile, format, scheduler, params, priority);
+        }
+        checkOutputOptions(outputFile, format, params);
+        long total;
+        try (ResumeJournal journal = ResumeJournal.open(outputFile, r, params.debug)) {
+            // Not coalesced - the journal keeps track of every ticket URL
+            RangeCoalescer groups = new RangeCoalescer(Arrays.asList(r.urls).iterator(), -1, 0, 1);
+            total = writeTicketData(groups, journal.output(), scheduler, params, priority, journal);
+            journal.finish();
+        }
+        return total;
+    }
+
+    /*
+     * Downloads ticket URLs as they are read - each one is scheduled (or, if
+     * embedded, written) as soon as it arrives, neighbouring ranges merged
+     * (see RangeCoalescer). Written in place where the output allows (see
+     * PositionalWriter). Not for --resume.
+     */
+    static long download(Iterator<TicketResponse.URL_OBJECT> urls, File outputFile, Format format, DownloadScheduler scheduler,
+                         Params params, int priority) throws IOException, URISyntaxException, ParseException {
+        return download(urls, -1, outputFile, format, scheduler, params, priority);
+    }
+
+    /*
+     * length: of the output, if the whole ticket is known already (see
+     * PositionalWriter.length()), -1 if not
+     */
+    static long download(Iterator<TicketResponse.URL_OBJECT> urls, long length, File outputFile, Format format,
+                         DownloadScheduler scheduler, Params params, int priority)
+            throws IOException, URISyntaxException, ParseException {
+        RangeCoalescer groups = coalesce(urls, params);
+        try {
+            if (PositionalWriter.applies(outputFile, format, params)) {
+                checkOutputOptions(outputFile, format, params);
+                return PositionalWriter.write(groups, outputFile, scheduler, params, priority, length);
+            }
+            try (OutputStream outputStream = openOutputStream(outputFile, format, params)) {
+                return writeTicketData(groups, outputStream, scheduler, params, priority, null);
+            }
+        } catch (UncheckedIOException ex) { // reading the ticket failed
+            throw ex.getCause();
+        }
+    }
+
+    static RangeCoalescer coalesce(Iterator<TicketResponse.URL_OBJECT> urls, Params params) {
+        return new RangeCoalescer(urls, BandwidthGovernor.parseBytes(params.coalesceGap),
+                                  RangeCoalescer.MAX_GROUP_BYTES, Math.max(1, params.maxRanges));
+    }
+
+    /*
+     * The download scheduler for all ticket URLs of this process, with stall
+     * detection and adaptive concurrency set up from the parameters
+     */
+    static DownloadScheduler newScheduler(final Params params) {
+        // A capped transfer is only guaranteed its share of the cap - don't take that for a stall
+        long minThroughput = params.minThroughput;
+        if (BandwidthGovernor.enabled()) {
+            minThroughput = Math.min(minThroughput, BandwidthGovernor.limit() / (2L * Math.max(1, params.parallel)));
+        }
+        watchdog = new ThroughputWatchdog(minThroughput);
+        AdaptiveConcurrencyLimiter.configure(4, params.parallel, params.adaptiveConcurrency, params.debug);
+        AsyncTransport async = null;
+        if (params.asyncRequests > 0) {
+            try {
+                async = new AsyncTransport(params.asyncRequests, params.debug);
+            } catch (IOException ex) {
+                System.out.println("No async transport (" + ex + ") - a thread per transfer");
+            }
+        }
+        return new DownloadScheduler(params.parallel, params.retries, params.bufferSize,
+                params.hedgeFactor, params.debug,
+                (uo, granted) -> getInputStreamFromTicketURL(uo, params.bufferSize, params.debug, granted), async);
+    }
+    
+    /*
+     * Downloads submitted ahead of the one the output waits for: the ticket
+     * is read no further than that
+     */
+    static int lookahead(Params params) {
+        return Math.max(1, Math.max(params.parallel, params.asyncRequests)) * 2;
+    }
+
+    /*
+     * Download the Data for each URL in the ticket, in ticket order. Data URLs
+     * are fetched in parallel into temp files (with retries, stall detection
+     * and hedging); embedded data is written as its turn comes.
+     */
+    static long writeTicketData(Iterator<RangeCoalescer.Group> groups, OutputStream outputStream, DownloadScheduler scheduler,
+                                final Params params, int priority, final ResumeJournal journal)
+            throws IOException, URISyntaxException, ParseException {
+        long total = 0;
+        // Ordered output stage - at most 'lookahead' URLs are in flight or waiting ahead of the output
+        int lookahead = lookahead(params);
+        ArrayDeque<Pending> pending = new ArrayDeque<>();
+        int first = (journal == null) ? 0 : journal.firstIndex(); // URLs before it are in the output already
+        int written = first;
+        try {
+            /*
+             * Iterate through Each Ticket URL!
+             */
+            for (int i = 0; i < first && groups.hasNext(); i++) groups.next();
+            for (int i = first; groups.hasNext(); i++) {
+                RangeCoalescer.Group g = groups.next();
+                TicketResponse.URL_OBJECT uo = g.request;
+                if (params.debug) System.out.println("Version " + VERSION_MAJOR + "." + VERSION_MINOR + " Opening Data URL " + uo.url);
+                if (uo.url.startsWith("data")) {
+                    // Embedded Data - write to output in turn
+                    pending.add(new Pending(TicketResponse.fromDataURI(new URI(uo.url))));
+                } else if (g.merged()) {
+                    // Neighbouring ranges in one request - split into the ticket's parts when written
+                    if (params.debug) System.out.println("Coalesced " + g.parts.size() + " ranges into bytes=" + g.start + "-" + g.end);
+                    g.download = scheduler.submit(uo, g.size(), priority);
+                    pending.add(new Pending(g));
+                } else {
+                    // Data URL - download to temp file, until successful - including ReTries
+                    Tuple<Long, Long> range = uo.getRange();
+                    pending.add(new Pending(scheduler.submit(uo, range == null ? -1 : range.b - range.a + 1, priority,
+                                                             journal == null ? null : journal.partFile(i))));
+                }
+                while (pending.size() > lookahead || (!pending.isEmpty() && pending.peek().data != null)) {
+                    total += writeNext(pending.poll(), outputStream, journal, written++);
+                }
+                if (params.debug) System.out.println("Version " + VERSION_MAJOR + "." + VERSION_MINOR + " Total bytes read from stream: " + total);
+            }
+            while (!pending.isEmpty()) {
+                total += writeNext(pending.poll(), outputStream, journal, written++);
+            }
+        } finally {
+            for (Pending p : pending) { // Aborted - discard downloads that were not written (part files stay for a resume)
+                if (p.download != null) {
+                    p.download.thenAccept(f -> {
+                        if (journal == null || !journal.isPartFile(f)) f.delete();
+                    });
+                } else if (p.group != null) {
+                    p.group.download.thenAccept(File::delete);
+                }
+            }
+        }
+        return total;
+    }
+
+    /*
+     * An entry of the ordered output stage: embedded data, the download of
+     * a URL, or that of a merged group
+     */
+    private static final class Pending {
+        final byte[] data;
+        final CompletableFuture<File> download;
+        final RangeCoalescer.Group group;
+
+        Pending(byte[] data) {
+            this(data, null, null);
+        }
+
+        Pending(CompletableFuture<File> download) {
+            this(null, download, null);
+        }
+
+        Pending(RangeCoalescer.Group group) {
+            this(null, null, group);
+        }
+
+        private Pending(byte[] data, CompletableFuture<File> download, RangeCoalescer.Group group) {
+            this.data = data;
+            this.download = download;
+            this.group = group;
+        }
+    }
+
+    private static long writeNext(Pending next, OutputStream outputStream, ResumeJournal journal, int index)
+            throws IOException {
+        if (next.data != null) {
+            outputStream.write(next.data);
+            if (journal != null) journal.completed(index, next.data.length);
+            return next.data.length;
+        }
+        if (next.group != null) {
+            RangeCoalescer.Group g = next.group;
+            File data = await(g.download);
+            try {
+                return g.copyParts(data, outputStream);
+            } finally {
+                data.delete();
+            }
+        }
+        File tempFile = await(next.download);
+        // Copy Temp file to Output File, delete Temp File
+        Path path = tempFile.toPath();
+        long copy = Files.copy(path, outputStream);
+        if (journal != null) {
+            journal.completed(index, copy);
+            if (journal.isPartFile(tempFile)) return copy; // removed once the journal has recorded it
+        }
+        tempFile.delete();
+        return copy;
+    }
+
+    static File await(CompletableFuture<File> download) throws IOException {
+        try {
+            return download.get();
+        } catch (InterruptedException ex) {
+            throw new IOException("Interrupted while waiting for download", ex);
+        } catch (ExecutionException ex) {
+            throw new IOException("Download failed after retries: " + ex.getCause(), ex.getCause());
+        }
+    }
+
     /*
      *  ************************************************************************ 
      *  ****                                                                **** 
      *  ************************************************************************ 
      */
     
-    private static String fileTest(String string) {
+    static String fileTest(String string) {
         if (string==null) return null;
         if (string.toLowerCase().startsWith(("file://"))) {
             URL url;
@@ -257,8 +649,8 @@ public class EgaStreamingClient {
     private static TokenResponse authorize(String username, String pass) throws Exception {
         
         TokenResponse response = 
-            new PasswordTokenRequest(HTTP_TRANSPORT, 
-                                   JSON_FACTORY, 
+            new PasswordTokenRequest(OAuth.HTTP_TRANSPORT, 
+                                   OAuth.JSON_FACTORY, 
                                    new GenericUrl(TOKEN_SERVER_URL), 
                                    username.toString(), 
                                    pass.toString())
@@ -274,28 +666,63 @@ public class EgaStreamingClient {
         
     }
     
-    private static String formatURL(String base, String accession, Query query, Format format) {
+    static String formatURL(String base, String accession, Query query, Format format) {
+        if ("header".equals(query.dataClass)) { // no region for the header
+            String url = String.format("%s%s?format=%s&class=header", base, accession, format);
+            System.out.println(url);
+            return url;
+        }
         String url = String.format("%s%s?format=%s&referenceName=%s", base, accession, format, query.sequence);
         if (query.start < 0) query.start = 0;
         url = String.format(url + "&start=%d", query.start);
         if (query.end > 0) url = String.format(url + "&end=%d", query.end);
+        if (query.fields != null) url += "&fields=" + encode(query.fields);
+        if (query.tags != null) url += "&tags=" + encode(query.tags);
+        if (query.notags != null) url += "&notags=" + encode(query.notags);
+        if (query.dataClass != null) url += "&class=" + query.dataClass;
         System.out.println(url);
         return url;
     }
 
-    private static TicketResponse getTicketOk(URL url, String oauthToken, boolean printTicket) 
+    /*
+     * A query parameter value, as given by the user
+     */
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    static TicketResponse getTicketOk(URL url, String oauthToken, boolean printTicket) 
             throws IOException, EndpointException, KeyManagementException, NoSuchAlgorithmException, VersionException {
+        TicketResponse ticketResponse;
+        try (TicketReader ticketReader = openTicket(url, oauthToken)) {
+            if (ticketReader == null) return null;
+            ticketResponse = ticketReader.readAll();
+        }
+        if (printTicket && ticketResponse != null) printTicket(ticketResponse);
+        return ticketResponse;
+    }
 
+    /*
+     * The ticket response, to be read URL by URL as it arrives (streaming -
+     * tickets can be very large); null if the endpoint can't be reached
+     */
+    static TicketReader openTicket(URL url, String oauthToken) throws IOException {
         Request requestRequest = null;
         
         if (oauthToken!=null && oauthToken.length()>0) {
             requestRequest = new Request.Builder()
                 .url(url)
                 .addHeader("Authorization", "Bearer " + oauthToken)
+                .header("Accept-Encoding", ContentEncoding.ACCEPT)
                 .build();
         } else {
             requestRequest = new Request.Builder()
                 .url(url)
+                .header("Accept-Encoding", ContentEncoding.ACCEPT)
                 .build();
         }
         
@@ -311,17 +738,25 @@ public class EgaStreamingClient {
         }
         ResponseBody body = response.body();
 
-        final InputStream inputStream = body.byteStream();
-        InputStreamReader reader = new InputStreamReader(new BufferedInputStream(inputStream), "ASCII");
-        Gson gson = new GsonBuilder().disableHtmlEscaping().setPrettyPrinting().create();
-        HtsgetResponse htsgetResponse = gson.fromJson(reader, HtsgetResponse.class);
-        TicketResponse ticketResponse = htsgetResponse.htsget;
-        if (printTicket) System.out.println(gson.toJson(htsgetResponse));
-
-        body.close();
-        response.close();
+        // Closing the reader closes the response
+        final InputStream inputStream = ContentEncoding.decode(body.byteStream(), response.header("Content-Encoding"));
+        InputStreamReader reader = new InputStreamReader(new BufferedInputStream(inputStream), StandardCharsets.UTF_8);
+        return new TicketReader(reader);
+    }
 
-        return ticketResponse;
+    /*
+     * In one write: tickets of a manifest are printed by several threads
+     */
+    private static void printTicket(TicketResponse r) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Writer out = new BufferedWriter(new OutputStreamWriter(bytes, "UTF-8"));
+        TicketReader.write(r, out, true);
+        out.write(System.lineSeparator());
+        out.flush();
+        synchronized (System.out) {
+            bytes.writeTo(System.out);
+            System.out.flush();
+        }
     }
 
     private static class EndpointException extends Exception {
@@ -340,7 +775,38 @@ public class EgaStreamingClient {
         }
     }
     
-    private static InputStream getInputStreamFromTicketURL(TicketResponse.URL_OBJECT uo, final int bufSize, boolean debug) 
+    /*
+     * Every connection opened for a ticket URL counts against the adaptive
+     * concurrency limit of its host; the slot is held until the returned
+     * stream is closed or read to the end - except while backing off before
+     * a retry.
+     */
+    private static InputStream getInputStreamFromTicketURL(TicketResponse.URL_OBJECT uo, final int bufSize, boolean debug,
+                                                           Runnable granted)
+                throws IOException, URISyntaxException, ParseException {
+        AdaptiveConcurrencyLimiter.Permit permit;
+        try {
+            permit = AdaptiveConcurrencyLimiter.forUrl(uo.url).acquire();
+        } catch (InterruptedException ex) {
+            throw new IOException("Interrupted while waiting for a connection slot", ex);
+        }
+        granted.run();
+        Prewarmer.seen(uo.url);
+        InputStream is = null;
+        try {
+            is = openTicketURL(uo, -1, bufSize, debug, permit);
+            return (is == null) ? null : permit.track(is);
+        } finally {
+            if (is == null) permit.release();
+        }
+    }
+
+    /*
+     * length: of the resource behind the URL if known, -1 to have a ranged
+     * stream ask the server for it
+     */
+    private static InputStream openTicketURL(TicketResponse.URL_OBJECT uo, long length, final int bufSize, boolean debug,
+                                             AdaptiveConcurrencyLimiter.Permit permit) 
                 throws IOException, URISyntaxException, ParseException {
         
         boolean secure = uo.url.toLowerCase().startsWith("https");
@@ -355,6 +821,10 @@ public class EgaStreamingClient {
             }
         }
 
+        List<Tuple<Long, Long>> ranges = uo.getRanges();
+        if (ranges != null && ranges.size() > 1) {
+            return openMultiRange(uo, ranges, authToken, bufSize, debug, permit);
+        }
         final Tuple<Long, Long> range = uo.getRange();
 
         int reTries = 5; 
@@ -375,38 +845,43 @@ public class EgaStreamingClient {
                     do {
                         e_ = null;
                         try {
-                            if (!secure) {      // Original Implementation - Standard HTTP
-                                stream = new SeekableHTTPStream(new URL(uo.url));
+                            if (!secure) {      // Standard HTTP (EGA stream - can be aborted on close)
+                                stream = new EgaSeekableHTTPStream(new URL(uo.url), null, null, length);
                             } else {            // HTTPS Secured
                                 if (!auth) {    // Using (assumed) Basic Auth
-                                    stream = new EgaSeekableHTTPStream(new URL(uo.url), authToken);
+                                    stream = new EgaSeekableHTTPStream(new URL(uo.url), null, authToken, length);
                                 } else {        // Using Outh2 Bearer Tokens (EGA)
-                                    stream = new EgaSeekableHTTPStreamOAuth(new URL(uo.url), authToken);
+                                    stream = new EgaSeekableHTTPStreamOAuth(new URL(uo.url), null, authToken, length);
                                 }
                             }
                         } catch (Exception ex) {
-                            try {Thread.sleep(500);} catch (InterruptedException ex1) {;}
+                            permit.failed(ex);
+                            permit.backoff(Backoff.CONNECT, 4 - tryCount);
                             System.out.println("Client Stream Instatiation ERROR: " + ex.toString());
                             e_ = ex;
                         }  
                     } while (tryCount-- > 0 && stream==null && e_!=null);
+                    stream = CachingSeekableStream.wrap(MirroredSeekableStream.wrap(stream), range.b);
                     stream.seek(range.a);
                     long size = range.b - range.a + 1;
 
-                    InputStream is = new LimitedInputStream(new BufferedInputStream(stream, bufSize), size);
+                    // Limit inside the buffer, so no read asks the server for bytes beyond the range
+                    InputStream is = new PooledBufferedInputStream(new LimitedInputStream(watchdog.watch(stream, uo.url, stream), size), bufSize);
                     if (debug) System.out.println("Version " + VERSION_MAJOR + "." + VERSION_MINOR + " Trying to Read from Response Stream.");
                     is_ = new NonEmptyInputStream(is);
+                    permit.firstByte();
                     if (is_!=null) {
                         InputStream is__ = null;
                         if (size > 0L)
-                            is__ = new LimitedInputStream(new BufferedInputStream(is_, bufSize), size);
+                            is__ = new LimitedInputStream(new PooledBufferedInputStream(is_, bufSize), size);
                         else
-                            is__ = new BufferedInputStream(is_, bufSize);
+                            is__ = new PooledBufferedInputStream(is_, bufSize);
                         return is__;
                     }
                 } catch (Exception ex) {
+                    permit.failed(ex);
                     System.out.println("Exception (" + reTries + ") opening URL " + uo.url);
-                    try {Thread.sleep(2000);} catch (InterruptedException ex1) {;}
+                    permit.backoff(Backoff.TRANSFER, 5 - reTries);
                     e = ex;
                     reTries--;
                 }
@@ -427,10 +902,12 @@ public class EgaStreamingClient {
                 requestRequest = new Request.Builder()
                     .url(url)
                     .addHeader("Authorization", authToken)
+                    .header("Accept-Encoding", ContentEncoding.ACCEPT)
                     .build();
             } else {
                 requestRequest = new Request.Builder()
                     .url(url)
+                    .header("Accept-Encoding", ContentEncoding.ACCEPT)
                     .build();
             }
 
@@ -440,32 +917,46 @@ public class EgaStreamingClient {
                 e = null;
                 try {
                     Response streamingResponse = null;
+                    Call call = null;
                     int tryCount = 4;
                     while (tryCount-->0 && (streamingResponse == null || !streamingResponse.isSuccessful())) {
                         try {
                             if (debug) System.out.println("Version " + VERSION_MAJOR + "." + VERSION_MINOR + " Executing URL: " + requestRequest.url().toString());
-                            streamingResponse = client.newCall(requestRequest).execute();
+                            call = client.newCall(requestRequest);
+                            streamingResponse = call.execute();
+                            if (!streamingResponse.isSuccessful()) {
+                                permit.throttled(streamingResponse.code());
+                                if (tryCount > 0) {
+                                    streamingResponse.close();
+                                    permit.backoff(Backoff.CONNECT, 3 - tryCount);
+                                }
+                            }
                         } catch (Exception ex) {
-                            try {Thread.sleep(500);} catch (InterruptedException ex1) {;}
+                            permit.failed(ex);
+                            permit.backoff(Backoff.CONNECT, 3 - tryCount);
                             System.out.println("Client Execute ERROR: " + ex.toString());
                         }
                     }
                     ResponseBody body = streamingResponse.body();
-                    inputStream = body.byteStream();
+                    String encoding = streamingResponse.header("Content-Encoding");
+                    if (debug && encoding != null) System.out.println("Content-Encoding " + encoding + ": " + uo.url);
+                    inputStream = ContentEncoding.decode(watchdog.watch(body.byteStream(), uo.url, call::cancel), encoding);
 
                     if (debug) System.out.println("Version " + VERSION_MAJOR + "." + VERSION_MINOR + " Trying to Read from Response Stream.");
                     is_ = new NonEmptyInputStream(inputStream);
+                    permit.firstByte();
                     if (is_!=null) {
                         InputStream is__ = null;
                         if (size > 0L && !(uo.url.contains("start")||uo.url.contains("end")) )
-                            is__ = new LimitedInputStream(new BufferedInputStream(is_, bufSize), size);
+                            is__ = new LimitedInputStream(new PooledBufferedInputStream(is_, bufSize), size);
                         else
-                            is__ = new BufferedInputStream(is_, bufSize);
+                            is__ = new PooledBufferedInputStream(is_, bufSize);
                         return is__;
                     }
                 } catch (Exception ex) {
+                    permit.failed(ex);
                     System.out.println("Exception (" + reTries + ") opening/reading URL " + uo.url);
-                    try {Thread.sleep(2000);} catch (InterruptedException ex1) {;}
+                    permit.backoff(Backoff.TRANSFER, 5 - reTries);
                     e = ex;
                     reTries--;
                 }
@@ -476,6 +967,59 @@ public class EgaStreamingClient {
         return null;
     }    
     
+    /*
+     * Several ranges of one URL in one request (see RangeCoalescer), returned
+     * back to back; one request per range where the server does not support
+     * multi-range requests (or garbles its answer), all of them with the
+     * length learnt from the response or one probe. Failures are retried
+     * by the caller
+     */
+    private static InputStream openMultiRange(final TicketResponse.URL_OBJECT uo, List<Tuple<Long, Long>> ranges,
+                                              String authToken, final int bufSize, final boolean debug,
+                                              final AdaptiveConcurrencyLimiter.Permit permit) throws IOException {
+        List<long[]> spans = new ArrayList<>(ranges.size());
+        for (Tuple<Long, Long> r : ranges) spans.add(new long[] {r.a, r.b});
+        long length = -1;
+        if (MultiRangeInputStream.supported(uo.url)) {
+            if (debug) System.out.println("Multi-range request (" + spans.size() + " ranges): " + uo.url);
+            Request.Builder builder = new Request.Builder().url(new URL(uo.url)).header("Range", uo.headers.get("Range"));
+            if (!authToken.isEmpty()) builder.header("Authorization", authToken);
+            Call call = client.newCall(builder.build());
+            Response response;
+            try {
+                response = call.execute();
+            } catch (IOException ex) {
+                permit.failed(ex);
+                throw ex;
+            }
+            if (response.code() == 206) {
+                String boundary = MultiRangeInputStream.boundary(response.header("Content-Type"));
+                long[] single = MultiRangeInputStream.contentRange(response.header("Content-Range"));
+                if (boundary == null && single == null) {
+                    response.close();
+                    throw new IOException("Range response without Content-Range from " + uo.url);
+                }
+                InputStream in = new PooledBufferedInputStream(watchdog.watch(response.body().byteStream(), uo.url, call::cancel), bufSize);
+                permit.firstByte();
+                return (boundary != null) ? new MultiRangeInputStream(in, uo.url, boundary, spans)
+                                          : new MultiRangeInputStream(in, uo.url, single, spans);
+            }
+            length = (response.code() == 200) ? response.body().contentLength()
+                                              : MultiRangeInputStream.contentLength(response.header("Content-Range"));
+            response.close();
+            if (response.code() == 429 || response.code() >= 500) {
+                permit.throttled(response.code());
+                throw new IOException("HTTP " + response.code() + " from " + uo.url);
+            }
+            // 200 (the whole resource, not read), 416, ...
+            MultiRangeInputStream.unsupported(uo.url);
+            if (debug) System.out.println("No multi-range support (HTTP " + response.code() + ") - one request per range: " + uo.url);
+        }
+        if (length < 0) length = EgaSeekableHTTPStream.probeLength(new URL(uo.url), null, authToken.isEmpty() ? null : authToken);
+        final long known = length;
+        return MultiRangeInputStream.sequence(spans, (start, end) -> openTicketURL(uo.withRange(start, end), known, bufSize, debug, permit));
+    }
+
     private static InputStream getSimpleInputStreamFromTicketURL(TicketResponse.URL_OBJECT uo, final int bufSize, boolean debug) 
                 throws IOException, URISyntaxException, ParseException {
         
@@ -557,6 +1101,9 @@ public class EgaStreamingClient {
         @Parameter(names = {"--endpoint-name"}, description = "Endpoint name to be used for querying, resolved via configuration file")
         String endpointName;
 
+        @Parameter(names = {"--config"}, description = "Configuration file of named endpoints and their mirrors (name, reads|variants, URL per line); default ~/.ega-htsget.conf")
+        File config;
+
         @Parameter(names = {"--dataset-id"}, description = "Dataset id to request")
         String datasetId;
 
@@ -581,6 +1128,108 @@ public class EgaStreamingClient {
         @Parameter(names = {"--buffer-size"}, description = "The buffer size to be used for downloaded data")
         int bufferSize=1024*1024;
 
+        @Parameter(names = {"--memory-budget"}, description = "Memory for the buffers of all transfers together (K, M or G suffix, e.g. 64M): transfers wait for memory instead of allocating more; 0 for no limit")
+        String memoryBudget = "0";
+
+        @Parameter(names = {"--direct-buffers"}, description = "Copy downloaded data to files through direct (off-heap) buffers of --memory-budget")
+        boolean directBuffers = false;
+
+        @Parameter(names = {"--trace"}, description = "Write the phases of every request (dns, connect, tls, ttfb, transfer) and the waits of the readers to this file as Chrome trace events, at exit")
+        File trace;
+
+        @Parameter(names = {"--trace-jfr"}, description = "Emit the phases of --trace as JFR events (egastreamingclient.RequestPhase) for a flight recording, e.g. -XX:StartFlightRecording")
+        boolean traceJfr = false;
+
+        @Parameter(names = {"--uncompressed"}, description = "Write uncompressed data (BAM, BCF or VCF text) - BGZF blocks are inflated in parallel")
+        boolean uncompressed = false;
+
+        @Parameter(names = {"--compression-level"}, description = "Re-compress BGZF output at this level (0-9), using parallel block compression")
+        int compressionLevel = -1;
+
+        @Parameter(names = {"--build-index"}, description = "Build the index (BAI for BAM, CSI for BCF, TBI for VCF) next to the output file while downloading")
+        boolean buildIndex = false;
+
+        @Parameter(names = {"--threads"}, description = "The number of threads used for BGZF (de)compression")
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        @Parameter(names = {"--parallel"}, description = "The maximum number of ticket URLs downloaded in parallel")
+        int parallel = 16;
+
+        @Parameter(names = {"--async-requests"}, description = "Fetch ranged URLs on one non-blocking I/O thread, up to this many at a time (e.g. 500); 0 for a thread per transfer (--parallel)")
+        int asyncRequests = 0;
+
+        @Parameter(names = {"--adaptive-concurrency"}, description = "Adapt the number of transfers per data host to its throughput, latency and errors (AIMD)", arity = 1)
+        boolean adaptiveConcurrency = true;
+
+        @Parameter(names = {"--min-throughput"}, description = "Abort and retry a transfer slower than this (bytes/s, e.g. 32768) after a grace period; 0 for no stall detection")
+        long minThroughput = 0;
+
+        @Parameter(names = {"--hedge-factor"}, description = "Start a duplicate request for a transfer taking this many times longer than its peers (e.g. 3.0); 0 for no hedged requests")
+        double hedgeFactor = 0;
+
+        @Parameter(names = {"--max-bandwidth"}, description = "Cap on the aggregate download rate of all transfers in bytes/s, with K, M or G suffix (e.g. 50M); omit for no cap")
+        String maxBandwidth;
+
+        @Parameter(names = {"--bandwidth-burst"}, description = "Bytes that may be read at full speed before --max-bandwidth applies (K, M or G suffix); default one second at the cap")
+        String bandwidthBurst;
+
+        @Parameter(names = {"--resume"}, description = "Keep a journal next to --output-file, and continue an interrupted download of the same ticket from it")
+        boolean resume = false;
+
+        @Parameter(names = {"--manifest"}, description = "Bulk mode: download every entry of this manifest (tab separated: dataset-id, format, region, output-file[, priority])")
+        File manifest;
+
+        @Parameter(names = {"--manifest-jobs"}, description = "The number of manifest entries written at the same time (their URLs share one download queue)")
+        int manifestJobs = 4;
+
+        @Parameter(names = {"--manifest-report"}, description = "Also write the bulk mode summary report to this file (tab separated)")
+        File manifestReport;
+
+        @Parameter(names = {"--serve"}, description = "Server mode: run a local caching htsget endpoint (/reads/, /variants/) on this port, forwarding to the endpoint")
+        int serve = 0;
+
+        @Parameter(names = {"--serve-address"}, description = "The address the local htsget endpoint listens on")
+        String serveAddress = "127.0.0.1";
+
+        @Parameter(names = {"--cache-size"}, description = "Memory for cached data blocks in server mode (K, M or G suffix)")
+        String cacheSize = "256M";
+
+        @Parameter(names = {"--block-cache"}, description = "Memory for blocks of ranged reads (K, M or G suffix, e.g. 256M): overlapping ranges, retries and random access are served from it; 0 for none")
+        String blockCache = "0";
+
+        @Parameter(names = {"--read-ahead"}, description = "With --block-cache: the number of 64K blocks fetched ahead of a sequential read, in the same request")
+        int readAhead = 4;
+
+        @Parameter(names = {"--off-heap-cache"}, description = "Keep the blocks of --block-cache and --cache-size off the Java heap (direct memory, see -XX:MaxDirectMemorySize)")
+        boolean offHeapCache = false;
+
+        @Parameter(names = {"--mirror-dir"}, description = "Keep a local sparse copy of every file read by range in this directory (shared by processes, kept across runs): blocks already there are not downloaded again")
+        File mirrorDir;
+
+        @Parameter(names = {"--coalesce-gap"}, description = "Merge ticket ranges of the same URL at most this many bytes apart into one request (K or M suffix); -1 to fetch every range on its own")
+        String coalesceGap = "64K";
+
+        @Parameter(names = {"--max-ranges"}, description = "Ask for up to this many scattered ranges of a URL in one multi-range request; 1 for one request per range")
+        int maxRanges = 32;
+
+        @Parameter(names = {"--stats"}, description = "Write a JSON summary of the data instead of the data: flag counts, MAPQ, insert size and depth of reads; variants per contig")
+        boolean stats = false;
+
+        @Parameter(names = {"--fields"}, description = "Read fields to fetch, comma separated (QNAME,FLAG,RNAME,POS,MAPQ,CIGAR,RNEXT,PNEXT,TLEN,SEQ,QUAL); BAM is also projected locally")
+        String fields;
+
+        @Parameter(names = {"--tags"}, description = "Read aux tags to fetch, comma separated (\"\" for none)")
+        String tags;
+
+        @Parameter(names = {"--notags"}, description = "Read aux tags not to fetch, comma separated")
+        String notags;
+
+        @Parameter(names = {"--header-cache"}, description = "Directory of cached dataset headers: the header is fetched once (class=header), queries ask for the body only")
+        File headerCache;
+
+        @Parameter(names = {"--fast-start"}, description = "Open connections to the data hosts of earlier runs while the ticket is requested (hosts kept in ~/.ega-htsget-hosts)")
+        boolean fastStart = false;
+
         @Parameter(names = {"--retries"}, description = "The number of tries before declaring failure")
         int retries=3;
 
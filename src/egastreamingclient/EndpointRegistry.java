@@ -0,0 +1,226 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Named endpoints (--endpoint-name) from the configuration file (--config,
+ * by default ~/.ega-htsget.conf), each with one or more mirrors - one per
+ * line, separated by tabs or spaces:
+ *
+ *   name   reads|variants   ticket endpoint URL
+ *
+ * The mirrors are tried best first (see FailoverDownload). A mirror costs
+ * its latency - probed with a request to the endpoint, connection set up
+ * included - plus the time for REFERENCE_BYTES at the throughput measured
+ * in earlier runs (mirrors not measured yet are taken to be as fast as the
+ * fastest). Probes and measurements are kept in RANKING_FILE (mirror,
+ * latency ms, bytes/s, time of the probe per line); mirrors are probed
+ * again, in parallel, once their probe is older than PROBE_TTL. A mirror
+ * that fails a download counts as unreachable until then.
+ */
+class EndpointRegistry {
+    static final File DEFAULT_CONFIG = new File(System.getProperty("user.home"), ".ega-htsget.conf");
+    static final File RANKING_FILE = new File(System.getProperty("user.home"), ".ega-htsget-mirrors");
+    private static final long PROBE_TTL = 60 * 60 * 1000L;
+    private static final int PROBE_TIMEOUT_MS = 5000;
+    private static final double REFERENCE_BYTES = 64.0 * 1024 * 1024;
+
+    private static final Map<String, List<String>> ranked = new ConcurrentHashMap<>(); // by name and kind, per process
+
+    private static final class Mirror {
+        final String url;
+        long latency = -1;      // ms, -1: unreachable
+        double throughput = 0;  // bytes/s, 0: not measured
+        long probed = 0;
+
+        Mirror(String url) {
+            this.url = url;
+        }
+
+        double cost(double fastest) {
+            if (latency < 0) return Double.MAX_VALUE;
+            double rate = (throughput > 0) ? throughput : fastest;
+            return latency / 1000.0 + ((rate > 0) ? REFERENCE_BYTES / rate : 0);
+        }
+    }
+
+    /*
+     * The mirrors of the named endpoint serving this format, best first;
+     * IllegalArgumentException if the name is not configured
+     */
+    static List<String> mirrors(String name, EgaStreamingClient.Format format, File config,
+                                OkHttpClient client, boolean debug) {
+        final String kind = (format == EgaStreamingClient.Format.VCF || format == EgaStreamingClient.Format.BCF) ? "variants" : "reads";
+        final File file = (config != null) ? config : DEFAULT_CONFIG;
+        return ranked.computeIfAbsent(name + "\t" + kind, key -> rank(read(file, name, kind), client, debug));
+    }
+
+    private static List<String> read(File config, String name, String kind) {
+        List<String> urls = new ArrayList<>();
+        try {
+            int n = 0;
+            for (String line : Files.readAllLines(config.toPath(), StandardCharsets.UTF_8)) {
+                n++;
+                if (line.trim().isEmpty() || line.trim().startsWith("#")) continue;
+                String[] f = line.trim().split("\\s+");
+                if (f.length != 3 || !(f[1].equals("reads") || f[1].equals("variants"))) {
+                    throw new IllegalArgumentException(config + " line " + n + ": expected name, reads|variants, URL");
+                }
+                if (f[0].equals(name) && f[1].equals(kind)) urls.add(f[2].endsWith("/") ? f[2] : f[2] + "/");
+            }
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Cannot read endpoint configuration " + config + ": " + ex);
+        }
+        if (urls.isEmpty()) throw new IllegalArgumentException("No " + kind + " endpoint named " + name + " in " + config);
+        return urls;
+    }
+
+    private static List<String> rank(List<String> urls, final OkHttpClient client, boolean debug) {
+        Map<String, Mirror> known = load();
+        List<Mirror> mirrors = new ArrayList<>();
+        List<CompletableFuture<Void>> probes = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (String url : urls) {
+            Mirror m = known.get(url);
+            if (m == null) {
+                m = new Mirror(url);
+                known.put(url, m);
+            }
+            mirrors.add(m);
+            if (urls.size() > 1 && now - m.probed > PROBE_TTL) {
+                final Mirror probed = m;
+                probes.add(CompletableFuture.runAsync(() -> probe(probed, client)));
+            }
+        }
+        if (!probes.isEmpty()) {
+            CompletableFuture.allOf(probes.toArray(new CompletableFuture<?>[0])).join();
+            save(known);
+        }
+        double fastest = 0;
+        for (Mirror m : mirrors) fastest = Math.max(fastest, m.throughput);
+        final double f = fastest;
+        mirrors.sort(Comparator.comparingDouble(m -> m.cost(f))); // stable: ties in configuration order
+        List<String> result = new ArrayList<>();
+        for (Mirror m : mirrors) {
+            if (debug) System.out.println("Mirror " + m.url + ": " + (m.latency < 0 ? "unreachable" : m.latency + " ms")
+                                          + (m.throughput > 0 ? String.format(", %.1f MB/s", m.throughput / (1 << 20)) : ""));
+            result.add(m.url);
+        }
+        return result;
+    }
+
+    /*
+     * Time to the response headers of a request to the endpoint (any status
+     * - an endpoint answers its base URL with an error)
+     */
+    private static void probe(Mirror m, OkHttpClient client) {
+        OkHttpClient probing = client.newBuilder()
+                .connectTimeout(PROBE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .readTimeout(PROBE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .build();
+        long t0 = System.nanoTime();
+        try (Response response = probing.newCall(new Request.Builder().url(m.url).head().build()).execute()) {
+            response.code();
+            m.latency = (System.nanoTime() - t0) / 1000000;
+        } catch (IOException | IllegalArgumentException ex) {
+            m.latency = -1;
+        }
+        m.probed = System.currentTimeMillis();
+    }
+
+    /*
+     * Notes the throughput of a download from a mirror, for the next
+     * rankings (averaged with the earlier ones)
+     */
+    static synchronized void measured(String url, long bytes, long millis) {
+        if (bytes < (1 << 20) || millis <= 0) return; // too little to tell
+        Map<String, Mirror> known = load();
+        Mirror m = known.get(url);
+        if (m == null) {
+            m = new Mirror(url);
+            known.put(url, m);
+        }
+        double rate = bytes * 1000.0 / millis;
+        m.throughput = (m.throughput > 0) ? (m.throughput + rate) / 2 : rate;
+        save(known);
+    }
+
+    /*
+     * Notes a mirror that failed a download: ranked last until probed again
+     */
+    static synchronized void failed(String url) {
+        Map<String, Mirror> known = load();
+        Mirror m = known.get(url);
+        if (m == null) {
+            m = new Mirror(url);
+            known.put(url, m);
+        }
+        m.latency = -1;
+        m.probed = System.currentTimeMillis();
+        save(known);
+    }
+
+    private static Map<String, Mirror> load() {
+        Map<String, Mirror> known = new HashMap<>();
+        if (!RANKING_FILE.exists()) return known;
+        try {
+            for (String line : Files.readAllLines(RANKING_FILE.toPath(), StandardCharsets.UTF_8)) {
+                String[] f = line.split("\t");
+                if (f.length != 4) continue;
+                Mirror m = new Mirror(f[0]);
+                m.latency = Long.parseLong(f[1]);
+                m.throughput = Double.parseDouble(f[2]);
+                m.probed = Long.parseLong(f[3]);
+                known.put(m.url, m);
+            }
+        } catch (IOException | NumberFormatException ex) {
+            System.out.println("Unable to read " + RANKING_FILE + ": " + ex);
+        }
+        return known;
+    }
+
+    /*
+     * Concurrent runs may overwrite each other - the ranking is only a hint
+     */
+    private static void save(Map<String, Mirror> known) {
+        try {
+            List<String> lines = new ArrayList<>();
+            for (Mirror m : known.values()) lines.add(m.url + "\t" + m.latency + "\t" + (long) m.throughput + "\t" + m.probed);
+            File temp = File.createTempFile(".ega-htsget-mirrors", ".tmp", RANKING_FILE.getAbsoluteFile().getParentFile());
+            Files.write(temp.toPath(), lines, StandardCharsets.UTF_8);
+            Files.move(temp.toPath(), RANKING_FILE.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            System.out.println("Unable to update " + RANKING_FILE + ": " + ex);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import htsjdk.samtools.util.Tuple;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * One download, from mirror to mirror (see EndpointRegistry): when the
+ * ticket or data of a mirror fails after retries, the ticket is requested
+ * from the next mirror and the output continues where it stopped - mirrors
+ * serve the same bytes for the same query. The output stream stays open
+ * across mirrors; URLs of the new ticket that lie wholly before that point
+ * (of known size) are not downloaded again, and the first bytes of the URL
+ * it falls into are dropped.
+ *
+ * That only holds if the tickets agree up to that point: the URLs before it
+ * and the one it falls into must have the sizes (ranges, and contents of
+ * data: URLs) of the ones written. If they don't, or a size is unknown, a
+ * file is written again from the start of the new ticket; on stdout the
+ * download fails (TicketMismatchException).
+ *
+ * Output written in place (PositionalWriter) starts over with the next
+ * mirror, --resume continues from its journal.
+ */
+class FailoverDownload implements Closeable {
+    private final File outputFile;
+    private final EgaStreamingClient.Format format;
+    private final EgaStreamingClient.Params params;
+    private final DownloadScheduler scheduler;
+    private CountingOutputStream output = null;
+    private long total = 0; // bytes written in place, or with --resume
+    private List<long[]> written = new ArrayList<>(); // signatures of the URLs of the output, in order
+
+    FailoverDownload(File outputFile, EgaStreamingClient.Format format, EgaStreamingClient.Params params,
+                     DownloadScheduler scheduler) {
+        this.outputFile = outputFile;
+        this.format = format;
+        this.params = params;
+        this.scheduler = scheduler;
+    }
+
+    /*
+     * Downloads the (rest of the) ticket; the bytes written by this call
+     */
+    long download(Iterator<TicketResponse.URL_OBJECT> urls) throws IOException, URISyntaxException, ParseException {
+        if (output == null && PositionalWriter.applies(outputFile, format, params)) {
+            return total = EgaStreamingClient.download(urls, outputFile, format, scheduler, params, 0);
+        }
+        if (output == null) output = new CountingOutputStream(EgaStreamingClient.openOutputStream(outputFile, format, params));
+        Skip skip = new Skip(urls, output.count, written);
+        long before = output.count;
+        boolean mismatch = false;
+        try {
+            EgaStreamingClient.writeTicketData(EgaStreamingClient.coalesce(skip, params), skip.output(output),
+                                               scheduler, params, 0, null);
+        } catch (UncheckedIOException ex) { // reading the ticket failed, or it differs
+            mismatch = ex.getCause() instanceof TicketMismatchException && outputFile != null;
+            if (!mismatch) throw ex.getCause();
+            System.out.println(ex.getCause().getMessage() + " - writing " + outputFile + " again");
+        } finally {
+            written = mismatch ? new ArrayList<>() : skip.seen;
+        }
+        if (mismatch) { // nothing of this ticket is written yet
+            output.close();
+            output = null;
+            return download(skip.again());
+        }
+        if (skip.remaining > 0) throw new IOException("The ticket ends before the " + before + " bytes written already");
+        return output.count - before;
+    }
+
+    long download(TicketResponse r) throws IOException, URISyntaxException, ParseException {
+        if (params.resume || output == null && PositionalWriter.applies(outputFile, format, params)) {
+            return total = EgaStreamingClient.download(r, outputFile, format, scheduler, params, 0);
+        }
+        return download(Arrays.asList(r.urls).iterator());
+    }
+
+    /*
+     * Bytes of the output so far
+     */
+    long written() {
+        return (output == null) ? total : output.count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (output != null) output.close();
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /*
+     * The ticket of another mirror differs from the one written so far
+     */
+    static class TicketMismatchException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TicketMismatchException(String message) {
+            super(message);
+        }
+    }
+
+    /*
+     * The URLs of a ticket from 'bytes' on: URLs of known size before it
+     * are dropped, the bytes of the next URL up to it are dropped from the
+     * output. Each of these is checked against the URL at its place in the
+     * output written so far ('previous').
+     */
+    private static final class Skip implements Iterator<TicketResponse.URL_OBJECT> {
+        private final Iterator<TicketResponse.URL_OBJECT> urls;
+        private final List<long[]> previous;
+        final List<long[]> seen = new ArrayList<>();
+        private final List<TicketResponse.URL_OBJECT> skipped = new ArrayList<>();
+        private long remaining;
+        private boolean skipping;
+        private TicketResponse.URL_OBJECT next = null;
+
+        Skip(Iterator<TicketResponse.URL_OBJECT> urls, long bytes, List<long[]> previous) {
+            this.urls = urls;
+            this.previous = previous;
+            this.remaining = bytes;
+            this.skipping = bytes > 0;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && urls.hasNext()) {
+                TicketResponse.URL_OBJECT uo = urls.next();
+                long[] signature = signature(uo);
+                seen.add(signature);
+                if (skipping && remaining > 0) {
+                    skipped.add(uo);
+                    int i = seen.size() - 1;
+                    if (signature[0] < 0 || i >= previous.size() || !Arrays.equals(signature, previous.get(i))) {
+                        throw new UncheckedIOException(new TicketMismatchException("The ticket differs from the one of the previous mirror at URL " + (i + 1)
+                                                                                  + (signature[0] < 0 ? " (size unknown)" : "")));
+                    }
+                    if (signature[0] <= remaining) {
+                        remaining -= signature[0];
+                        continue;
+                    }
+                }
+                skipping = false;
+                next = uo;
+            }
+            return next != null;
+        }
+
+        /*
+         * The whole ticket, for a new start
+         */
+        Iterator<TicketResponse.URL_OBJECT> again() {
+            final Iterator<TicketResponse.URL_OBJECT> first = skipped.iterator();
+            return new Iterator<TicketResponse.URL_OBJECT>() {
+                @Override
+                public boolean hasNext() {
+                    return first.hasNext() || urls.hasNext();
+                }
+
+                @Override
+                public TicketResponse.URL_OBJECT next() {
+                    return first.hasNext() ? first.next() : urls.next();
+                }
+            };
+        }
+
+        @Override
+        public TicketResponse.URL_OBJECT next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            TicketResponse.URL_OBJECT uo = next;
+            next = null;
+            return uo;
+        }
+
+        /*
+         * {size, hash of the content (data: URLs) or of the range lengths};
+         * size -1 if unknown
+         */
+        private static long[] signature(TicketResponse.URL_OBJECT uo) {
+            try {
+                if (uo.url.startsWith("data")) {
+                    byte[] data = TicketResponse.fromDataURI(new URI(uo.url));
+                    return new long[] {data.length, Arrays.hashCode(data)};
+                }
+                if (uo.getRanges() == null) return new long[] {-1, 0};
+                long size = 0, hash = 1;
+                for (Tuple<Long, Long> range : uo.getRanges()) {
+                    size += range.b - range.a + 1;
+                    hash = 31 * hash + (range.b - range.a + 1);
+                }
+                return new long[] {size, hash};
+            } catch (URISyntaxException | ParseException | IllegalArgumentException ex) {
+                return new long[] {-1, 0};
+            }
+        }
+
+        /*
+         * The output, without the bytes still to be skipped once the URLs
+         * are kept again
+         */
+        OutputStream output(OutputStream out) {
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    int drop = (int) Math.min(len, remaining);
+                    remaining -= drop;
+                    if (len > drop) out.write(b, off + drop, len - drop);
+                }
+
+                @Override
+                public void close() {
+                    // the output stays open for the next mirror
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Header cache (--header-cache): the header of a dataset is fetched once
+ * (htsget class=header) and kept on disk, keyed by endpoint, dataset and
+ * format. Region queries then ask for the body only (class=body), and the
+ * cached header is spliced in front of it - as an embedded data URL, so
+ * the output stages see an ordinary ticket.
+ *
+ * Servers that don't support the classes are detected on the way: a header
+ * ticket that carries body data is not cached, and a body ticket whose URLs
+ * are not marked as body (or header) is downloaded as it is, without the
+ * cached header.
+ */
+class HeaderCache {
+    private static final long MAX_HEADER_BYTES = 8L * 1024 * 1024; // of a header ticket without classes
+
+    private final File dir;
+    private final EgaStreamingClient.Params params;
+    private final String oauthToken;
+    private final ConcurrentHashMap<String, CompletableFuture<byte[]>> headers = new ConcurrentHashMap<>();
+
+    HeaderCache(File dir, EgaStreamingClient.Params params, String oauthToken) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create header cache directory " + dir);
+        this.dir = dir;
+        this.params = params;
+        this.oauthToken = oauthToken;
+    }
+
+    /*
+     * The header of the dataset in this format - from the cache, or fetched
+     * and cached; null if the endpoint doesn't serve it on its own, or it
+     * can't be had (the query is then made for the complete data)
+     */
+    byte[] get(final String datasetId, final EgaStreamingClient.Format format) {
+        final String endpoint = EgaStreamingClient.endpointUrl(format, params);
+        final String key = endpoint + "\t" + datasetId + "\t" + format;
+        CompletableFuture<byte[]> f = new CompletableFuture<>();
+        CompletableFuture<byte[]> shared = headers.putIfAbsent(key, f);
+        if (shared == null) { // loaded once per process, even for concurrent queries
+            try {
+                f.complete(load(endpoint, datasetId, format, new File(dir, name(key))));
+            } catch (Exception ex) {
+                headers.remove(key);
+                f.completeExceptionally(ex);
+            }
+        } else {
+            f = shared;
+        }
+        try {
+            return f.join();
+        } catch (CompletionException ex) {
+            System.out.println("Header of " + datasetId + " " + format + " not available: " + ex.getCause());
+            return null;
+        }
+    }
+
+    private byte[] load(String endpoint, String datasetId, EgaStreamingClient.Format format, File file) throws Exception {
+        if (file.isFile()) {
+            if (params.debug) System.out.println("Header of " + datasetId + " " + format + " from " + file);
+            return Files.readAllBytes(file.toPath());
+        }
+        Query query = new Query();
+        query.dataClass = "header";
+        String url = EgaStreamingClient.formatURL(endpoint, datasetId, query, format);
+        TicketResponse r = EgaStreamingClient.getTicketOk(new URL(url), oauthToken, false);
+        if (r == null || r.urls == null || !headerOnly(r)) {
+            if (params.debug) System.out.println("No separate header from " + endpoint + " - downloading complete data");
+            return null;
+        }
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        try (DownloadScheduler scheduler = EgaStreamingClient.newScheduler(params)) {
+            EgaStreamingClient.writeTicketData(new RangeCoalescer(Arrays.asList(r.urls).iterator(), -1, 0, 1),
+                                               header, scheduler, params, 0, null);
+        }
+        File temp = File.createTempFile(file.getName(), ".tmp", dir);
+        Files.write(temp.toPath(), header.toByteArray());
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (params.debug) System.out.println("Cached header of " + datasetId + " " + format + " (" + header.size() + " bytes) in " + file);
+        return header.toByteArray();
+    }
+
+    /*
+     * Whether a class=header ticket holds the header only: every URL marked
+     * as header, or (servers that don't mark their URLs) small and of known size
+     */
+    private static boolean headerOnly(TicketResponse r) throws ParseException {
+        long size = 0;
+        boolean marked = true;
+        for (TicketResponse.URL_OBJECT uo : r.urls) {
+            if ("header".equals(uo.dataClass)) continue;
+            if (uo.dataClass != null) return false;
+            marked = false;
+            if (uo.url.startsWith("data")) {
+                size += uo.url.length() * 3 / 4;
+            } else if (uo.getRange() != null) {
+                size += uo.getRange().b - uo.getRange().a + 1;
+            } else {
+                return false;
+            }
+        }
+        return marked || size <= MAX_HEADER_BYTES;
+    }
+
+    private static String name(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest) sb.append(String.format("%02x", b));
+            return sb.append(".header").toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /*
+     * The URLs of a body ticket with the header in front: URLs of class
+     * header are dropped, the cached header goes first - unless the server
+     * ignored class=body (URLs not marked), then the URLs are passed on as
+     * they are
+     */
+    static Iterator<TicketResponse.URL_OBJECT> splice(final byte[] header, final Iterator<TicketResponse.URL_OBJECT> urls) {
+        return new Iterator<TicketResponse.URL_OBJECT>() {
+            private final ArrayDeque<TicketResponse.URL_OBJECT> next = new ArrayDeque<>(2);
+            private boolean decided = false, dropped = false;
+
+            @Override
+            public boolean hasNext() {
+                while (next.isEmpty() && urls.hasNext()) {
+                    TicketResponse.URL_OBJECT uo = urls.next();
+                    if ("header".equals(uo.dataClass)) {
+                        dropped = true;
+                        continue;
+                    }
+                    if (!decided) {
+                        decided = true;
+                        if (dropped || "body".equals(uo.dataClass)) next.add(dataUrl(header));
+                    }
+                    next.add(uo);
+                }
+                if (next.isEmpty() && !decided && dropped) { // no body data in the region
+                    decided = true;
+                    next.add(dataUrl(header));
+                }
+                return !next.isEmpty();
+            }
+
+            @Override
+            public TicketResponse.URL_OBJECT next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return next.poll();
+            }
+        };
+    }
+
+    static TicketResponse splice(byte[] header, TicketResponse r) {
+        if (r == null || r.urls == null) return r;
+        List<TicketResponse.URL_OBJECT> urls = new ArrayList<>();
+        Iterator<TicketResponse.URL_OBJECT> it = splice(header, Arrays.asList(r.urls).iterator());
+        while (it.hasNext()) urls.add(it.next());
+        TicketResponse spliced = new TicketResponse();
+        spliced.format = r.format;
+        spliced.urls = urls.toArray(new TicketResponse.URL_OBJECT[urls.size()]);
+        return spliced;
+    }
+
+    private static TicketResponse.URL_OBJECT dataUrl(byte[] header) {
+        TicketResponse.URL_OBJECT uo = new TicketResponse.URL_OBJECT("data:application/octet-stream;base64," + Base64.getEncoder().encodeToString(header));
+        uo.dataClass = "header";
+        return uo;
+    }
+}
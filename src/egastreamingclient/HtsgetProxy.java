@@ -0,0 +1,491 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Server mode: a local htsget endpoint in front of the configured upstream
+ * endpoint, for many processes on one node reading the same data.
+ *
+ *   GET /reads/{id}?...      ticket from the files endpoint
+ *   GET /variants/{id}?...   ticket from the variants endpoint
+ *   GET /data/{token}        data of a rewritten ticket URL
+ *
+ * Tickets are forwarded upstream (with the client's Authorization header, or
+ * the proxy's own token) and their data URLs are rewritten to point at the
+ * proxy; the upstream URL and its headers stay in the proxy. Byte ranges are
+ * served from a shared BlockCache, so header and index blocks read by every
+ * process are fetched upstream once. All upstream requests go through one
+ * connection pool, the per host concurrency limit and the bandwidth cap, and
+ * are granted round robin between clients (FairGate) so one busy process
+ * can't starve the others. A client is identified by its X-Htsget-Client
+ * header, otherwise by its connection.
+ */
+class HtsgetProxy {
+    static final String CLIENT_HEADER = "X-Htsget-Client";
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int MAX_TOKENS = 100000;
+    private static final String TICKET_TYPE = "application/vnd.ga4gh.htsget.v1.0.0+json; charset=utf-8";
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    private final EgaStreamingClient.Params params;
+    private final OkHttpClient client;
+    private final String oauthToken;
+    private final BlockCache cache;
+    private final FairGate gate;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Long> lengths = new ConcurrentHashMap<>(); // upstream URL -> total length
+    private final Map<String, Upstream> upstreams = new Tokens();
+
+    /*
+     * The rewritten URLs by token, the least recently used dropped beyond
+     * MAX_TOKENS
+     */
+    private static final class Tokens extends LinkedHashMap<String, Upstream> {
+        private static final long serialVersionUID = 1L;
+
+        Tokens() {
+            super(1024, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Upstream> eldest) {
+            return size() > MAX_TOKENS;
+        }
+    }
+
+    /*
+     * A rewritten ticket URL
+     */
+    private static final class Upstream {
+        final String url;
+        final Map<String, String> headers; // sent upstream, without Range
+        final boolean ranged;              // byte range of a file, rather than generated data
+
+        Upstream(String url, Map<String, String> headers, boolean ranged) {
+            this.url = url;
+            this.headers = headers;
+            this.ranged = ranged;
+        }
+    }
+
+    HtsgetProxy(EgaStreamingClient.Params params, OkHttpClient client, String oauthToken) {
+        this.params = params;
+        // One pool for all clients, large enough to keep a connection per transfer alive
+        this.client = client.newBuilder()
+                .connectionPool(new ConnectionPool(Math.max(5, params.parallel), 5, TimeUnit.MINUTES))
+                .build();
+        this.oauthToken = oauthToken;
+        this.cache = new BlockCache(BLOCK_SIZE, BandwidthGovernor.parseBytes(params.cacheSize), params.offHeapCache);
+        this.gate = new FairGate(Math.max(1, params.parallel));
+        AdaptiveConcurrencyLimiter.configure(4, params.parallel, params.adaptiveConcurrency, params.debug);
+    }
+
+    void start() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getByName(params.serveAddress), params.serve), 0);
+        server.createContext("/reads/", ex -> handle(ex, () -> ticket(ex, EgaStreamingClient.Format.BAM)));
+        server.createContext("/variants/", ex -> handle(ex, () -> ticket(ex, EgaStreamingClient.Format.VCF)));
+        server.createContext("/data/", ex -> handle(ex, () -> data(ex)));
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        System.out.println("Serving htsget on http://" + params.serveAddress + ":" + params.serve + "/reads/ and /variants/");
+    }
+
+    private interface Handler {
+        void run() throws IOException;
+    }
+
+    private void handle(HttpExchange ex, Handler handler) {
+        try {
+            if (!"GET".equals(ex.getRequestMethod())) {
+                send(ex, 405, "text/plain", "Only GET is supported".getBytes(StandardCharsets.UTF_8));
+            } else {
+                handler.run();
+            }
+        } catch (Exception e) {
+            if (params.debug) System.out.println("Proxy " + ex.getRequestURI() + ": " + e);
+            if (ex.getResponseCode() < 0) {
+                try {
+                    send(ex, 502, "text/plain", String.valueOf(e).getBytes(StandardCharsets.UTF_8));
+                } catch (IOException ignored) {
+                }
+            }
+        } finally {
+            ex.close();
+        }
+    }
+
+    private static void send(HttpExchange ex, int code, String contentType, byte[] body) throws IOException {
+        if (contentType != null) ex.getResponseHeaders().set("Content-Type", contentType);
+        ex.sendResponseHeaders(code, body.length > 0 ? body.length : -1);
+        if (body.length > 0) ex.getResponseBody().write(body);
+    }
+
+    private String clientKey(HttpExchange ex) {
+        String id = ex.getRequestHeaders().getFirst(CLIENT_HEADER);
+        return (id != null) ? id : ex.getRemoteAddress().toString();
+    }
+
+    private Request.Builder upstreamRequest(String url, Map<String, String> headers) {
+        Request.Builder rb = new Request.Builder().url(url);
+        for (Map.Entry<String, String> e : headers.entrySet()) rb.header(e.getKey(), e.getValue());
+        return rb;
+    }
+
+    /*
+     * Forwards a ticket request and rewrites the data URLs of the ticket
+     */
+    private void ticket(HttpExchange ex, EgaStreamingClient.Format format) throws IOException {
+        String path = ex.getRequestURI().getRawPath();
+        String id = path.substring(path.indexOf('/', 1) + 1);
+        if (id.isEmpty()) {
+            send(ex, 404, "text/plain", "No id".getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        String query = ex.getRequestURI().getRawQuery();
+        String url = EgaStreamingClient.endpointUrl(format, params) + id + (query == null ? "" : "?" + query);
+        Map<String, String> headers = new HashMap<>();
+        String auth = ex.getRequestHeaders().getFirst("Authorization");
+        if (auth == null && oauthToken != null && oauthToken.length() > 0) auth = "Bearer " + oauthToken;
+        if (auth != null) headers.put("Authorization", auth);
+        if (params.debug) System.out.println("Proxy ticket " + url + " for " + clientKey(ex));
+
+        byte[] body;
+        int code;
+        String contentType;
+        try (Response response = client.newCall(upstreamRequest(url, headers).build()).execute()) {
+            body = response.body().bytes();
+            code = response.code();
+            contentType = response.header("Content-Type");
+        }
+        if (code != 200) { // htsget errors pass through unchanged
+            send(ex, code, contentType, body);
+            return;
+        }
+        TicketResponse ticket;
+        try (TicketReader reader = new TicketReader(new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8))) {
+            ticket = reader.readAll();
+        }
+        if (ticket == null) { // not a ticket - nothing to rewrite
+            send(ex, code, contentType, body);
+            return;
+        }
+        if (ticket.urls != null) {
+            String host = ex.getRequestHeaders().getFirst("Host");
+            if (host == null) host = params.serveAddress + ":" + params.serve;
+            for (TicketResponse.URL_OBJECT uo : ticket.urls) rewrite(uo, "http://" + host + "/data/");
+        }
+        StringWriter out = new StringWriter();
+        TicketReader.write(ticket, out, false);
+        send(ex, 200, TICKET_TYPE, out.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void rewrite(TicketResponse.URL_OBJECT uo, String base) {
+        if (uo.url == null || uo.url.startsWith("data:")) return;
+        Map<String, String> headers = new HashMap<>();
+        String range = null;
+        if (uo.headers != null) {
+            for (Map.Entry<String, String> e : uo.headers.entrySet()) {
+                if ("Range".equalsIgnoreCase(e.getKey())) range = e.getValue();
+                else headers.put(e.getKey(), e.getValue());
+            }
+        }
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder token = new StringBuilder();
+        for (byte b : bytes) token.append(String.format("%02x", b));
+        synchronized (upstreams) {
+            upstreams.put(token.toString(), new Upstream(uo.url, headers, range != null));
+        }
+        // The client keeps only the range; credentials stay in the proxy
+        uo.url = base + token;
+        uo.headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        if (range != null) uo.headers.put("Range", range);
+    }
+
+    /*
+     * Serves the data of a rewritten URL - byte ranges from the block cache,
+     * whole (server generated) resources passed through
+     */
+    private void data(HttpExchange ex) throws IOException {
+        String token = ex.getRequestURI().getRawPath().substring("/data/".length());
+        Upstream up;
+        synchronized (upstreams) {
+            up = upstreams.get(token);
+        }
+        if (up == null) {
+            send(ex, 404, "text/plain", "Unknown or expired data URL".getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        String client = clientKey(ex);
+        if (!up.ranged) {
+            passThrough(ex, up, client);
+            return;
+        }
+        // Without a Range header the whole resource is served, as by the upstream server
+        long start = 0, end = Long.MAX_VALUE;
+        String range = ex.getRequestHeaders().getFirst("Range");
+        if (range != null) {
+            Matcher m = RANGE.matcher(range.trim());
+            if (!m.matches()) {
+                send(ex, 416, "text/plain", ("Unsupported range " + range).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            start = Long.parseLong(m.group(1));
+            if (!m.group(2).isEmpty()) end = Long.parseLong(m.group(2));
+        }
+
+        BlockCache.Loader loader = (resource, first, count) -> load(up, client, first, count);
+        long block = start / BLOCK_SIZE;
+        // Length probes (a GET read only for Content-Length) get a single block first
+        int count = (end == Long.MAX_VALUE && !lengths.containsKey(up.url)) ? 1 : runLength(block, end);
+        List<byte[]> run = cache.get(up.url, block, count, loader);
+        // The length of the resource is known after the first fetch, or from the first short block
+        Long total = lengths.get(up.url);
+        for (int i = 0; i < run.size() && total == null; i++) {
+            if (run.get(i).length < BLOCK_SIZE) total = (block + i) * BLOCK_SIZE + run.get(i).length;
+        }
+        if (total != null) end = Math.min(end, total - 1);
+        if (start > end) {
+            ex.getResponseHeaders().set("Content-Range", "bytes */" + (total == null ? "*" : total));
+            send(ex, 416, null, new byte[0]);
+            return;
+        }
+        ex.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        if (range != null) {
+            ex.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + (total == null ? "*" : total));
+            ex.sendResponseHeaders(206, end - start + 1);
+        } else {
+            ex.sendResponseHeaders(200, total == null ? 0 : total); // chunked if the length is unknown
+        }
+        OutputStream os = ex.getResponseBody();
+        long pos = start;
+        while (true) {
+            for (byte[] data : run) {
+                int from = (int) (pos - block * BLOCK_SIZE);
+                int to = (int) Math.min(data.length, end - block * BLOCK_SIZE + 1);
+                if (from < to) {
+                    os.write(data, from, to - from);
+                    pos += to - from;
+                }
+                block++;
+                if (data.length < BLOCK_SIZE) break;
+            }
+            if (pos > end || run.isEmpty() || run.get(run.size() - 1).length < BLOCK_SIZE) break;
+            run = cache.get(up.url, block, runLength(block, end), loader);
+        }
+        if (pos <= end) throw new IOException("Upstream data ended at " + pos + " of " + up.url);
+    }
+
+    private static int runLength(long block, long end) {
+        return (int) Math.max(1, Math.min(BlockCache.MAX_RUN, end / BLOCK_SIZE - block + 1));
+    }
+
+    /*
+     * Loads blocks first .. first+count-1 of an upstream resource in one
+     * range request, in the client's turn
+     */
+    private List<byte[]> load(Upstream up, String clientKey, long first, int count) throws IOException {
+        long from = first * BLOCK_SIZE, to = (first + count) * BLOCK_SIZE - 1;
+        Request request = upstreamRequest(up.url, up.headers).header("Range", "bytes=" + from + "-" + to).build();
+        gate.acquire(clientKey);
+        try {
+            IOException failure = null;
+            for (int attempt = 0; attempt < Math.max(1, params.retries); attempt++) {
+                if (attempt > 0 && !Backoff.TRANSFER.sleep(attempt - 1)) break;
+                AdaptiveConcurrencyLimiter.Permit permit;
+                try {
+                    permit = AdaptiveConcurrencyLimiter.forUrl(up.url).acquire();
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException("Interrupted while waiting for a connection slot");
+                }
+                try (Response response = client.newCall(request).execute()) {
+                    if (response.code() == 416) return Collections.emptyList(); // beyond the end
+                    if (!response.isSuccessful()) {
+                        permit.throttled(response.code());
+                        failure = new IOException("HTTP " + response.code() + " from " + up.url);
+                        continue;
+                    }
+                    permit.firstByte();
+                    String contentRange = response.header("Content-Range");
+                    int slash = (contentRange == null) ? -1 : contentRange.lastIndexOf('/');
+                    if (slash > 0 && !contentRange.endsWith("*")) {
+                        lengths.put(up.url, Long.parseLong(contentRange.substring(slash + 1).trim()));
+                    }
+                    try (InputStream in = permit.track(response.body().byteStream())) {
+                        if (response.code() == 200) skipFully(in, from); // range ignored by the server
+                        List<byte[]> blocks = new ArrayList<>(count);
+                        for (int i = 0; i < count; i++) {
+                            byte[] block = readBlock(in);
+                            BandwidthGovernor.charge(block.length);
+                            blocks.add(block);
+                            if (block.length < BLOCK_SIZE) break;
+                        }
+                        if (params.debug) System.out.println("Proxy fetched " + up.url + " bytes=" + from + "-" + to + " for " + clientKey);
+                        return blocks;
+                    }
+                } catch (InterruptedIOException ex) {
+                    throw ex;
+                } catch (IOException ex) {
+                    permit.failed(ex);
+                    failure = ex;
+                } finally {
+                    permit.release();
+                }
+            }
+            throw (failure != null) ? failure : new InterruptedIOException("Interrupted before retry");
+        } finally {
+            gate.release();
+        }
+    }
+
+    private static byte[] readBlock(InputStream in) throws IOException {
+        byte[] block = new byte[BLOCK_SIZE];
+        int n = 0, r;
+        while (n < BLOCK_SIZE && (r = in.read(block, n, BLOCK_SIZE - n)) >= 0) n += r;
+        return (n == BLOCK_SIZE) ? block : Arrays.copyOf(block, n);
+    }
+
+    private static void skipFully(InputStream in, long bytes) throws IOException {
+        while (bytes > 0) {
+            long n = in.skip(bytes);
+            if (n <= 0) {
+                if (in.read() < 0) return;
+                n = 1;
+            }
+            bytes -= n;
+        }
+    }
+
+    /*
+     * Streams a resource without a byte range (generated upstream) uncached
+     */
+    private void passThrough(HttpExchange ex, Upstream up, String clientKey) throws IOException {
+        gate.acquire(clientKey);
+        try (Response response = client.newCall(upstreamRequest(up.url, up.headers).build()).execute()) {
+            long length = response.body().contentLength();
+            String contentType = response.header("Content-Type");
+            if (contentType != null) ex.getResponseHeaders().set("Content-Type", contentType);
+            ex.sendResponseHeaders(response.code(), length < 0 ? 0 : (length == 0 ? -1 : length));
+            byte[] buf = new byte[BLOCK_SIZE];
+            try (InputStream in = response.body().byteStream()) {
+                OutputStream os = ex.getResponseBody();
+                int n;
+                while ((n = in.read(buf)) >= 0) {
+                    BandwidthGovernor.charge(n);
+                    os.write(buf, 0, n);
+                }
+            }
+        } finally {
+            gate.release();
+        }
+    }
+
+    /**
+     * Counting semaphore that grants waiting permits round robin between
+     * clients, one at a time, instead of in arrival order.
+     */
+    static final class FairGate {
+        private static final class Waiter {
+            boolean granted = false;
+        }
+
+        private final int permits;
+        private int inUse = 0;
+        private final Map<String, ArrayDeque<Waiter>> waiting = new HashMap<>();
+        private final ArrayDeque<String> turns = new ArrayDeque<>(); // clients with waiters, next first
+
+        FairGate(int permits) {
+            this.permits = permits;
+        }
+
+        synchronized void acquire(String client) throws InterruptedIOException {
+            Waiter w = new Waiter();
+            ArrayDeque<Waiter> queue = waiting.get(client);
+            if (queue == null) {
+                waiting.put(client, queue = new ArrayDeque<>());
+                turns.add(client);
+            }
+            queue.add(w);
+            grant();
+            try {
+                while (!w.granted) wait();
+            } catch (InterruptedException ex) {
+                if (w.granted) {
+                    release();
+                } else {
+                    queue.remove(w);
+                    if (queue.isEmpty()) {
+                        waiting.remove(client);
+                        turns.remove(client);
+                    }
+                }
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for an upstream slot");
+            }
+        }
+
+        synchronized void release() {
+            inUse--;
+            grant();
+        }
+
+        private void grant() {
+            boolean granted = false;
+            while (inUse < permits && !turns.isEmpty()) {
+                String client = turns.poll();
+                ArrayDeque<Waiter> queue = waiting.get(client);
+                queue.poll().granted = true;
+                inUse++;
+                granted = true;
+                if (queue.isEmpty()) waiting.remove(client);
+                else turns.add(client); // back of the line
+            }
+            if (granted) notifyAll();
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Inflater;
+
+/**
+ * Pass-through output stream that builds the index of the BGZF file being
+ * written: BAI for BAM, CSI for BCF and tabix for VCF.gz.
+ *
+ * A copy of every chunk is handed to a background thread, which cuts it into
+ * BGZF blocks, inflates them, splits the records and feeds their virtual file
+ * offsets to a BinningIndexBuilder. The index file is written when the stream
+ * is closed. A failure to index never fails the download - the index is
+ * skipped with a warning instead.
+ */
+public class IndexingOutputStream extends FilterOutputStream {
+    private static final byte[] EOF_MARKER = new byte[0];
+
+    private final File indexFile;
+    private final EgaStreamingClient.Format format;
+    private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(64);
+    private final Thread indexerThread;
+    private volatile Throwable failure = null;
+    private boolean closed = false;
+
+    // Only accessed from the indexer thread
+    private final Inflater inflater = new Inflater(true);
+    private final BinningIndexBuilder builder;
+    private final BgzfBlockSplitter splitter;
+    private final RecordStreamParser parser;
+    private final ArrayDeque<long[]> blocks = new ArrayDeque<>(); // {address, uncompressed start, length, next address}
+    private long uncompressed = 0;
+    private final List<String> names = new ArrayList<>();
+    private final Map<String, Integer> nameIndex = new HashMap<>();
+
+    public IndexingOutputStream(OutputStream out, File dataFile, EgaStreamingClient.Format format) {
+        super(out);
+        this.format = format;
+        this.indexFile = indexFile(dataFile, format);
+        this.builder = (format == EgaStreamingClient.Format.BCF) ? new BinningIndexBuilder(14, 5) : new BinningIndexBuilder();
+        this.splitter = new BgzfBlockSplitter(this::block);
+        this.parser = RecordStreamParser.forFormat(format, new RecordStreamParser.RecordHandler() {
+            @Override
+            public void header(byte[] b, int off, int len, List<String> contigs) {
+                if (format != EgaStreamingClient.Format.VCF) builder.references(contigs.size());
+            }
+
+            @Override
+            public void record(byte[] b, int off, int len, long offset) {
+                index(b, off, len, offset);
+            }
+        });
+        this.indexerThread = new Thread(this::run, "StreamingIndexer");
+        this.indexerThread.setDaemon(true);
+        this.indexerThread.start();
+    }
+
+    static File indexFile(File dataFile, EgaStreamingClient.Format format) {
+        switch (format) {
+            case BAM: return new File(dataFile.getPath() + ".bai");
+            case BCF: return new File(dataFile.getPath() + ".csi");
+            case VCF: return new File(dataFile.getPath() + ".tbi");
+            default: throw new IllegalArgumentException("Streaming index is not available for " + format);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        if (len > 0) {
+            enqueue(Arrays.copyOfRange(b, off, off + len));
+        }
+    }
+
+    /*
+     * Blocks while the indexer is behind, but gives up once it has failed
+     */
+    private void enqueue(byte[] chunk) throws IOException {
+        try {
+            while (failure == null && !queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {}
+        } catch (InterruptedException ex) {
+            throw new IOException("Interrupted while queueing data for indexing", ex);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            out.close();
+        } finally {
+            try {
+                enqueue(EOF_MARKER);
+                indexerThread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            inflater.end();
+        }
+        if (failure != null) {
+            System.err.println("WARNING: index " + indexFile + " not written: " + failure.toString());
+        }
+    }
+
+    private void run() {
+        try {
+            byte[] chunk;
+            while ((chunk = queue.take()) != EOF_MARKER) {
+                splitter.feed(chunk, 0, chunk.length);
+            }
+            if (splitter.pending() > 0 || parser.pending() > 0) {
+                throw new IOException("Stream ended inside a BGZF block or record");
+            }
+            try (OutputStream os = new BufferedOutputStream(new FileOutputStream(indexFile))) {
+                switch (format) {
+                    case BAM:
+                        builder.writeBai(os);
+                        break;
+                    case BCF:
+                        try (OutputStream bgzf = new ParallelBgzfDeflaterOutputStream(os, 6, 1)) {
+                            builder.writeCsi(bgzf);
+                        }
+                        break;
+                    case VCF:
+                        try (OutputStream bgzf = new ParallelBgzfDeflaterOutputStream(os, 6, 1)) {
+                            builder.writeTbi(bgzf, names);
+                        }
+                        break;
+                }
+            }
+        } catch (Throwable th) {
+            failure = th;
+            queue.clear();
+        }
+    }
+
+    private void block(byte[] block, long address) throws IOException {
+        byte[] data = BgzfBlockSplitter.inflate(block, inflater);
+        if (data.length > 0) {
+            blocks.add(new long[] {address, uncompressed, data.length, address + block.length});
+            uncompressed += data.length;
+            parser.feed(data, 0, data.length);
+        }
+    }
+
+    /*
+     * Virtual file offset of a position in the uncompressed stream. Positions
+     * are requested in increasing order, so blocks behind them are dropped.
+     */
+    private long virtualOffset(long position) {
+        while (!blocks.isEmpty()) {
+            long[] b = blocks.peek();
+            if (position < b[1] + b[2]) {
+                return (b[0] << 16) | (position - b[1]);
+            }
+            if (position == b[1] + b[2] && blocks.size() == 1) {
+                return b[3] << 16;
+            }
+            blocks.poll();
+        }
+        throw new IllegalStateException("Offset " + position + " is beyond the inflated data");
+    }
+
+    private void index(byte[] b, int off, int len, long offset) {
+        long vStart = virtualOffset(offset);
+        long vEnd = virtualOffset(offset + len);
+        switch (format) {
+            case BAM: {
+                int flag = RecordStreamParser.Bam.flag(b, off);
+                int refId = RecordStreamParser.Bam.refId(b, off);
+                int pos = RecordStreamParser.Bam.pos(b, off);
+                int end = ((flag & 4) != 0) ? pos + 1 : RecordStreamParser.Bam.end(b, off);
+                builder.add(pos < 0 ? -1 : refId, pos, end, vStart, vEnd, (flag & 4) == 0);
+                break;
+            }
+            case BCF: {
+                builder.add(RecordStreamParser.Bcf.contig(b, off), RecordStreamParser.Bcf.pos(b, off),
+                            RecordStreamParser.Bcf.end(b, off), vStart, vEnd, true);
+                break;
+            }
+            case VCF: {
+                String[] columns = RecordStreamParser.Vcf.columns(b, off, len);
+                Integer refId = nameIndex.get(columns[0]);
+                if (refId == null) {
+                    refId = names.size();
+                    names.add(columns[0]);
+                    nameIndex.put(columns[0], refId);
+                }
+                builder.add(refId, Integer.parseInt(columns[1]) - 1, RecordStreamParser.Vcf.end(columns), vStart, vEnd, true);
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A span of RequestTracer as a JFR event. Only loaded once RequestTracer
+ * has found jdk.jfr in the JVM - the client runs on JVMs without it.
+ */
+@Name("egastreamingclient.RequestPhase")
+@Label("Request Phase")
+@Category({"EGA Streaming Client", "Requests"})
+@Description("A phase of a data request (dns, connect, tls, ttfb, transfer) or a wait of a background reader (backpressure, starved)")
+@StackTrace(false)
+class JfrRequestEvent extends Event {
+    @Label("Phase")
+    String phase;
+
+    @Label("Request")
+    String request;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes = -1;
+
+    static Object begin(String phase, String request) {
+        JfrRequestEvent event = new JfrRequestEvent();
+        event.phase = phase;
+        event.request = request;
+        event.begin();
+        return event;
+    }
+
+    static void commit(Object span, long bytes) {
+        JfrRequestEvent event = (JfrRequestEvent) span;
+        event.bytes = bytes;
+        event.commit();
+    }
+}
@@ -43,6 +43,26 @@ class LimitedInputStream extends InputStream {
         return result;
     }
 
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (read >= size) {
+            return -1;
+        }
+        int result = delegate.read(b, off, (int) Math.min(len, size - read));
+        if (result == -1)
+            throw new IOException("The stream is incomplete, expected " + size + " but read " + read + " bytes.");
+        read += result;
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
     @Override
     public String toString() {
         return String.format("Limited stream: size=%d, read=%d, delegate=%s", size, read, delegate);
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Bulk mode: downloads every entry of a manifest in one process.
+ *
+ * Manifest lines are tab (or space) separated:
+ *   dataset-id  format  region  output-file  [priority]
+ * where region is 'chr' or 'chr:start-end'. Empty lines and lines starting
+ * with '#' are ignored.
+ *
+ * Entries are processed in order of priority (higher first, then manifest
+ * order), 'manifest-jobs' at a time. Tickets are resolved ahead of the
+ * entries being written (and dropped once their entry is done - a large
+ * manifest doesn't keep them all), and the data URLs of all entries share a single
+ * DownloadScheduler - one prioritised queue under the global limits
+ * (--parallel, the per host adaptive limit and the bandwidth cap). A summary
+ * report is printed at the end.
+ */
+class ManifestDownloader {
+    private static final int TICKET_THREADS = 4;
+
+    static class Entry {
+        final int line;
+        final String datasetId;
+        final EgaStreamingClient.Format format;
+        final String sequence;
+        final long start, end;
+        final File outputFile;
+        final int priority;
+
+        // Outcome
+        volatile String status = "PENDING";
+        volatile long bytes = 0;
+        volatile long millis = 0;
+
+        Entry(int line, String datasetId, EgaStreamingClient.Format format, String sequence,
+              long start, long end, File outputFile, int priority) {
+            this.line = line;
+            this.datasetId = datasetId;
+            this.format = format;
+            this.sequence = sequence;
+            this.start = start;
+            this.end = end;
+            this.outputFile = outputFile;
+            this.priority = priority;
+        }
+
+        String region() {
+            return (end > 0) ? sequence + ":" + start + "-" + end : sequence;
+        }
+    }
+
+    private final EgaStreamingClient.Params params;
+    private final String oauthToken;
+    private final int jobs;
+    private final ExecutorService ticketWorkers;
+    private final HeaderCache headerCache;
+    private List<Entry> entries;
+    private List<CompletableFuture<TicketResponse>> tickets; // null: not requested yet, DONE: entry done
+    private static final CompletableFuture<TicketResponse> DONE = CompletableFuture.completedFuture(null);
+
+    ManifestDownloader(EgaStreamingClient.Params params, String oauthToken) throws IOException {
+        this.params = params;
+        this.oauthToken = oauthToken;
+        this.headerCache = (params.headerCache != null) ? new HeaderCache(params.headerCache, params, oauthToken) : null;
+        this.jobs = Math.max(1, params.manifestJobs);
+        this.ticketWorkers = Executors.newFixedThreadPool(TICKET_THREADS, r -> {
+            Thread t = new Thread(r, "TicketResolver");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    static List<Entry> read(File manifest) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(manifest))) {
+            String line;
+            int n = 0;
+            while ((line = br.readLine()) != null) {
+                n++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] f = line.split("\\s+");
+                if (f.length < 4) throw new IllegalArgumentException("line " + n + ": expected dataset-id, format, region and output-file");
+                try {
+                    EgaStreamingClient.Format format = EgaStreamingClient.Format.valueOf(f[1].toUpperCase());
+                    String sequence = f[2];
+                    long start = 0, end = 0;
+                    int colon = f[2].lastIndexOf(':');
+                    if (colon > 0) {
+                        String[] range = f[2].substring(colon + 1).split("-");
+                        sequence = f[2].substring(0, colon);
+                        start = Long.parseLong(range[0].replace(",", ""));
+                        if (range.length > 1) end = Long.parseLong(range[1].replace(",", ""));
+                    }
+                    int priority = (f.length > 4) ? Integer.parseInt(f[4]) : 0;
+                    entries.add(new Entry(n, f[0], format, sequence, start, end, new File(f[3]), priority));
+                } catch (IllegalArgumentException ex) { // also NumberFormatException
+                    throw new IllegalArgumentException("line " + n + ": " + ex.getMessage(), ex);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /*
+     * Downloads all entries; returns the number of failed entries
+     */
+    int run(List<Entry> manifest) throws IOException {
+        long start = System.currentTimeMillis();
+        entries = new ArrayList<>(manifest);
+        Collections.sort(entries, Comparator.comparingInt((Entry e) -> -e.priority)); // stable - manifest order within a priority
+        tickets = new ArrayList<>(Collections.nCopies(entries.size(), (CompletableFuture<TicketResponse>) null));
+
+        ExecutorService writers = Executors.newFixedThreadPool(jobs);
+        try (DownloadScheduler scheduler = EgaStreamingClient.newScheduler(params)) {
+            List<Future<?>> done = new ArrayList<>();
+            for (int i = 0; i < entries.size(); i++) {
+                final int index = i;
+                done.add(writers.submit(() -> download(index, scheduler)));
+            }
+            // Start resolving the first tickets right away
+            for (int i = 0; i < Math.min(entries.size(), jobs * 2); i++) ticket(i);
+            for (Future<?> f : done) {
+                try {
+                    f.get();
+                } catch (Exception ex) {
+                    throw new IOException("Bulk download interrupted", ex);
+                }
+            }
+        } finally {
+            writers.shutdownNow();
+            ticketWorkers.shutdownNow();
+        }
+        return report(System.currentTimeMillis() - start);
+    }
+
+    /*
+     * Ticket of an entry - resolution is started on first request
+     */
+    private synchronized CompletableFuture<TicketResponse> ticket(int index) {
+        CompletableFuture<TicketResponse> f = tickets.get(index);
+        if (f == null) {
+            final Entry e = entries.get(index);
+            f = CompletableFuture.supplyAsync(() -> {
+                try {
+                    Query query = new Query();
+                    query.sequence = e.sequence;
+                    query.start = e.start;
+                    query.end = e.end;
+                    EgaStreamingClient.projection(query, e.format, params);
+                    byte[] header = (headerCache != null) ? headerCache.get(e.datasetId, e.format) : null;
+                    if (header != null) query.dataClass = "body";
+                    String url = EgaStreamingClient.formatURL(EgaStreamingClient.endpointUrl(e.format, params), e.datasetId, query, e.format);
+                    TicketResponse r = EgaStreamingClient.getTicketOk(new URL(url), oauthToken, params.printTicket);
+                    return (header != null) ? HeaderCache.splice(header, r) : r;
+                } catch (Exception ex) {
+                    throw new CompletionException(ex);
+                }
+            }, ticketWorkers);
+            tickets.set(index, f);
+        }
+        return f;
+    }
+
+    private synchronized void done(int index) {
+        tickets.set(index, DONE);
+    }
+
+    private void download(int index, DownloadScheduler scheduler) {
+        Entry e = entries.get(index);
+        long start = System.currentTimeMillis();
+        // Keep the tickets of the following entries resolving while this one downloads
+        for (int i = index + 1; i < Math.min(entries.size(), index + 1 + jobs * 2); i++) ticket(i);
+        try {
+            TicketResponse r = ticket(index).join();
+            if (r == null || r.urls == null) throw new IOException("no ticket");
+            e.status = "RUNNING";
+            e.bytes = EgaStreamingClient.download(r, e.outputFile, e.format, scheduler, params, e.priority);
+            e.status = "OK";
+        } catch (CompletionException ex) {
+            e.status = "FAILED: " + ex.getCause();
+        } catch (Exception ex) {
+            e.status = "FAILED: " + ex;
+        } finally {
+            done(index);
+        }
+        e.millis = System.currentTimeMillis() - start;
+        if (params.debug) System.out.println("Manifest line " + e.line + " " + e.datasetId + " " + e.region() + ": " + e.status);
+    }
+
+    private int report(long millis) throws IOException {
+        int failed = 0;
+        long bytes = 0;
+        StringBuilder sb = new StringBuilder("#line\tdataset-id\tformat\tregion\toutput-file\tbytes\tseconds\tstatus\n");
+        for (Entry e : entries) {
+            if (!"OK".equals(e.status)) failed++;
+            bytes += e.bytes;
+            sb.append(e.line).append('\t').append(e.datasetId).append('\t').append(e.format).append('\t')
+              .append(e.region()).append('\t').append(e.outputFile).append('\t').append(e.bytes).append('\t')
+              .append(String.format("%.1f", e.millis / 1000.0)).append('\t').append(e.status).append('\n');
+        }
+        sb.append(String.format("# %d entries, %d ok, %d failed, %d bytes in %.1f s (%.1f MB/s)%n",
+                entries.size(), entries.size() - failed, failed, bytes, millis / 1000.0,
+                bytes / 1048576.0 / Math.max(0.001, millis / 1000.0)));
+        System.out.print(sb);
+        if (params.manifestReport != null) {
+            try (PrintStream ps = new PrintStream(params.manifestReport)) {
+                ps.print(sb);
+            }
+        }
+        return failed;
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import htsjdk.samtools.seekablestream.SeekableStream;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local mirror of remote files read at random (--mirror-dir): a sparse copy
+ * of the whole file (name.data, of the length of the remote file) and a
+ * bitmap of the 64K blocks in it (name.blocks), kept across runs. Reads are
+ * served from the copy; missing blocks are fetched through the stream below
+ * (EgaSeekableHTTPStream, ...), written to the copy and then marked in the
+ * bitmap - a block that is marked is complete on disk.
+ *
+ * Several processes can share a directory: the bitmap is read and updated
+ * under file locks, and blocks marked by others are picked up before a
+ * block is fetched. Two processes may fetch the same block at the same
+ * time - both write the same bytes.
+ *
+ * The name is a digest of the URL; a mirror whose length differs from the
+ * remote file's is started again.
+ */
+class MirroredSeekableStream extends SeekableStream {
+    static final int BLOCK_SIZE = 64 * 1024;
+    private static final int MAX_RUN = 64; // blocks fetched in one request
+
+    private static volatile File dir = null;
+    private static final Map<String, Mirror> mirrors = new HashMap<>();
+    private static final AtomicLong local = new AtomicLong(), fetched = new AtomicLong();
+
+    private final SeekableStream source;
+    private final Mirror mirror;
+    private long position = 0;
+
+    private MirroredSeekableStream(SeekableStream source, Mirror mirror) {
+        this.source = source;
+        this.mirror = mirror;
+    }
+
+    /*
+     * The directory of the mirrors used by wrap(); null for none
+     */
+    static void configure(File directory) throws IOException {
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create mirror directory " + directory);
+        }
+        dir = directory;
+    }
+
+    /*
+     * The stream read through its local mirror (as it is if mirrors are not
+     * configured, or the length of the file is not known)
+     */
+    static SeekableStream wrap(SeekableStream source) throws IOException {
+        File d = dir;
+        long length = source.length();
+        if (d == null || length <= 0) return source;
+        Mirror mirror;
+        synchronized (mirrors) { // one per file in the process: file locks are per process
+            mirror = mirrors.get(source.getSource());
+            if (mirror == null) {
+                mirror = new Mirror(d, source.getSource(), length);
+                mirrors.put(source.getSource(), mirror);
+            }
+        }
+        return (mirror.length == length) ? new MirroredSeekableStream(source, mirror) : source;
+    }
+
+    static String stats() {
+        return (dir == null) ? null : String.format("%d blocks read locally, %d fetched", local.get(), fetched.get());
+    }
+
+    @Override
+    public long length() {
+        return mirror.length;
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public void seek(long position) {
+        this.position = position;
+    }
+
+    @Override
+    public boolean eof() throws IOException {
+        return position >= mirror.length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int len) throws IOException {
+        if (offset < 0 || len < 0 || offset + len > buffer.length) {
+            throw new IndexOutOfBoundsException("Offset=" + offset + ",len=" + len + ",buflen=" + buffer.length);
+        }
+        if (eof()) return -1;
+        len = (int) Math.min(len, mirror.length - position);
+        if (len == 0) return 0;
+        long first = position / BLOCK_SIZE, last = (position + len - 1) / BLOCK_SIZE;
+        if (!mirror.present(first, last)) {
+            mirror.refresh(first, last); // marked by other processes meanwhile
+            for (long b = first; b <= last; b++) {
+                if (mirror.present(b, b)) continue;
+                int count = 1;
+                while (count < MAX_RUN && b + count <= last && !mirror.present(b + count, b + count)) count++;
+                fetch(b, count);
+                b += count - 1;
+            }
+        }
+        local.addAndGet(last - first + 1);
+        ByteBuffer bb = ByteBuffer.wrap(buffer, offset, len);
+        while (bb.hasRemaining()) {
+            if (mirror.data.read(bb, position + bb.position() - offset) < 0) throw new EOFException("Mirror of " + mirror.resource + " truncated");
+        }
+        position += len;
+        return len;
+    }
+
+    /*
+     * Blocks first .. first+count-1 from the stream below into the mirror
+     */
+    private void fetch(long first, int count) throws IOException {
+        long start = first * BLOCK_SIZE;
+        byte[] data = new byte[(int) Math.min((long) count * BLOCK_SIZE, mirror.length - start)];
+        int n = 0, r;
+        source.seek(start);
+        while (n < data.length && (r = source.read(data, n, data.length - n)) > 0) n += r;
+        if (n < data.length) throw new EOFException("Expected " + data.length + " bytes at " + start + " of " + mirror.resource + ", got " + n);
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        while (bb.hasRemaining()) mirror.data.write(bb, start + bb.position());
+        mirror.data.force(false); // on disk before it is marked
+        mirror.mark(first, count);
+        fetched.addAndGet(count);
+        local.addAndGet(-count);
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+    @Override
+    public String getSource() {
+        return mirror.resource;
+    }
+
+    /*
+     * The files of one mirror. The bitmap file is an 8 byte magic number,
+     * the length of the file, then one bit per block (bit i%8 of byte i/8).
+     * A block once marked stays marked, so the bits in memory are updated
+     * from the file for unmarked blocks only.
+     */
+    private static final class Mirror {
+        private static final byte[] MAGIC = "EGAMIRR1".getBytes(StandardCharsets.US_ASCII);
+        private static final int HEADER = 16;
+
+        final String resource;
+        final long length;
+        final FileChannel data;
+        private final FileChannel blocks;
+        private final long[] present;
+
+        Mirror(File dir, String resource, long length) throws IOException {
+            String name = name(resource);
+            this.resource = resource;
+            this.length = length;
+            this.data = FileChannel.open(new File(dir, name + ".data").toPath(),
+                                         StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.blocks = FileChannel.open(new File(dir, name + ".blocks").toPath(),
+                                           StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long count = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            this.present = new long[(int) ((count + 63) / 64)];
+            int bitmapBytes = (int) ((count + 7) / 8);
+            FileLock lock = blocks.lock(); // all of it: set up by one process
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HEADER);
+                while (header.hasRemaining() && blocks.read(header, header.position()) > 0);
+                header.flip();
+                byte[] magic = new byte[MAGIC.length];
+                boolean valid = header.remaining() == HEADER && Arrays.equals(magic(header, magic), MAGIC)
+                                && header.getLong() == length && data.size() == length
+                                && blocks.size() == HEADER + bitmapBytes;
+                if (!valid) { // new, or of another version of the file
+                    data.truncate(0);
+                    data.write(ByteBuffer.allocate(1), length - 1); // sparse
+                    blocks.truncate(0);
+                    ByteBuffer init = ByteBuffer.allocate(HEADER + bitmapBytes);
+                    init.put(MAGIC).putLong(length).rewind();
+                    while (init.hasRemaining()) blocks.write(init, init.position());
+                    blocks.force(true);
+                }
+                read(0, present.length * 64L - 1);
+            } finally {
+                lock.release();
+            }
+        }
+
+        private static byte[] magic(ByteBuffer header, byte[] magic) {
+            header.get(magic);
+            return magic;
+        }
+
+        synchronized boolean present(long first, long last) {
+            for (long b = first; b <= last; b++) {
+                if ((present[(int) (b >> 6)] & (1L << (b & 63))) == 0) return false;
+            }
+            return true;
+        }
+
+        /*
+         * Marks from the bitmap file of blocks first .. last
+         */
+        synchronized void refresh(long first, long last) throws IOException {
+            FileLock lock = blocks.lock(HEADER + first / 8, last / 8 - first / 8 + 1, true);
+            try {
+                read(first, last);
+            } finally {
+                lock.release();
+            }
+        }
+
+        private void read(long first, long last) throws IOException {
+            last = Math.min(last, (length - 1) / BLOCK_SIZE);
+            ByteBuffer bits = ByteBuffer.allocate((int) (last / 8 - first / 8 + 1));
+            while (bits.hasRemaining() && blocks.read(bits, HEADER + first / 8 + bits.position()) > 0);
+            for (long b = first - first % 8; b <= last; b++) {
+                if ((bits.get((int) (b / 8 - first / 8)) & (1 << (b % 8))) != 0) present[(int) (b >> 6)] |= 1L << (b & 63);
+            }
+        }
+
+        /*
+         * Marks blocks first .. first+count-1 in the bitmap file
+         */
+        synchronized void mark(long first, int count) throws IOException {
+            long last = first + count - 1;
+            long offset = HEADER + first / 8;
+            FileLock lock = blocks.lock(offset, last / 8 - first / 8 + 1, false);
+            try {
+                read(first, last); // and what others marked in the same bytes
+                for (long b = first; b <= last; b++) present[(int) (b >> 6)] |= 1L << (b & 63);
+                ByteBuffer bits = ByteBuffer.allocate((int) (last / 8 - first / 8 + 1));
+                for (long b = first - first % 8; b < first - first % 8 + bits.capacity() * 8L; b++) {
+                    if ((present[(int) (b >> 6)] & (1L << (b & 63))) != 0) {
+                        int i = (int) (b / 8 - first / 8);
+                        bits.put(i, (byte) (bits.get(i) | (1 << (b % 8))));
+                    }
+                }
+                while (bits.hasRemaining()) blocks.write(bits, offset + bits.position());
+                blocks.force(false);
+            } finally {
+                lock.release();
+            }
+        }
+
+        private static String name(String resource) {
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-1").digest(resource.getBytes(StandardCharsets.UTF_8));
+                StringBuilder sb = new StringBuilder();
+                for (byte b : digest) sb.append(String.format("%02x", b));
+                return sb.toString();
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+}
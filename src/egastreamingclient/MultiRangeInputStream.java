@@ -0,0 +1,278 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The response to a multi-range request (Range: bytes=a-b,c-d,...) as the
+ * requested ranges back to back, in the order requested - parsed as it
+ * streams in.
+ *
+ * The server decides the shape of the response: multipart/byteranges with a
+ * Content-Range per part (parts may be coalesced, so each is placed by its
+ * Content-Range, bytes in between are skipped), or a single range covering
+ * everything. Servers that ignore multi-range requests (200, 416), or
+ * answer them with parts that don't add up (out of order, missing), are
+ * remembered per host; their ranges are then fetched one request each
+ * (sequence()).
+ */
+class MultiRangeInputStream extends InputStream {
+    private static final Pattern CONTENT_RANGE = Pattern.compile("\\s*bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)\\s*");
+    private static final Pattern CONTENT_LENGTH = Pattern.compile("\\s*bytes\\s+(\\d+-\\d+|\\*)/(\\d+)\\s*");
+    private static final Pattern BOUNDARY = Pattern.compile(";\\s*boundary=\"?([^\";]+)\"?");
+    private static final Set<String> unsupported = ConcurrentHashMap.newKeySet();
+
+    /*
+     * Opens one range of a request
+     */
+    interface Opener {
+        InputStream open(long start, long end) throws Exception;
+    }
+
+    private final InputStream in;
+    private final String url;
+    private final String boundary;    // null: the body is the single part given
+    private final List<long[]> spans; // {start, end} requested, ascending
+    private int span = 0;
+    private long need;                // next position of the resource to return
+    private long partPos = 0, partEnd = -1; // position in the current part, its last byte
+
+    /*
+     * A multipart/byteranges body with the given boundary
+     */
+    MultiRangeInputStream(InputStream in, String url, String boundary, List<long[]> spans) {
+        this.in = in;
+        this.url = url;
+        this.boundary = "--" + boundary;
+        this.spans = spans;
+        this.need = spans.get(0)[0];
+    }
+
+    /*
+     * A single part body, described by its Content-Range
+     */
+    MultiRangeInputStream(InputStream in, String url, long[] contentRange, List<long[]> spans) {
+        this.in = in;
+        this.url = url;
+        this.boundary = null;
+        this.spans = spans;
+        this.need = spans.get(0)[0];
+        this.partPos = contentRange[0];
+        this.partEnd = contentRange[1];
+    }
+
+    /*
+     * The boundary of a multipart/byteranges Content-Type; null for any other type
+     */
+    static String boundary(String contentType) {
+        if (contentType == null || !contentType.toLowerCase().startsWith("multipart/byteranges")) return null;
+        Matcher matcher = BOUNDARY.matcher(contentType);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    /*
+     * {start, end} of a Content-Range header value, null if not a byte range
+     */
+    static long[] contentRange(String value) {
+        if (value == null) return null;
+        Matcher matcher = CONTENT_RANGE.matcher(value);
+        if (!matcher.matches()) return null;
+        return new long[] {Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2))};
+    }
+
+    /*
+     * The length of the resource in a Content-Range header value (of a 206,
+     * or of a 416 without the range), -1 if not given
+     */
+    static long contentLength(String value) {
+        if (value == null) return -1;
+        Matcher matcher = CONTENT_LENGTH.matcher(value);
+        return matcher.matches() ? Long.parseLong(matcher.group(2)) : -1;
+    }
+
+    /*
+     * Whether multi-range requests are worth trying at the host of this URL
+     */
+    static boolean supported(String url) {
+        return !unsupported.contains(host(url));
+    }
+
+    static void unsupported(String url) {
+        unsupported.add(host(url));
+    }
+
+    private static String host(String url) {
+        try {
+            URL u = new URL(url);
+            return u.getProtocol() + "://" + u.getHost() + ":" + u.getPort();
+        } catch (MalformedURLException ex) {
+            return url;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return (n < 0) ? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        while (span < spans.size()) {
+            if (partPos > partEnd) {
+                nextPart();
+            } else if (partPos < need) { // not requested, or coalesced in by the server
+                long skip = Math.min(need, partEnd + 1) - partPos;
+                skipFully(skip);
+                partPos += skip;
+            } else if (partPos > need) {
+                throw malformed("Multi-range response is missing bytes " + need + "-" + (partPos - 1));
+            } else {
+                long spanEnd = spans.get(span)[1];
+                int n = in.read(b, off, (int) Math.min(len, Math.min(partEnd, spanEnd) - partPos + 1));
+                if (n < 0) throw new IOException("The stream is incomplete");
+                partPos += n;
+                need += n;
+                if (need > spanEnd && ++span < spans.size()) need = spans.get(span)[0];
+                return n;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Reads up to the next part and its headers
+     */
+    private void nextPart() throws IOException {
+        if (boundary == null) throw malformed("Range response is missing bytes from " + need);
+        String line;
+        do { // the rest of the previous part, or the preamble
+            line = readLine();
+            if (line == null) throw new IOException("The stream is incomplete");
+            if (line.startsWith(boundary + "--")) throw malformed("Multi-range response is missing bytes from " + need);
+        } while (!line.startsWith(boundary));
+        long[] range = null;
+        while ((line = readLine()) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Content-Range")) {
+                range = contentRange(line.substring(colon + 1));
+            }
+        }
+        if (line == null) throw new IOException("The stream is incomplete");
+        if (range == null) throw malformed("Multi-range response part without a byte Content-Range");
+        partPos = range[0];
+        partEnd = range[1];
+    }
+
+    /*
+     * A response that is complete but not what was asked for: the host is
+     * not asked for multi-range requests again (the retry goes one request
+     * per range)
+     */
+    private IOException malformed(String message) {
+        unsupported(url);
+        return new IOException(message + " (" + url + ")");
+    }
+
+    /*
+     * A line (ASCII, without CRLF); null at the end of the stream
+     */
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(80);
+        int c;
+        while ((c = in.read()) >= 0 && c != '\n') {
+            if (c != '\r') line.write(c);
+        }
+        if (c < 0 && line.size() == 0) return null;
+        return line.toString("ASCII");
+    }
+
+    private void skipFully(long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (in.read() < 0) throw new IOException("The stream is incomplete");
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /*
+     * The ranges fetched one request at a time (servers without multi-range
+     * support), back to back; each opened when the previous one is used up
+     */
+    static InputStream sequence(final List<long[]> spans, final Opener opener) {
+        return new InputStream() {
+            private int next = 0;
+            private InputStream current = null;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                int n = read(b, 0, 1);
+                return (n < 0) ? -1 : (b[0] & 0xff);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return 0;
+                while (true) {
+                    if (current == null) {
+                        if (next == spans.size()) return -1;
+                        long[] s = spans.get(next++);
+                        try {
+                            current = opener.open(s[0], s[1]);
+                        } catch (IOException ex) {
+                            throw ex;
+                        } catch (Exception ex) {
+                            throw new IOException(ex);
+                        }
+                        if (current == null) throw new IOException("Unable to open range " + s[0] + "-" + s[1]);
+                    }
+                    int n = current.read(b, off, len);
+                    if (n > 0) return n;
+                    current.close();
+                    current = null;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                next = spans.size();
+                if (current != null) current.close();
+                current = null;
+            }
+        };
+    }
+}
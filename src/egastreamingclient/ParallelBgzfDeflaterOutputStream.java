@@ -0,0 +1,195 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * BGZF writer that compresses blocks in parallel.
+ *
+ * Uncompressed bytes are collected into blocks of up to 65498 bytes (the size
+ * htsjdk uses); each full block is deflated as a separate task on a fork-join
+ * pool and the compressed blocks are written in their original order. Closing
+ * the stream writes the BGZF EOF marker block.
+ * Levels 0 (stored) to 9 are supported; a block that does not fit into the
+ * 64 KiB BGZF limit at the chosen level is stored uncompressed instead.
+ */
+public class ParallelBgzfDeflaterOutputStream extends FilterOutputStream {
+    private static final int BLOCKS_PER_THREAD = 4;
+    private static final int BLOCK_SIZE = BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE;
+    private static final int MAX_DEFLATED_SIZE = BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE -
+                                                 BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH -
+                                                 BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+
+    // One pool of Deflaters per compression level - they hold native zlib state
+    private static final List<ConcurrentLinkedQueue<Deflater>> DEFLATERS = new ArrayList<>();
+    static {
+        for (int i = 0; i < 10; i++) DEFLATERS.add(new ConcurrentLinkedQueue<>());
+    }
+
+    private final ForkJoinPool pool;
+    private final int window;
+    private final int level;
+    private final ArrayDeque<ForkJoinTask<byte[]>> pending = new ArrayDeque<>();
+    private byte[] current = new byte[BLOCK_SIZE];
+    private int currentLength = 0;
+    private boolean closed = false;
+
+    public ParallelBgzfDeflaterOutputStream(OutputStream out) {
+        this(out, BlockCompressedStreamConstants.DEFAULT_COMPRESSION_LEVEL, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelBgzfDeflaterOutputStream(OutputStream out, int level, int threads) {
+        super(out);
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("Compression level must be between 0 and 9: " + level);
+        }
+        this.level = level;
+        this.pool = new ForkJoinPool(Math.max(1, threads));
+        this.window = Math.max(1, threads) * BLOCKS_PER_THREAD;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        current[currentLength++] = (byte) b;
+        if (currentLength == BLOCK_SIZE) submitCurrent();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, BLOCK_SIZE - currentLength);
+            System.arraycopy(b, off, current, currentLength, n);
+            currentLength += n;
+            off += n;
+            len -= n;
+            if (currentLength == BLOCK_SIZE) submitCurrent();
+        }
+    }
+
+    private void submitCurrent() throws IOException {
+        if (currentLength == 0) return;
+        while (pending.size() >= window) {
+            writeNext();
+        }
+        final byte[] data = current;
+        final int length = currentLength;
+        pending.add(pool.submit(() -> deflateBlock(data, length, level)));
+        current = new byte[BLOCK_SIZE];
+        currentLength = 0;
+    }
+
+    private void writeNext() throws IOException {
+        try {
+            out.write(pending.poll().get());
+        } catch (InterruptedException ex) {
+            throw new IOException("Interrupted while deflating BGZF block", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /*
+     * Flushing ends the current block early - used to make the data written so
+     * far readable; it does not write the EOF marker.
+     */
+    @Override
+    public void flush() throws IOException {
+        submitCurrent();
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            flush();
+            out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+            out.flush();
+        } finally {
+            pool.shutdownNow();
+            out.close();
+        }
+    }
+
+    static byte[] deflateBlock(byte[] data, int length, int level) {
+        byte[] compressed = new byte[MAX_DEFLATED_SIZE];
+        int size = deflate(data, length, level, compressed);
+        if (size < 0) { // Incompressible at this level - store instead
+            size = deflate(data, length, Deflater.NO_COMPRESSION, compressed);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+
+        int total = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH + size + BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+        byte[] block = Arrays.copyOf(BlockCompressedStreamConstants.GZIP_BLOCK_PREAMBLE, total);
+        putShort(block, BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET, total - 1);
+        System.arraycopy(compressed, 0, block, BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH, size);
+        putInt(block, total - 8, (int) crc.getValue());
+        putInt(block, total - 4, length);
+        return block;
+    }
+
+    /*
+     * Returns the deflated size, or -1 if it does not fit into the BGZF block
+     */
+    private static int deflate(byte[] data, int length, int level, byte[] target) {
+        Deflater deflater = DEFLATERS.get(level).poll();
+        if (deflater == null) deflater = new Deflater(level, true);
+        try {
+            deflater.reset();
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            int size = 0;
+            while (!deflater.finished() && size < target.length) {
+                size += deflater.deflate(target, size, target.length - size);
+            }
+            return deflater.finished() ? size : -1;
+        } finally {
+            DEFLATERS.get(level).offer(deflater);
+        }
+    }
+
+    private static void putShort(byte[] b, int off, int value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >>> 8);
+    }
+
+    private static void putInt(byte[] b, int off, int value) {
+        putShort(b, off, value);
+        putShort(b, off + 2, value >>> 16);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.Inflater;
+
+/**
+ * Output stream that receives BGZF compressed data (BAM, BCF, VCF.gz) and
+ * writes the uncompressed payload to the underlying stream.
+ *
+ * The incoming bytes are cut into BGZF blocks, each block is inflated as a
+ * separate task on a fork-join pool and the results are written in their
+ * original order. At most a fixed window of blocks is in flight, so memory use
+ * stays bounded regardless of how fast the data arrives.
+ * Data that does not start with a BGZF block (e.g. a plain text VCF) is passed
+ * through unchanged. The first bytes are held back until they tell which it
+ * is (a complete block header), however the writes are chunked.
+ */
+public class ParallelBgzfInflaterOutputStream extends FilterOutputStream {
+    private static final int BLOCKS_PER_THREAD = 4;
+
+    // Inflaters are expensive to create (native zlib state) - share them
+    private static final ConcurrentLinkedQueue<Inflater> INFLATERS = new ConcurrentLinkedQueue<>();
+
+    private final ForkJoinPool pool;
+    private final int window;
+    private final ArrayDeque<ForkJoinTask<byte[]>> pending = new ArrayDeque<>();
+    private final BgzfBlockSplitter splitter;
+    private Boolean bgzf = null; // undecided until the first block header has arrived
+    private byte[] head = new byte[0]; // the bytes held back until then
+    private boolean closed = false;
+
+    public ParallelBgzfInflaterOutputStream(OutputStream out) {
+        this(out, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelBgzfInflaterOutputStream(OutputStream out, int threads) {
+        super(out);
+        this.pool = new ForkJoinPool(Math.max(1, threads));
+        this.window = Math.max(1, threads) * BLOCKS_PER_THREAD;
+        this.splitter = new BgzfBlockSplitter((block, address) -> submit(block));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return;
+        if (bgzf == null) {
+            byte[] h = Arrays.copyOf(head, head.length + len);
+            System.arraycopy(b, off, h, head.length, len);
+            bgzf = BgzfBlockSplitter.isBgzf(h, 0, h.length);
+            if (bgzf == null) {
+                head = h;
+                return;
+            }
+            head = null;
+            b = h;
+            off = 0;
+            len = h.length;
+        }
+        if (bgzf) {
+            splitter.feed(b, off, len);
+        } else {
+            out.write(b, off, len);
+        }
+    }
+
+    private void submit(final byte[] block) throws IOException {
+        while (pending.size() >= window) {
+            writeNext();
+        }
+        pending.add(pool.submit(() -> {
+            Inflater inflater = INFLATERS.poll();
+            if (inflater == null) inflater = new Inflater(true);
+            try {
+                return BgzfBlockSplitter.inflate(block, inflater);
+            } finally {
+                INFLATERS.offer(inflater);
+            }
+        }));
+    }
+
+    private void writeNext() throws IOException {
+        try {
+            out.write(pending.poll().get());
+        } catch (InterruptedException ex) {
+            throw new IOException("Interrupted while inflating BGZF block", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            if (bgzf == null && head.length > 0) { // too short for a BGZF header
+                bgzf = false;
+                out.write(head);
+            }
+            flush();
+            if (splitter.pending() > 0) {
+                throw new IOException("Truncated BGZF stream: " + splitter.pending() + " trailing bytes");
+            }
+        } finally {
+            pool.shutdownNow();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * BufferedInputStream with its buffer from the BufferPool, given back when
+ * the stream is closed. Streams are closed from other threads to abort a
+ * transfer (watchdog, hedging): the buffer is only given back if no read
+ * is using it - otherwise it is left to the garbage collector.
+ */
+class PooledBufferedInputStream extends BufferedInputStream {
+    private final BufferPool pool;
+    private final AtomicReference<byte[]> leased;
+    private volatile boolean reading = false;
+
+    PooledBufferedInputStream(InputStream in, int size) {
+        super(in, 1);
+        this.pool = BufferPool.get();
+        this.leased = new AtomicReference<>(pool.array(size));
+        this.buf = leased.get();
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        reading = true;
+        try {
+            return super.read();
+        } finally {
+            reading = false;
+        }
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        reading = true;
+        try {
+            return super.read(b, off, len);
+        } finally {
+            reading = false;
+        }
+    }
+
+    @Override
+    public synchronized long skip(long n) throws IOException {
+        reading = true;
+        try {
+            return super.skip(n);
+        } finally {
+            reading = false;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close(); // reads from now on fail before they touch the buffer
+        byte[] b = leased.getAndSet(null);
+        if (!reading) pool.recycle(b);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import htsjdk.samtools.util.Tuple;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Writes ticket URLs of known size (embedded data or byte ranges) out of
+ * order: the offset of a URL in the output is the sum of the sizes of the
+ * URLs before it, known as soon as the URL is read from the ticket. Each
+ * download writes straight to its final place with positional writes, as
+ * its data arrives - no in-order reassembly, no temp file per URL.
+ *
+ * From the first URL of unknown size on, the rest of the ticket is written
+ * in order after it (writeTicketData), at the then known offset.
+ *
+ * As in writeTicketData, at most 'lookahead' downloads are submitted ahead
+ * of the oldest one still running: the ticket (TicketReader streams it) is
+ * read as they complete, not all at once.
+ *
+ * The data goes to output.download, sized to the final length up front if
+ * the whole ticket is known already (--print-ticket, bulk mode), otherwise
+ * grown to the end of each URL as it is read - downloads never write past
+ * the end of the file. It is renamed to the output file once everything is
+ * on disk - the output file is never seen incomplete.
+ */
+class PositionalWriter {
+
+    /*
+     * Whether the output can be written this way: a regular file, written
+     * as received (no processing stages, not a summary)
+     */
+    static boolean applies(File outputFile, EgaStreamingClient.Format format, EgaStreamingClient.Params params) {
+        if (outputFile == null || (outputFile.exists() && !outputFile.isFile())) return false;
+        if (params.stats || EgaStreamingClient.projecting(format, params)) return false;
+        return !(params.resume || params.buildIndex || params.uncompressed || params.compressionLevel >= 0);
+    }
+
+    /*
+     * The length of the output of a ticket, -1 if a URL has no known size
+     */
+    static long length(TicketResponse r) throws URISyntaxException, ParseException {
+        long length = 0;
+        for (TicketResponse.URL_OBJECT uo : r.urls) {
+            if (uo.url.startsWith("data")) {
+                length += TicketResponse.fromDataURI(new URI(uo.url)).length;
+            } else if (uo.getRanges() == null) {
+                return -1;
+            } else {
+                for (Tuple<Long, Long> range : uo.getRanges()) length += range.b - range.a + 1;
+            }
+        }
+        return length;
+    }
+
+    /*
+     * length: of the output if known (see length()), -1 if not
+     */
+    static long write(Iterator<RangeCoalescer.Group> groups, File outputFile, DownloadScheduler scheduler,
+                      EgaStreamingClient.Params params, int priority, long length)
+            throws IOException, URISyntaxException, ParseException {
+        File temp = new File(outputFile.getPath() + ".download");
+        boolean done = false;
+        long offset = 0;
+        int count = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(temp, "rw")) {
+            raf.setLength(0);
+            long allocated = Math.max(0, length);
+            raf.setLength(allocated); // preallocated (sparse where the file system allows)
+            final FileChannel channel = raf.getChannel();
+            int lookahead = EgaStreamingClient.lookahead(params);
+            ArrayDeque<CompletableFuture<Long>> downloads = new ArrayDeque<>();
+            while (groups.hasNext()) {
+                RangeCoalescer.Group g = groups.next();
+                TicketResponse.URL_OBJECT uo = g.request;
+                count += g.parts.size();
+                if (uo.url.startsWith("data")) {
+                    ByteBuffer bb = ByteBuffer.wrap(TicketResponse.fromDataURI(new URI(uo.url)));
+                    while (bb.hasRemaining()) offset += channel.write(bb, offset);
+                    continue;
+                }
+                if (g.end < 0) { // size unknown - the rest in order from here
+                    if (params.debug) System.out.println("URL " + count + " has no range - writing the rest of the ticket in order");
+                    channel.position(offset);
+                    offset += EgaStreamingClient.writeTicketData(prepend(g, groups), Channels.newOutputStream(channel),
+                                                                 scheduler, params, priority, null);
+                    break;
+                }
+                if (g.contiguous()) { // one region (also a merged one without gaps or overlaps)
+                    downloads.add(scheduler.submit(uo, g.size(), priority, channel, offset));
+                } else { // the parts are picked from the merged data once it is complete
+                    final long position = offset;
+                    downloads.add(scheduler.submit(uo, g.size(), priority).thenApply(data -> {
+                        try {
+                            return g.copyParts(data, channel, position);
+                        } catch (IOException ex) {
+                            throw new UncheckedIOException(ex);
+                        } finally {
+                            data.delete();
+                        }
+                    }));
+                }
+                offset += g.outputSize();
+                if (offset > allocated) {
+                    allocated = offset;
+                    raf.setLength(allocated);
+                }
+                while (downloads.size() > lookahead) await(downloads.poll());
+            }
+            if (params.debug) System.out.println("Wrote " + count + " URLs (" + offset + " bytes) in place to " + outputFile);
+            while (!downloads.isEmpty()) await(downloads.poll());
+            raf.setLength(offset);
+            channel.force(false);
+            done = true;
+        } finally {
+            // Closing the channel (above) abandons any transfer still running
+            if (!done) temp.delete();
+        }
+        Files.move(temp.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return offset;
+    }
+
+    private static void await(CompletableFuture<Long> download) throws IOException {
+        try {
+            download.get();
+        } catch (InterruptedException ex) {
+            throw new IOException("Interrupted while waiting for download", ex);
+        } catch (ExecutionException ex) {
+            throw new IOException("Download failed after retries: " + ex.getCause(), ex.getCause());
+        }
+    }
+
+    private static Iterator<RangeCoalescer.Group> prepend(final RangeCoalescer.Group first,
+                                                         final Iterator<RangeCoalescer.Group> rest) {
+        return new Iterator<RangeCoalescer.Group>() {
+            private boolean head = true;
+
+            @Override
+            public boolean hasNext() {
+                return head || rest.hasNext();
+            }
+
+            @Override
+            public RangeCoalescer.Group next() {
+                if (!head) return rest.next();
+                head = false;
+                return first;
+            }
+        };
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Fast start (--fast-start): while the ticket is requested, connections to
+ * the data hosts of the endpoint are opened ahead - TCP and TLS handshakes
+ * done by the time the first ticket URL arrives. Both HTTP stacks are warmed:
+ * the HttpURLConnection keep-alive cache (range requests) and the OkHttp
+ * connection pool. Connections opened later resume the cached TLS sessions
+ * instead of a full handshake.
+ *
+ * The data hosts of an endpoint are only known from its tickets, so they are
+ * remembered from earlier runs (HOSTS_FILE: endpoint and data host per line).
+ */
+class Prewarmer {
+    static final File HOSTS_FILE = new File(System.getProperty("user.home"), ".ega-htsget-hosts");
+    private static final int MAX_HOSTS = 4; // per endpoint
+
+    private static volatile boolean enabled = false;
+    private static String endpoint;
+    private static final Set<String> seen = ConcurrentHashMap.newKeySet();
+
+    /*
+     * Opens connections to the remembered data hosts of the endpoint, in
+     * the background
+     */
+    static void start(String endpointUrl, final OkHttpClient client, final boolean debug) {
+        endpoint = origin(endpointUrl);
+        enabled = endpoint != null;
+        if (!enabled) return;
+        for (final String host : hosts(endpoint)) {
+            Thread t = new Thread(() -> warm(host, client, debug), "prewarm " + host);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    private static void warm(String host, OkHttpClient client, boolean debug) {
+        long t0 = System.currentTimeMillis();
+        // HEAD: no body, so the connection is free for reuse at once (whatever the status)
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(host + "/").openConnection();
+            connection.setRequestMethod("HEAD");
+            connection.setConnectTimeout(10000);
+            connection.setReadTimeout(10000);
+            connection.getResponseCode();
+            connection.getInputStream().close();
+        } catch (IOException ignored) { // error statuses included - the handshake is done
+        }
+        try (Response response = client.newCall(new Request.Builder().url(host + "/").head().build()).execute()) {
+            response.code();
+        } catch (IOException ignored) {
+        }
+        if (debug) System.out.println("Pre-opened connections to " + host + " (" + (System.currentTimeMillis() - t0) + " ms)");
+    }
+
+    /*
+     * Notes the host of a data URL of the current run
+     */
+    static void seen(String url) {
+        if (!enabled) return;
+        String host = origin(url);
+        if (host != null) seen.add(host);
+    }
+
+    /*
+     * Remembers the data hosts of this run for the next ones (the most
+     * recent first); concurrent runs may overwrite each other - no harm done
+     */
+    static void save() {
+        if (!enabled || seen.isEmpty()) return;
+        try {
+            List<String> lines = new ArrayList<>();
+            Set<String> hosts = new LinkedHashSet<>(seen);
+            for (String host : hosts(endpoint)) {
+                if (hosts.size() < MAX_HOSTS) hosts.add(host);
+            }
+            for (String host : hosts) lines.add(endpoint + "\t" + host);
+            if (HOSTS_FILE.exists()) {
+                for (String line : Files.readAllLines(HOSTS_FILE.toPath(), StandardCharsets.UTF_8)) {
+                    if (!line.startsWith(endpoint + "\t")) lines.add(line);
+                }
+            }
+            File temp = File.createTempFile(".ega-htsget-hosts", ".tmp", HOSTS_FILE.getAbsoluteFile().getParentFile());
+            Files.write(temp.toPath(), lines, StandardCharsets.UTF_8);
+            Files.move(temp.toPath(), HOSTS_FILE.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            System.out.println("Unable to update " + HOSTS_FILE + ": " + ex);
+        }
+    }
+
+    private static List<String> hosts(String endpoint) {
+        List<String> hosts = new ArrayList<>();
+        if (!HOSTS_FILE.exists()) return hosts;
+        try {
+            for (String line : Files.readAllLines(HOSTS_FILE.toPath(), StandardCharsets.UTF_8)) {
+                String[] f = line.split("\t");
+                if (f.length == 2 && f[0].equals(endpoint)) hosts.add(f[1]);
+            }
+        } catch (IOException ex) {
+            System.out.println("Unable to read " + HOSTS_FILE + ": " + ex);
+        }
+        return hosts;
+    }
+
+    /*
+     * scheme://host[:port] of a URL, null for non-HTTP URLs
+     */
+    private static String origin(String url) {
+        try {
+            URL u = new URL(url);
+            if (!u.getProtocol().startsWith("http")) return null;
+            return u.getProtocol() + "://" + u.getHost() + (u.getPort() < 0 ? "" : ":" + u.getPort());
+        } catch (MalformedURLException ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Client-side htsget projection (fields, tags, notags) of an uncompressed
+ * BAM stream, for servers that ignore those parameters. Records are split
+ * by RecordStreamParser and rewritten as they stream through:
+ *
+ *   QNAME not requested: "*"          CIGAR not requested: no operations
+ *   SEQ and QUAL not requested: "*"   QUAL not requested: missing (0xFF)
+ *   aux tags: only those in 'tags' (all if null), none of 'notags'
+ *
+ * Fixed size fields are kept as they are - dropping them saves nothing.
+ * Projecting data the server has projected already changes nothing.
+ */
+class ProjectingOutputStream extends FilterOutputStream {
+    static final List<String> FIELDS = Arrays.asList("QNAME", "FLAG", "RNAME", "POS", "MAPQ", "CIGAR",
+                                                     "RNEXT", "PNEXT", "TLEN", "SEQ", "QUAL");
+
+    private final boolean qname, cigar, seq, qual;
+    private final boolean[] keepTag = new boolean[1 << 16]; // by the two tag characters
+    private final RecordStreamParser parser;
+    private byte[] record = new byte[1024];
+    private boolean closed = false;
+
+    /*
+     * fields, tags, notags as in the htsget query (comma separated), null
+     * for not given
+     */
+    ProjectingOutputStream(OutputStream out, String fields, String tags, String notags) {
+        super(out);
+        Set<String> f = (fields == null) ? new HashSet<>(FIELDS) : split(fields);
+        this.qname = f.contains("QNAME");
+        this.cigar = f.contains("CIGAR");
+        this.qual = f.contains("QUAL");
+        this.seq = f.contains("SEQ") || qual; // QUAL is stored with the sequence length
+        if (tags == null) Arrays.fill(keepTag, true);
+        else for (String tag : split(tags)) keepTag[tagKey(tag)] = true;
+        if (notags != null) for (String tag : split(notags)) keepTag[tagKey(tag)] = false;
+        this.parser = new RecordStreamParser.Bam(new RecordStreamParser.RecordHandler() {
+            @Override
+            public void header(byte[] b, int off, int len, List<String> contigs) throws IOException {
+                ProjectingOutputStream.this.out.write(b, off, len);
+            }
+
+            @Override
+            public void record(byte[] b, int off, int len, long offset) throws IOException {
+                project(b, off, len);
+            }
+        });
+    }
+
+    /*
+     * Throws IllegalArgumentException for unknown fields and invalid tags
+     */
+    static void check(String fields, String tags, String notags) {
+        if (fields != null) for (String field : split(fields)) {
+            if (!FIELDS.contains(field)) throw new IllegalArgumentException("Unknown field " + field + " (fields are " + String.join(",", FIELDS) + ")");
+        }
+        if (tags != null) for (String tag : split(tags)) tagKey(tag);
+        if (notags != null) for (String tag : split(notags)) tagKey(tag);
+    }
+
+    private static int tagKey(String tag) {
+        if (tag.length() != 2) throw new IllegalArgumentException("Invalid tag " + tag);
+        return (tag.charAt(0) & 0xFF) << 8 | (tag.charAt(1) & 0xFF);
+    }
+
+    private static Set<String> split(String list) {
+        Set<String> set = new HashSet<>();
+        for (String s : list.split(",")) {
+            if (!s.trim().isEmpty()) set.add(s.trim());
+        }
+        return set;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        parser.feed(b, off, len);
+    }
+
+    /*
+     * Writes the projected copy of the record at off (block_size included)
+     */
+    private void project(byte[] b, int off, int len) throws IOException {
+        if (record.length < len) record = new byte[Math.max(len, record.length * 2)];
+        int nameLength = RecordStreamParser.Bam.nameLength(b, off);
+        int cigarOps = RecordStreamParser.Bam.cigarOps(b, off);
+        int seqLength = RecordStreamParser.Bam.seqLength(b, off);
+        int src = off + 36, end = off + len;
+
+        System.arraycopy(b, off, record, 0, 36); // block_size .. tlen
+        int dst = 36;
+        if (qname) {
+            System.arraycopy(b, src, record, dst, nameLength);
+            dst += nameLength;
+        } else {
+            record[dst++] = '*';
+            record[dst++] = 0;
+            record[12] = 2;
+        }
+        src += nameLength;
+        if (cigar) {
+            System.arraycopy(b, src, record, dst, 4 * cigarOps);
+            dst += 4 * cigarOps;
+        } else {
+            record[16] = record[17] = 0;
+        }
+        src += 4 * cigarOps;
+        int seqBytes = (seqLength + 1) / 2;
+        if (seq) {
+            System.arraycopy(b, src, record, dst, seqBytes);
+            dst += seqBytes;
+            if (qual) {
+                System.arraycopy(b, src + seqBytes, record, dst, seqLength);
+            } else {
+                Arrays.fill(record, dst, dst + seqLength, (byte) 0xFF);
+            }
+            dst += seqLength;
+        } else {
+            record[20] = record[21] = record[22] = record[23] = 0;
+        }
+        src += seqBytes + seqLength;
+        while (src < end) { // aux: tag, type, value
+            int size = 3 + valueSize(b, src + 2, end);
+            if (keepTag[(b[src] & 0xFF) << 8 | (b[src + 1] & 0xFF)]) {
+                System.arraycopy(b, src, record, dst, size);
+                dst += size;
+            }
+            src += size;
+        }
+        int blockSize = dst - 4;
+        record[0] = (byte) blockSize;
+        record[1] = (byte) (blockSize >> 8);
+        record[2] = (byte) (blockSize >> 16);
+        record[3] = (byte) (blockSize >> 24);
+        out.write(record, 0, dst);
+    }
+
+    /*
+     * Size of an aux value after its type byte at 'type'
+     */
+    private static int valueSize(byte[] b, int type, int end) throws IOException {
+        switch (b[type]) {
+            case 'A': case 'c': case 'C': return 1;
+            case 's': case 'S': return 2;
+            case 'i': case 'I': case 'f': return 4;
+            case 'Z': case 'H': {
+                int i = type + 1;
+                while (i < end && b[i] != 0) i++;
+                return i - type; // including the NUL
+            }
+            case 'B': {
+                int count = RecordStreamParser.int32(b, type + 2);
+                return 5 + count * valueSize(b, type + 1, end);
+            }
+            default: throw new IOException("Invalid BAM aux type '" + (char) b[type] + "'");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            if (parser.pending() > 0) throw new IOException("Incomplete BAM record at the end of the stream");
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -26,6 +26,8 @@ class Query {
     public String sequence;
     public long start;
     public long end;
+    public String dataClass; // htsget class: "header", "body" or null (both)
+    public String fields, tags, notags; // htsget projection (comma separated), null for all
 
     String toQueryString() {
         return String.format("%s:%d-%d", sequence, start, end);
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import htsjdk.samtools.util.Tuple;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Planning stage between the ticket and the downloads: consecutive ticket
+ * URLs pointing at the same URL with the same headers, whose ranges overlap,
+ * touch or are at most 'gap' bytes apart, are merged into one request (a
+ * Group). The data of a merged request is split back into the ticket's parts
+ * when it is written. Fragmented region tickets list many small neighbouring
+ * ranges of one file - they become a few requests instead of one connection
+ * (and probe) each.
+ *
+ * Ranges further apart than that can still share a request: up to maxSpans
+ * of them (each possibly merged as above) are asked for with one multi-range
+ * Range header (bytes=a-b,c-d,...) and come back as multipart/byteranges -
+ * small-region tickets scattered over a file cost one round trip instead of
+ * hundreds. See MultiRangeInputStream.
+ *
+ * Works on the ticket as it streams in; a merged request covers at most
+ * maxBytes of data, so large tickets are still fetched in parallel.
+ */
+class RangeCoalescer implements Iterator<RangeCoalescer.Group> {
+    static final long MAX_GROUP_BYTES = 8L * 1024 * 1024;
+    private static final int COPY_BUFFER = 256 * 1024;
+
+    /**
+     * One request, covering one or more parts of the ticket.
+     */
+    static final class Group {
+        final TicketResponse.URL_OBJECT request;
+        final long start, end;   // range of the request, inclusive (end -1 without a range)
+        final List<long[]> spans; // {start, end} of each range requested, ascending, disjoint
+        final List<long[]> parts; // {start, end} of each ticket URL, in ticket order
+        CompletableFuture<File> download; // set by the writer of a merged group
+
+        Group(TicketResponse.URL_OBJECT request, List<long[]> spans, List<long[]> parts) {
+            this.request = request;
+            this.spans = spans;
+            this.start = spans.get(0)[0];
+            this.end = spans.get(spans.size() - 1)[1];
+            this.parts = parts;
+        }
+
+        boolean merged() {
+            return parts.size() > 1;
+        }
+
+        /*
+         * Bytes of data of the request: the requested spans, back to back
+         */
+        long size() {
+            long size = 0;
+            for (long[] s : spans) size += s[1] - s[0] + 1;
+            return size;
+        }
+
+        /*
+         * Offset of position 'pos' of the resource in the request data
+         */
+        private long dataOffset(long pos) {
+            long base = 0;
+            for (long[] s : spans) {
+                if (pos <= s[1]) return base + pos - s[0];
+                base += s[1] - s[0] + 1;
+            }
+            throw new IllegalArgumentException("Position " + pos + " not requested");
+        }
+
+        long outputSize() {
+            long size = 0;
+            for (long[] p : parts) size += p[1] - p[0] + 1;
+            return size;
+        }
+
+        /*
+         * Whether the parts tile the request exactly (no gaps, no overlaps),
+         * so the data can be written as it is
+         */
+        boolean contiguous() {
+            int s = 0;
+            long next = start;
+            for (long[] p : parts) {
+                if (s == spans.size() || p[0] != next || p[1] > spans.get(s)[1]) return false;
+                next = p[1] + 1;
+                if (next > spans.get(s)[1] && ++s < spans.size()) next = spans.get(s)[0];
+            }
+            return s == spans.size();
+        }
+
+        /*
+         * Writes the parts from the downloaded request data
+         */
+        long copyParts(File data, OutputStream out) throws IOException {
+            byte[] buffer = new byte[COPY_BUFFER];
+            long total = 0;
+            try (RandomAccessFile raf = new RandomAccessFile(data, "r")) {
+                for (long[] p : parts) {
+                    raf.seek(dataOffset(p[0]));
+                    long remaining = p[1] - p[0] + 1;
+                    while (remaining > 0) {
+                        int n = raf.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (n < 0) throw new IOException("The stream is incomplete");
+                        out.write(buffer, 0, n);
+                        remaining -= n;
+                        total += n;
+                    }
+                }
+            }
+            return total;
+        }
+
+        /*
+         * Writes the parts from the downloaded request data into the channel
+         * at 'position' (positional writes)
+         */
+        long copyParts(File data, FileChannel out, long position) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER);
+            long p0 = position;
+            try (FileChannel in = FileChannel.open(data.toPath())) {
+                for (long[] p : parts) {
+                    long from = dataOffset(p[0]), remaining = p[1] - p[0] + 1;
+                    while (remaining > 0) {
+                        buffer.clear();
+                        buffer.limit((int) Math.min(buffer.capacity(), remaining));
+                        int n = in.read(buffer, from);
+                        if (n < 0) throw new IOException("The stream is incomplete");
+                        buffer.flip();
+                        while (buffer.hasRemaining()) position += out.write(buffer, position);
+                        from += n;
+                        remaining -= n;
+                    }
+                }
+            }
+            return position - p0;
+        }
+    }
+
+    private final Iterator<TicketResponse.URL_OBJECT> urls;
+    private final long gap;
+    private final long maxBytes;
+    private final int maxSpans;
+    private TicketResponse.URL_OBJECT peeked = null;
+
+    /*
+     * Merges ranges at most 'gap' bytes apart (negative: no merging), and
+     * requests up to maxSpans ranges of a URL at once (1: one range per request)
+     */
+    RangeCoalescer(Iterator<TicketResponse.URL_OBJECT> urls, long gap, long maxBytes, int maxSpans) {
+        this.urls = urls;
+        this.gap = gap;
+        this.maxBytes = maxBytes;
+        this.maxSpans = maxSpans;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return peeked != null || urls.hasNext();
+    }
+
+    @Override
+    public Group next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        TicketResponse.URL_OBJECT first = take();
+        Tuple<Long, Long> range = range(first);
+        if (range == null) {
+            List<long[]> whole = Collections.singletonList(new long[] {0, -1});
+            return new Group(first, whole, whole);
+        }
+        List<long[]> spans = new ArrayList<>();
+        long[] span = {range.a, range.b};
+        spans.add(span);
+        long bytes = span[1] - span[0] + 1;
+        List<long[]> parts = new ArrayList<>();
+        parts.add(new long[] {range.a, range.b});
+        while (gap >= 0 && (peeked != null || urls.hasNext())) {
+            TicketResponse.URL_OBJECT uo = take();
+            Tuple<Long, Long> r = range(uo);
+            boolean same = r != null && uo.url.equals(first.url) && sameHeaders(uo, first);
+            if (same && r.a >= span[0] && r.a <= span[1] + 1 + gap && bytes + Math.max(0, r.b - span[1]) <= maxBytes) {
+                bytes += Math.max(0, r.b - span[1]); // extends the current range
+                span[1] = Math.max(span[1], r.b);
+            } else if (same && r.a > span[1] + 1 + gap && spans.size() < maxSpans && bytes + r.b - r.a + 1 <= maxBytes) {
+                span = new long[] {r.a, r.b}; // one more range of the request
+                spans.add(span);
+                bytes += r.b - r.a + 1;
+            } else {
+                peeked = uo; // starts the next group
+                break;
+            }
+            parts.add(new long[] {r.a, r.b});
+        }
+        if (parts.size() == 1) return new Group(first, spans, parts);
+        if (spans.size() == 1) return new Group(first.withRange(span[0], span[1]), spans, parts);
+        return new Group(first.withRanges(spans), spans, parts);
+    }
+
+    private TicketResponse.URL_OBJECT take() {
+        TicketResponse.URL_OBJECT uo = peeked;
+        peeked = null;
+        return (uo != null) ? uo : urls.next();
+    }
+
+    private static Tuple<Long, Long> range(TicketResponse.URL_OBJECT uo) {
+        if (uo.url.startsWith("data")) return null;
+        try {
+            return uo.getRange();
+        } catch (ParseException ex) {
+            return null; // passed on as it is
+        }
+    }
+
+    /*
+     * Equal headers, apart from the range
+     */
+    private static boolean sameHeaders(TicketResponse.URL_OBJECT a, TicketResponse.URL_OBJECT b) {
+        if (a.headers == b.headers) return true;
+        if (a.headers == null || b.headers == null) return false;
+        int n = 0;
+        for (Map.Entry<String, String> e : a.headers.entrySet()) {
+            if (e.getKey().equalsIgnoreCase("Range")) continue;
+            if (!e.getValue().equals(b.headers.get(e.getKey()))) return false;
+            n++;
+        }
+        for (String key : b.headers.keySet()) {
+            if (!key.equalsIgnoreCase("Range")) n--;
+        }
+        return n == 0;
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Splits an uncompressed BAM, BCF or VCF byte stream into its header and
+ * individual records, without decoding the records themselves.
+ *
+ * Bytes can be fed in arbitrary chunks; the handler sees each record as one
+ * contiguous slice together with its offset in the uncompressed stream.
+ */
+abstract class RecordStreamParser {
+
+    interface RecordHandler {
+        void header(byte[] b, int off, int len, List<String> contigs) throws IOException;
+        void record(byte[] b, int off, int len, long offset) throws IOException;
+    }
+
+    protected final RecordHandler handler;
+    private byte[] buffer = new byte[1 << 16];
+    private int length = 0;
+    private long base = 0;  // stream offset of buffer[0]
+    private boolean headerDone = false;
+
+    protected RecordStreamParser(RecordHandler handler) {
+        this.handler = handler;
+    }
+
+    static RecordStreamParser forFormat(EgaStreamingClient.Format format, RecordHandler handler) {
+        switch (format) {
+            case BAM: return new Bam(handler);
+            case BCF: return new Bcf(handler);
+            case VCF: return new Vcf(handler);
+            default: throw new IllegalArgumentException("No record parser for " + format);
+        }
+    }
+
+    void feed(byte[] b, int off, int len) throws IOException {
+        if (length + len > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + len));
+        }
+        System.arraycopy(b, off, buffer, length, len);
+        length += len;
+
+        int pos = 0, n;
+        while (pos < length) {
+            if (!headerDone) {
+                n = headerLength(buffer, pos, length - pos);
+                if (n == 0) break;
+                headerDone = true;
+            } else {
+                n = recordLength(buffer, pos, length - pos);
+                if (n == 0) break;
+                handler.record(buffer, pos, n, base + pos);
+            }
+            pos += n;
+        }
+        if (pos > 0) {
+            System.arraycopy(buffer, pos, buffer, 0, length - pos);
+            length -= pos;
+            base += pos;
+        }
+    }
+
+    /*
+     * Bytes of an incomplete record at the end of the stream
+     */
+    int pending() {
+        return length;
+    }
+
+    /*
+     * Returns the header size once it is complete (calling handler.header), 0 otherwise
+     */
+    protected abstract int headerLength(byte[] b, int off, int len) throws IOException;
+
+    /*
+     * Returns the size of the complete record at off, 0 if more bytes are needed
+     */
+    protected abstract int recordLength(byte[] b, int off, int len) throws IOException;
+
+    static int int32(byte[] b, int off) {
+        return BgzfBlockSplitter.int32(b, off);
+    }
+
+    static int uint16(byte[] b, int off) {
+        return BgzfBlockSplitter.unsignedShort(b, off);
+    }
+
+    /*
+     * BAM: magic, l_text, text, n_ref, (l_name, name, l_ref)*, then records
+     * prefixed by their int32 block_size
+     */
+    static class Bam extends RecordStreamParser {
+        Bam(RecordHandler handler) { super(handler); }
+
+        @Override
+        protected int headerLength(byte[] b, int off, int len) throws IOException {
+            if (len < 12) return 0;
+            if (b[off] != 'B' || b[off + 1] != 'A' || b[off + 2] != 'M' || b[off + 3] != 1) {
+                throw new IOException("Not a BAM stream");
+            }
+            int pos = 8 + int32(b, off + 4);
+            if (len < pos + 4) return 0;
+            int nRef = int32(b, off + pos);
+            pos += 4;
+            List<String> contigs = new ArrayList<>(nRef);
+            for (int i = 0; i < nRef; i++) {
+                if (len < pos + 4) return 0;
+                int lName = int32(b, off + pos);
+                if (len < pos + 8 + lName) return 0;
+                contigs.add(new String(b, off + pos + 4, Math.max(0, lName - 1), StandardCharsets.US_ASCII));
+                pos += 8 + lName;
+            }
+            handler.header(b, off, pos, contigs);
+            return pos;
+        }
+
+        @Override
+        protected int recordLength(byte[] b, int off, int len) {
+            if (len < 4) return 0;
+            int n = 4 + int32(b, off);
+            return (len >= n) ? n : 0;
+        }
+
+        static int refId(byte[] b, int off)     { return int32(b, off + 4); }
+        static int pos(byte[] b, int off)       { return int32(b, off + 8); }
+        static int nameLength(byte[] b, int off){ return b[off + 12] & 0xFF; }
+        static int mapq(byte[] b, int off)      { return b[off + 13] & 0xFF; }
+        static int cigarOps(byte[] b, int off)  { return uint16(b, off + 16); }
+        static int flag(byte[] b, int off)      { return uint16(b, off + 18); }
+        static int seqLength(byte[] b, int off) { return int32(b, off + 20); }
+        static int nextRefId(byte[] b, int off) { return int32(b, off + 24); }
+        static int tlen(byte[] b, int off)      { return int32(b, off + 32); }
+        static int cigarOffset(byte[] b, int off) { return off + 36 + nameLength(b, off); }
+
+        /*
+         * 0-based exclusive end on the reference, computed from the CIGAR
+         */
+        static int end(byte[] b, int off) {
+            int start = pos(b, off), refLength = 0;
+            int cigar = cigarOffset(b, off);
+            for (int i = 0; i < cigarOps(b, off); i++) {
+                int op = int32(b, cigar + 4 * i);
+                switch (op & 0xF) {
+                    case 0: case 2: case 3: case 7: case 8: // M D N = X
+                        refLength += op >>> 4;
+                }
+            }
+            return start + Math.max(1, refLength);
+        }
+    }
+
+    /*
+     * BCF2: magic "BCF\2\x", l_text, VCF header text, then records of
+     * l_shared + l_indiv bytes
+     */
+    static class Bcf extends RecordStreamParser {
+        Bcf(RecordHandler handler) { super(handler); }
+
+        @Override
+        protected int headerLength(byte[] b, int off, int len) throws IOException {
+            if (len < 9) return 0;
+            if (b[off] != 'B' || b[off + 1] != 'C' || b[off + 2] != 'F' || b[off + 3] != 2) {
+                throw new IOException("Not a BCF2 stream");
+            }
+            int n = 9 + int32(b, off + 5);
+            if (len < n) return 0;
+            handler.header(b, off, n, Vcf.contigs(new String(b, off + 9, n - 9, StandardCharsets.US_ASCII)));
+            return n;
+        }
+
+        @Override
+        protected int recordLength(byte[] b, int off, int len) {
+            if (len < 8) return 0;
+            int n = 8 + int32(b, off) + int32(b, off + 4);
+            return (len >= n) ? n : 0;
+        }
+
+        static int contig(byte[] b, int off) { return int32(b, off + 8); }
+        static int pos(byte[] b, int off)    { return int32(b, off + 12); }
+        static int end(byte[] b, int off)    { return pos(b, off) + Math.max(1, int32(b, off + 16)); }
+    }
+
+    /*
+     * VCF text: '#' header lines, then one record per line
+     */
+    static class Vcf extends RecordStreamParser {
+        private static final Pattern CONTIG = Pattern.compile("^##contig=<.*?ID=([^,>]+)", Pattern.MULTILINE);
+        private int scanned = 0; // header bytes already known not to hold the end of the header
+
+        Vcf(RecordHandler handler) { super(handler); }
+
+        @Override
+        protected int headerLength(byte[] b, int off, int len) throws IOException {
+            int pos = scanned;
+            while (pos < len) {
+                if (b[off + pos] != '#') {
+                    handler.header(b, off, pos, contigs(new String(b, off, pos, StandardCharsets.US_ASCII)));
+                    return pos;
+                }
+                int eol = indexOf(b, off + pos, off + len, (byte) '\n');
+                if (eol < 0) break;
+                pos = eol - off + 1;
+            }
+            scanned = pos;
+            return 0;
+        }
+
+        @Override
+        protected int recordLength(byte[] b, int off, int len) {
+            int eol = indexOf(b, off, off + len, (byte) '\n');
+            return (eol < 0) ? 0 : eol - off + 1;
+        }
+
+        static List<String> contigs(String headerText) {
+            List<String> contigs = new ArrayList<>();
+            Matcher m = CONTIG.matcher(headerText);
+            while (m.find()) contigs.add(m.group(1));
+            return contigs;
+        }
+
+        /*
+         * Splits a record line into its first 8 (tab separated) columns
+         */
+        static String[] columns(byte[] b, int off, int len) {
+            int end = off + len;
+            while (end > off && (b[end - 1] == '\n' || b[end - 1] == '\r')) end--;
+            String[] columns = new String[8];
+            int start = off;
+            for (int i = 0; i < columns.length && start <= end; i++) {
+                int tab = indexOf(b, start, end, (byte) '\t');
+                int stop = (tab < 0) ? end : tab;
+                columns[i] = new String(b, start, stop - start, StandardCharsets.US_ASCII);
+                start = stop + 1;
+            }
+            return columns;
+        }
+
+        /*
+         * 0-based exclusive end: REF length, or the INFO END= tag when present
+         */
+        static int end(String[] columns) {
+            int start = Integer.parseInt(columns[1]) - 1;
+            int end = start + Math.max(1, columns[3] == null ? 1 : columns[3].length());
+            if (columns[7] != null) {
+                for (String field : columns[7].split(";")) {
+                    if (field.startsWith("END=")) {
+                        try {
+                            end = Math.max(end, Integer.parseInt(field.substring(4)));
+                        } catch (NumberFormatException ignored) {}
+                    }
+                }
+            }
+            return end;
+        }
+
+        private static int indexOf(byte[] b, int from, int to, byte c) {
+            for (int i = from; i < to; i++) {
+                if (b[i] == c) return i;
+            }
+            return -1;
+        }
+    }
+}
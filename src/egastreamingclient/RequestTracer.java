@@ -0,0 +1,284 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Response;
+
+/**
+ * Per-request latency tracing: where the time of each request goes - dns,
+ * connect (tls within it), ttfb (request sent to response headers) and
+ * transfer - and where the background readers wait: backpressure (a full
+ * queue, the consumer is slower) or starved (an empty one, the network is).
+ * Requests made through OkHttp are traced by an EventListener, range
+ * requests of EgaSeekableHTTPStream(OAuth) by timing their connection.
+ *
+ * --trace FILE writes the spans as Chrome trace events when the process
+ * ends (chrome://tracing, Perfetto): one row per request, one per thread
+ * for the waits. Up to MAX_SPANS are kept.
+ * --trace-jfr emits them as JFR events (egastreamingclient.RequestPhase)
+ * for a flight recording, where the JVM has JFR (8u272 and later).
+ */
+class RequestTracer {
+    private static final int MAX_SPANS = 1000000;
+    private static final int REQUESTS = 1, THREADS = 2; // the two processes of the trace
+
+    private static volatile boolean enabled = false;
+    private static volatile File file = null;
+    private static volatile boolean jfr = false;
+    private static final long t0 = System.nanoTime();
+    private static final AtomicLong requests = new AtomicLong();
+    private static final Map<Long, String> names = new ConcurrentHashMap<>(); // request and thread rows
+    private static final Queue<Span> spans = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger recorded = new AtomicInteger();
+
+    /*
+     * Chrome trace to 'traceFile' (null for none), JFR events if 'jfrEvents'
+     */
+    static void configure(File traceFile, boolean jfrEvents) {
+        if (jfrEvents) {
+            try {
+                Class.forName("jdk.jfr.Event");
+                jfr = true;
+            } catch (ClassNotFoundException ex) {
+                System.out.println("JFR is not available in this JVM - no JFR events");
+            }
+        }
+        file = traceFile;
+        enabled = traceFile != null || jfr;
+        if (traceFile != null) Runtime.getRuntime().addShutdownHook(new Thread(RequestTracer::write, "TraceWriter"));
+    }
+
+    static boolean enabled() {
+        return enabled;
+    }
+
+    /*
+     * A new request row; 0 if tracing is off
+     */
+    static long request(String url, String detail) {
+        if (!enabled) return 0;
+        long id = requests.incrementAndGet();
+        names.put(id, (detail == null) ? url : url + " " + detail);
+        return id;
+    }
+
+    /*
+     * A phase of a request; null if tracing is off
+     */
+    static Span begin(long request, String phase) {
+        return (request == 0) ? null : new Span(REQUESTS, request, phase);
+    }
+
+    /*
+     * A wait of the current thread; null if tracing is off
+     */
+    static Span begin(String phase) {
+        if (!enabled) return null;
+        Thread thread = Thread.currentThread();
+        names.putIfAbsent(-thread.getId(), thread.getName());
+        return new Span(THREADS, thread.getId(), phase);
+    }
+
+    static void end(Span span) {
+        end(span, -1);
+    }
+
+    static void end(Span span, long bytes) {
+        if (span != null) span.end(bytes);
+    }
+
+    static final class Span {
+        final int process;
+        final long row;
+        final String phase;
+        final long start;
+        private final Object event; // JFR
+        private volatile long end = -1;
+        private long bytes = -1;
+
+        private Span(int process, long row, String phase) {
+            this.process = process;
+            this.row = row;
+            this.phase = phase;
+            this.event = jfr ? JfrRequestEvent.begin(phase, (process == REQUESTS) ? names.get(row) : null) : null;
+            this.start = System.nanoTime();
+        }
+
+        /*
+         * Ends the span, once
+         */
+        private synchronized void end(long bytes) {
+            if (end >= 0) return;
+            long now = System.nanoTime();
+            this.bytes = bytes;
+            end = now;
+            if (event != null) JfrRequestEvent.commit(event, bytes);
+            if (file != null && recorded.incrementAndGet() <= MAX_SPANS) spans.add(this);
+        }
+    }
+
+    /*
+     * OkHttp calls, traced through their events
+     */
+    static EventListener.Factory listenerFactory() {
+        return call -> enabled ? new Listener(request(call.request().url().toString(), call.request().header("Range")))
+                               : EventListener.NONE;
+    }
+
+    private static final class Listener extends EventListener {
+        private final long request;
+        private volatile Span call, dns, connect, tls, ttfb, transfer;
+
+        Listener(long request) {
+            this.request = request;
+        }
+
+        @Override
+        public void callStart(Call c) {
+            call = begin(request, "request");
+        }
+
+        @Override
+        public void dnsStart(Call c, String domainName) {
+            dns = begin(request, "dns");
+        }
+
+        @Override
+        public void dnsEnd(Call c, String domainName, List<InetAddress> addresses) {
+            end(dns);
+        }
+
+        @Override
+        public void connectStart(Call c, InetSocketAddress address, Proxy proxy) {
+            connect = begin(request, "connect");
+        }
+
+        @Override
+        public void secureConnectStart(Call c) {
+            tls = begin(request, "tls");
+        }
+
+        @Override
+        public void secureConnectEnd(Call c, Handshake handshake) {
+            end(tls);
+        }
+
+        @Override
+        public void connectEnd(Call c, InetSocketAddress address, Proxy proxy, Protocol protocol) {
+            end(connect);
+        }
+
+        @Override
+        public void connectFailed(Call c, InetSocketAddress address, Proxy proxy, Protocol protocol, IOException ex) {
+            end(tls);
+            end(connect);
+        }
+
+        @Override
+        public void requestHeadersStart(Call c) {
+            ttfb = begin(request, "ttfb");
+        }
+
+        @Override
+        public void responseHeadersStart(Call c) {
+            end(ttfb);
+        }
+
+        @Override
+        public void responseHeadersEnd(Call c, Response response) {
+            end(ttfb);
+        }
+
+        @Override
+        public void responseBodyStart(Call c) {
+            transfer = begin(request, "transfer");
+        }
+
+        @Override
+        public void responseBodyEnd(Call c, long byteCount) {
+            end(transfer, byteCount);
+        }
+
+        @Override
+        public void callEnd(Call c) {
+            end(call);
+        }
+
+        @Override
+        public void callFailed(Call c, IOException ex) {
+            end(dns);
+            end(tls);
+            end(connect);
+            end(ttfb);
+            end(transfer);
+            end(call);
+        }
+    }
+
+    /*
+     * The trace file: a complete event per span, and the names of the rows
+     */
+    private static void write() {
+        try (JsonWriter json = new JsonWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            json.beginObject().name("displayTimeUnit").value("ms").name("traceEvents").beginArray();
+            metadata(json, "process_name", REQUESTS, 0, "Requests");
+            metadata(json, "process_name", THREADS, 0, "Threads");
+            for (Map.Entry<Long, String> e : names.entrySet()) {
+                long row = e.getKey();
+                metadata(json, "thread_name", (row > 0) ? REQUESTS : THREADS, Math.abs(row), e.getValue());
+            }
+            for (Span s : spans) {
+                json.beginObject().name("name").value(s.phase).name("ph").value("X")
+                    .name("pid").value(s.process).name("tid").value(s.row)
+                    .name("ts").value((s.start - t0) / 1000.0).name("dur").value((s.end - s.start) / 1000.0);
+                if (s.bytes >= 0) json.name("args").beginObject().name("bytes").value(s.bytes).endObject();
+                json.endObject();
+            }
+            json.endArray();
+            int dropped = recorded.get() - MAX_SPANS;
+            if (dropped > 0) json.name("otherData").beginObject().name("dropped_spans").value(dropped).endObject();
+            json.endObject();
+        } catch (IOException ex) {
+            System.err.println("Unable to write trace " + file + ": " + ex);
+        }
+    }
+
+    private static void metadata(JsonWriter json, String kind, int process, long row, String name) throws IOException {
+        json.beginObject().name("name").value(kind).name("ph").value("M").name("pid").value(process).name("tid").value(row)
+            .name("args").beginObject().name("name").value(name).endObject().endObject();
+    }
+}
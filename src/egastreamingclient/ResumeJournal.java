@@ -0,0 +1,338 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Crash-safe record of the progress of one ticket download, kept next to the
+ * output file (output.journal), so that an interrupted run can be continued.
+ *
+ * The output holds the data of the ticket URLs in ticket order; downloads in
+ * progress are kept in part files (output.partN for URL index N). The journal
+ * is an append-only text file:
+ *   EGA-HTSGET-JOURNAL 1 urls
+ *   D index fingerprint output-offset .   - URL written, output complete up to offset
+ *   P index fingerprint bytes .           - part file holds at least this many bytes
+ * where the fingerprint identifies the URL and its Range header, and the
+ * final '.' shows the record was written completely.
+ *
+ * Records are batched: about once a second the output and the part files are
+ * forced to disk first, and only then the records describing them are
+ * appended and the journal is forced. A record therefore never claims more
+ * than is on disk.
+ *
+ * On open, the journal is validated against the new ticket: the leading
+ * completed URLs with matching fingerprints are kept, the output is truncated
+ * to the end of the last of them, and part files are cut back to their last
+ * recorded length. Anything that doesn't match is discarded.
+ */
+class ResumeJournal implements Closeable {
+    private static final String MAGIC = "EGA-HTSGET-JOURNAL 1";
+    private static final long SYNC_MILLIS = 1000;
+    private static final int MAX_BATCH = 64;
+
+    private final File outputFile;
+    private final File journalFile;
+    private final String[] fingerprints;
+    private final int firstIndex;
+    private final FileOutputStream output;
+    private final FileOutputStream journal;
+    private final ScheduledExecutorService syncer;
+    private final boolean debug;
+
+    private long offset;                                       // output bytes written
+    private final List<long[]> pendingDone = new ArrayList<>(); // {index, output offset}, not yet journaled
+    private final Map<Integer, Long> active = new TreeMap<>(); // part file index -> length last journaled
+    private IOException syncFailure = null;
+
+    private ResumeJournal(File outputFile, String[] fingerprints, int firstIndex, long[] offsets,
+                          Map<Integer, Long> parts, boolean debug) throws IOException {
+        this.outputFile = outputFile;
+        this.journalFile = journalFile(outputFile);
+        this.fingerprints = fingerprints;
+        this.firstIndex = firstIndex;
+        this.offset = (firstIndex > 0) ? offsets[firstIndex - 1] : 0;
+        this.debug = debug;
+        this.active.putAll(parts);
+
+        // Rewrite the journal with only the records still valid, then append to it
+        File tmp = new File(journalFile.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            StringBuilder sb = new StringBuilder(MAGIC).append(' ').append(fingerprints.length).append('\n');
+            for (int i = 0; i < firstIndex; i++) {
+                sb.append("D ").append(i).append(' ').append(fingerprints[i]).append(' ').append(offsets[i]).append(" .\n");
+            }
+            for (Map.Entry<Integer, Long> e : parts.entrySet()) {
+                sb.append("P ").append(e.getKey()).append(' ').append(fingerprints[e.getKey()]).append(' ').append(e.getValue()).append(" .\n");
+            }
+            fos.write(sb.toString().getBytes(StandardCharsets.US_ASCII));
+            fos.getChannel().force(true);
+        }
+        Files.move(tmp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        this.output = new FileOutputStream(outputFile, true);
+        this.journal = new FileOutputStream(journalFile, true);
+        this.syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ResumeJournal");
+            t.setDaemon(true);
+            return t;
+        });
+        syncer.scheduleWithFixedDelay(this::syncQuietly, SYNC_MILLIS, SYNC_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    static File journalFile(File outputFile) {
+        return new File(outputFile.getPath() + ".journal");
+    }
+
+    /*
+     * Opens the journal of this output file for the given ticket, continuing
+     * where a previous run stopped if the journal matches the ticket
+     */
+    static ResumeJournal open(File outputFile, TicketResponse r, boolean debug) throws IOException {
+        String[] fingerprints = new String[r.urls.length];
+        for (int i = 0; i < r.urls.length; i++) {
+            fingerprints[i] = fingerprint(r.urls[i]);
+        }
+
+        int done = 0;                            // leading URLs already in the output
+        long offset = 0;
+        long[] offsets = new long[fingerprints.length];
+        Map<Integer, Long> recorded = new HashMap<>(); // part file index -> journaled length
+        File journalFile = journalFile(outputFile);
+        if (journalFile.exists()) {
+            try (BufferedReader br = new BufferedReader(new FileReader(journalFile))) {
+                String line = br.readLine();
+                if (line != null && line.equals(MAGIC + " " + fingerprints.length)) {
+                    while ((line = br.readLine()) != null) {
+                        String[] f = line.split(" ");
+                        if (f.length != 5 || !f[4].equals(".")) continue; // torn write
+                        int index;
+                        long value;
+                        try {
+                            index = Integer.parseInt(f[1]);
+                            value = Long.parseLong(f[3]);
+                        } catch (NumberFormatException ex) {
+                            continue;
+                        }
+                        if (index < 0 || index >= fingerprints.length || !fingerprints[index].equals(f[2])) continue;
+                        if (f[0].equals("D")) {
+                            // Completed URLs are journaled in order
+                            if (index == done && value >= offset) {
+                                offsets[done++] = value;
+                                offset = value;
+                            }
+                        } else if (f[0].equals("P")) {
+                            recorded.put(index, value);
+                        }
+                    }
+                }
+            }
+        }
+        if (done > 0 && outputFile.length() < offset) { // output is not what the journal says - start over
+            if (debug) System.out.println("Resume journal does not match " + outputFile + " - starting over");
+            done = 0;
+            offset = 0;
+            recorded.clear();
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(outputFile, "rw")) {
+            raf.setLength(offset);
+        }
+
+        // Keep the part files of URLs still to be written, cut back to what is known to be on disk
+        Map<Integer, Long> parts = new TreeMap<>();
+        for (int i = 0; i < fingerprints.length; i++) {
+            File part = partFile(outputFile, i);
+            if (!part.exists()) continue;
+            Long length = recorded.get(i);
+            if (i >= done && length != null && length > 0 && length <= part.length()) {
+                try (RandomAccessFile raf = new RandomAccessFile(part, "rw")) {
+                    raf.setLength(length);
+                }
+                parts.put(i, length);
+            } else {
+                part.delete();
+            }
+        }
+        if (debug && (done > 0 || !parts.isEmpty())) {
+            System.out.println("Resuming " + outputFile + " at URL " + done + " of " + fingerprints.length
+                    + " (" + offset + " bytes), " + parts.size() + " partial downloads");
+        }
+        return new ResumeJournal(outputFile, fingerprints, done, offsets, parts, debug);
+    }
+
+    /*
+     * Identity of a ticket URL: the URL itself and its byte range
+     */
+    static String fingerprint(TicketResponse.URL_OBJECT uo) {
+        String range = (uo.headers == null) ? null : uo.headers.get("Range");
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(uo.url.getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            if (range != null) md.update(range.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            byte[] digest = md.digest();
+            for (int i = 0; i < 12; i++) sb.append(String.format("%02x", digest[i]));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static File partFile(File outputFile, int index) {
+        return new File(outputFile.getPath() + ".part" + index);
+    }
+
+    /*
+     * Index of the first URL not yet in the output
+     */
+    int firstIndex() {
+        return firstIndex;
+    }
+
+    /*
+     * The output file, positioned after the URLs already written
+     */
+    OutputStream output() {
+        return output;
+    }
+
+    /*
+     * Part file to download URL 'index' into; it is kept across runs
+     */
+    synchronized File partFile(int index) {
+        if (!active.containsKey(index)) active.put(index, 0L);
+        return partFile(outputFile, index);
+    }
+
+    boolean isPartFile(File file) {
+        return file.getName().startsWith(outputFile.getName() + ".part") && outputFile.getAbsoluteFile().getParentFile().equals(file.getAbsoluteFile().getParentFile());
+    }
+
+    /*
+     * URL 'index' has been written to the output - 'bytes' long
+     */
+    void completed(int index, long bytes) throws IOException {
+        boolean flush;
+        synchronized (this) {
+            if (syncFailure != null) throw syncFailure;
+            offset += bytes;
+            pendingDone.add(new long[] {index, offset});
+            flush = pendingDone.size() >= MAX_BATCH;
+        }
+        if (flush) sync();
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (IOException ex) {
+            synchronized (this) {
+                syncFailure = ex;
+            }
+        }
+    }
+
+    /*
+     * Forces data to disk, then appends and forces the records that describe it
+     */
+    synchronized void sync() throws IOException {
+        List<long[]> done = new ArrayList<>(pendingDone);
+        pendingDone.clear();
+        StringBuilder sb = new StringBuilder();
+        if (!done.isEmpty()) {
+            output.getChannel().force(false);
+        }
+        for (Map.Entry<Integer, Long> e : active.entrySet()) {
+            File part = partFile(outputFile, e.getKey());
+            long length = part.length();
+            if (length > e.getValue()) {
+                try (FileChannel ch = FileChannel.open(part.toPath(), StandardOpenOption.WRITE)) {
+                    ch.force(false);
+                }
+                sb.append("P ").append(e.getKey()).append(' ').append(fingerprints[e.getKey()]).append(' ').append(length).append(" .\n");
+                e.setValue(length);
+            }
+        }
+        for (long[] d : done) {
+            sb.append("D ").append(d[0]).append(' ').append(fingerprints[(int) d[0]]).append(' ').append(d[1]).append(" .\n");
+        }
+        if (sb.length() > 0) {
+            journal.write(sb.toString().getBytes(StandardCharsets.US_ASCII));
+            journal.getChannel().force(false);
+        }
+        // Part files of written URLs are no longer needed once that is on record
+        for (long[] d : done) {
+            active.remove((int) d[0]);
+            partFile(outputFile, (int) d[0]).delete();
+        }
+    }
+
+    /*
+     * The whole ticket has been written: the journal and part files go
+     */
+    void finish() throws IOException {
+        close();
+        for (Integer index : new ArrayList<>(active.keySet())) {
+            partFile(outputFile, index).delete();
+        }
+        journalFile.delete();
+        if (debug) System.out.println("Download of " + outputFile + " complete, resume journal removed");
+    }
+
+    /*
+     * Stops journaling; everything written so far is on record
+     */
+    @Override
+    public void close() throws IOException {
+        if (syncer.isShutdown()) return;
+        syncer.shutdown();
+        try {
+            syncer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            sync();
+        } finally {
+            output.close();
+            journal.close();
+        }
+    }
+}
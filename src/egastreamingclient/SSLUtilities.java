@@ -367,7 +367,7 @@ import okhttp3.OkHttpClient;
         final SSLSocketFactory sslSocketFactory = sslContext.getSocketFactory();
 
         OkHttpClient.Builder builder = new OkHttpClient.Builder();
-        builder.sslSocketFactory(sslSocketFactory);
+        builder.sslSocketFactory(sslSocketFactory, (X509TrustManager) trustAllCerts[0]);
         builder.hostnameVerifier(new HostnameVerifier() {
           @Override
           public boolean verify(String hostname, SSLSession session) {
@@ -384,5 +384,16 @@ import okhttp3.OkHttpClient;
         throw new RuntimeException(e);
       }
     }
+
+    // Same trust-all policy for connections made without OkHttp (AsyncTransport)
+    public static SSLContext getUnsafeSSLContext() {
+      try {
+        final SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, new TrustManager[] {new FakeX509TrustManager()}, new SecureRandom());
+        return sslContext;
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException(e);
+      }
+    }
    
 } // SSLUtilities
\ No newline at end of file
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Statistics mode (--stats): the records of the uncompressed stream are
+ * summarised as they pass, and only the summary is written - as one line of
+ * JSON, when the stream is closed. Nothing of the data is kept.
+ *
+ * Reads (BAM): flag counts (as samtools flagstat: secondary and
+ * supplementary records apart from the primary ones, pair figures - paired,
+ * read1/read2, proper pairs, singletons, mates mapped or on another contig -
+ * of primary records only), the MAPQ histogram, the insert size histogram
+ * (once per pair: TLEN > 0 of mapped pairs on one contig), and per-base
+ * depth (as samtools depth: no unmapped, secondary, QC failed or duplicate
+ * reads; M, = and X bases) summarised into a depth histogram and per contig
+ * figures. Depth is counted in a ring over the reads overlapping the current
+ * position - the input is sorted.
+ *
+ * Variants (VCF, BCF): records per contig.
+ */
+class StatsOutputStream extends FilterOutputStream {
+    // What the statistics need of a read: the server can leave out the rest
+    static final String FIELDS = "FLAG,RNAME,POS,MAPQ,CIGAR,RNEXT,PNEXT,TLEN";
+
+    private static final String[] FLAGS = {"paired", "proper_pair", "unmapped", "mate_unmapped", "reverse",
+                                           "mate_reverse", "read1", "read2", "secondary", "qc_fail",
+                                           "duplicate", "supplementary"};
+    private static final int MAX_DEPTH = 10000;   // histogram bins, the last for all above
+    private static final int MAX_INSERT = 10000;
+    private static final int DEPTH_FILTER = 0x4 | 0x100 | 0x200 | 0x400;
+    private static final int PAIR_FLAGS = 0x1 | 0x2 | 0x40 | 0x80; // counted for paired primary records only
+
+    private final EgaStreamingClient.Format format;
+    private final RecordStreamParser parser;
+    private boolean closed = false;
+    private List<String> contigs = new ArrayList<>();
+
+    // Reads
+    private long reads = 0, primary = 0, secondary = 0, supplementary = 0, mapped = 0, primaryMapped = 0;
+    private long pairsMapped = 0, singletons = 0, mateOtherContig = 0, pairs = 0;
+    private final long[] flags = new long[FLAGS.length];
+    private final long[] mapq = new long[256];
+    private final long[] insert = new long[MAX_INSERT + 1];
+    private final long[] depth = new long[MAX_DEPTH + 1];
+    private long[] contigReads = new long[0], contigCovered = new long[0], contigDepth = new long[0];
+    private int[] contigMaxDepth = new int[0];
+    private int[] ring = new int[1 << 16];
+    private int ringContig = -1;
+    private long ringBase = 0, ringEnd = 0; // first position not yet counted, end of the reads so far
+
+    // Variants
+    private long variants = 0;
+    private final Map<String, Long> contigVariants = new LinkedHashMap<>();
+
+    StatsOutputStream(OutputStream summary, EgaStreamingClient.Format format) {
+        super(summary);
+        this.format = format;
+        this.parser = RecordStreamParser.forFormat(format, new RecordStreamParser.RecordHandler() {
+            @Override
+            public void header(byte[] b, int off, int len, List<String> names) {
+                contigs = names;
+                contigReads = new long[names.size()];
+                contigCovered = new long[names.size()];
+                contigDepth = new long[names.size()];
+                contigMaxDepth = new int[names.size()];
+            }
+
+            @Override
+            public void record(byte[] b, int off, int len, long offset) {
+                switch (format) {
+                    case BAM: read(b, off); break;
+                    case BCF: variant(contig(RecordStreamParser.Bcf.contig(b, off))); break;
+                    default: variant(vcfContig(b, off, len));
+                }
+            }
+        });
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        parser.feed(b, off, len);
+    }
+
+    private void read(byte[] b, int off) {
+        int flag = RecordStreamParser.Bam.flag(b, off);
+        int refId = RecordStreamParser.Bam.refId(b, off);
+        boolean isPrimary = (flag & 0x900) == 0;
+        reads++;
+        if ((flag & 0x100) != 0) secondary++;
+        else if ((flag & 0x800) != 0) supplementary++;
+        else primary++;
+        for (int i = 0; i < flags.length; i++) {
+            int bit = 1 << i;
+            if ((flag & bit) == 0) continue;
+            if ((bit & PAIR_FLAGS) != 0 && (!isPrimary || (flag & 0x1) == 0)) continue;
+            if (bit == 0x2 && (flag & 0x4) != 0) continue; // proper pairs are mapped ones
+            flags[i]++;
+        }
+        if ((flag & 0x4) != 0) return;
+        mapped++;
+        if (refId >= 0 && refId < contigReads.length) contigReads[refId]++;
+        if (isPrimary) {
+            primaryMapped++;
+            mapq[RecordStreamParser.Bam.mapq(b, off)]++;
+        }
+        if ((flag & 0x1) != 0 && isPrimary) {
+            if ((flag & 0x8) != 0) {
+                singletons++;
+            } else {
+                pairsMapped++;
+                int mateRefId = RecordStreamParser.Bam.nextRefId(b, off);
+                if (mateRefId != refId) {
+                    mateOtherContig++;
+                } else {
+                    int tlen = RecordStreamParser.Bam.tlen(b, off);
+                    if (tlen > 0) {
+                        insert[Math.min(tlen, MAX_INSERT)]++;
+                        pairs++;
+                    }
+                }
+            }
+        }
+        if ((flag & DEPTH_FILTER) == 0 && refId >= 0) cover(b, off, refId);
+    }
+
+    /*
+     * Adds the aligned bases of a read to the depth ring
+     */
+    private void cover(byte[] b, int off, int refId) {
+        long pos = RecordStreamParser.Bam.pos(b, off);
+        if (refId != ringContig) {
+            count(ringEnd);
+            ringContig = refId;
+            ringBase = ringEnd = pos;
+        }
+        count(pos); // no later read starts before pos
+        long end = RecordStreamParser.Bam.end(b, off);
+        if (end - ringBase > ring.length) grow(end - ringBase);
+        int cigar = RecordStreamParser.Bam.cigarOffset(b, off);
+        int mask = ring.length - 1;
+        for (int i = 0; i < RecordStreamParser.Bam.cigarOps(b, off); i++) {
+            int op = RecordStreamParser.int32(b, cigar + 4 * i);
+            int length = op >>> 4;
+            switch (op & 0xF) {
+                case 0: case 7: case 8: // M = X
+                    for (long x = Math.max(pos, ringBase); x < pos + length; x++) ring[(int) (x & mask)]++;
+                    pos += length;
+                    break;
+                case 2: case 3: // D N
+                    pos += length;
+                    break;
+            }
+        }
+        ringEnd = Math.max(ringEnd, end);
+    }
+
+    /*
+     * Counts the depth of the positions before 'to' of the current contig
+     */
+    private void count(long to) {
+        int mask = ring.length - 1;
+        for (long x = ringBase; x < Math.min(to, ringEnd); x++) {
+            int d = ring[(int) (x & mask)];
+            if (d == 0) continue;
+            ring[(int) (x & mask)] = 0;
+            depth[Math.min(d, MAX_DEPTH)]++;
+            if (ringContig < contigCovered.length) {
+                contigCovered[ringContig]++;
+                contigDepth[ringContig] += d;
+                contigMaxDepth[ringContig] = Math.max(contigMaxDepth[ringContig], d);
+            }
+        }
+        ringBase = Math.max(ringBase, to);
+    }
+
+    private void grow(long span) {
+        int size = ring.length;
+        while (size < span) size *= 2;
+        int[] grown = new int[size];
+        for (long x = ringBase; x < ringEnd; x++) grown[(int) (x & (size - 1))] = ring[(int) (x & (ring.length - 1))];
+        ring = grown;
+    }
+
+    private String contig(int id) {
+        return (id >= 0 && id < contigs.size()) ? contigs.get(id) : String.valueOf(id);
+    }
+
+    private static String vcfContig(byte[] b, int off, int len) {
+        int tab = off;
+        while (tab < off + len && b[tab] != '\t') tab++;
+        return new String(b, off, tab - off, StandardCharsets.US_ASCII);
+    }
+
+    private void variant(String contig) {
+        variants++;
+        Long n = contigVariants.get(contig);
+        contigVariants.put(contig, (n == null) ? 1 : n + 1);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            if (parser.pending() > 0) throw new IOException("Incomplete record at the end of the stream");
+            count(ringEnd);
+            JsonWriter json = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            json.beginObject().name("format").value(format.name());
+            if (format == EgaStreamingClient.Format.BAM) writeReads(json);
+            else writeVariants(json);
+            json.endObject();
+            json.flush();
+            out.write('\n');
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeReads(JsonWriter json) throws IOException {
+        json.name("reads").value(reads).name("primary").value(primary)
+            .name("secondary").value(secondary).name("supplementary").value(supplementary)
+            .name("mapped").value(mapped).name("primary_mapped").value(primaryMapped);
+        json.name("flags").beginObject();
+        for (int i = 0; i < FLAGS.length; i++) json.name(FLAGS[i]).value(flags[i]);
+        json.endObject();
+        json.name("paired_mapped").value(pairsMapped).name("singletons").value(singletons)
+            .name("mate_other_contig").value(mateOtherContig);
+        histogram(json.name("mapq"), mapq);
+        json.name("insert_size").beginObject().name("pairs").value(pairs).name("max").value(MAX_INSERT);
+        histogram(json.name("histogram"), insert);
+        json.endObject();
+        long covered = 0, sum = 0;
+        for (int d = 1; d < depth.length; d++) covered += depth[d];
+        for (long c : contigDepth) sum += c;
+        json.name("depth").beginObject().name("bases_covered").value(covered)
+            .name("mean").value(covered == 0 ? 0 : (double) sum / covered).name("max").value(MAX_DEPTH);
+        histogram(json.name("histogram"), depth);
+        json.endObject();
+        json.name("contigs").beginArray();
+        for (int i = 0; i < contigReads.length; i++) {
+            if (contigReads[i] == 0) continue;
+            json.beginObject().name("name").value(contigs.get(i)).name("reads").value(contigReads[i])
+                .name("bases_covered").value(contigCovered[i])
+                .name("mean_depth").value(contigCovered[i] == 0 ? 0 : (double) contigDepth[i] / contigCovered[i])
+                .name("max_depth").value(contigMaxDepth[i]).endObject();
+        }
+        json.endArray();
+    }
+
+    private void writeVariants(JsonWriter json) throws IOException {
+        json.name("variants").value(variants);
+        json.name("contigs").beginArray();
+        for (Map.Entry<String, Long> e : contigVariants.entrySet()) {
+            json.beginObject().name("name").value(e.getKey()).name("variants").value(e.getValue()).endObject();
+        }
+        json.endArray();
+    }
+
+    /*
+     * Counts by value, up to the last non-zero one
+     */
+    private static void histogram(JsonWriter json, long[] counts) throws IOException {
+        int n = counts.length;
+        while (n > 0 && counts[n - 1] == 0) n--;
+        json.beginArray();
+        for (long c : Arrays.copyOf(counts, n)) json.value(c);
+        json.endArray();
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aborts transfers whose throughput stays below a minimum.
+ *
+ * A connection that trickles a few bytes every now and then never hits the
+ * socket read timeout. Watched streams are sampled once a second; after a
+ * grace period, a stream that moved fewer than the minimum bytes/s over the
+ * last window is aborted underneath its reader, which then fails with an
+ * IOException and goes through the normal retry path.
+ */
+class ThroughputWatchdog {
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ThroughputWatchdog");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final long minBytesPerSecond;
+    private final long graceMillis;
+    private final long windowMillis;
+
+    ThroughputWatchdog(long minBytesPerSecond) {
+        this(minBytesPerSecond, 15000, 10000);
+    }
+
+    ThroughputWatchdog(long minBytesPerSecond, long graceMillis, long windowMillis) {
+        this.minBytesPerSecond = minBytesPerSecond;
+        this.graceMillis = graceMillis;
+        this.windowMillis = windowMillis;
+    }
+
+    /*
+     * Watches the stream; on a stall 'abort' is closed, which has to unblock a
+     * read waiting on the network (closing the connection or cancelling the call)
+     */
+    InputStream watch(InputStream in, String name, Closeable abort) {
+        if (minBytesPerSecond <= 0 || in == null) return in;
+        return new WatchedInputStream(in, name, abort);
+    }
+
+    /*
+     * A transfer aborted for its throughput (retried, but not a failure of the host)
+     */
+    static class StalledException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        StalledException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    private class WatchedInputStream extends FilterInputStream {
+        private final String name;
+        private final Closeable abort;
+        private final long start = System.currentTimeMillis();
+        private final ArrayDeque<long[]> samples = new ArrayDeque<>(); // {time, bytes}
+        private final ScheduledFuture<?> check;
+        private volatile long bytes = 0;
+        private volatile String stalled = null;
+
+        WatchedInputStream(InputStream in, String name, Closeable abort) {
+            super(in);
+            this.name = name;
+            this.abort = abort;
+            this.check = TIMER.scheduleAtFixedRate(this::check, 1, 1, TimeUnit.SECONDS);
+        }
+
+        private void check() {
+            long now = System.currentTimeMillis();
+            long current = bytes;
+            samples.add(new long[] {now, current});
+            while (samples.size() > 1 && now - samples.peek()[0] > windowMillis) {
+                samples.poll();
+            }
+            if (now - start < graceMillis) return;
+
+            long[] oldest = samples.peek();
+            long elapsed = Math.max(1, now - oldest[0]);
+            long rate = (current - oldest[1]) * 1000 / elapsed;
+            if (elapsed >= windowMillis / 2 && rate < minBytesPerSecond) {
+                stalled = "Transfer stalled at " + rate + " B/s (minimum " + minBytesPerSecond + " B/s): " + name;
+                check.cancel(false);
+                try {
+                    abort.close();
+                } catch (IOException ignored) {}
+            }
+        }
+
+        private int count(int n) throws IOException {
+            if (stalled != null) throw new StalledException(stalled, null);
+            if (n > 0) bytes += n;
+            return n;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return (n <= 0) ? -1 : (b[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            count(0);
+            try {
+                return count(super.read(b, off, len));
+            } catch (IOException ex) {
+                if (stalled != null) throw new StalledException(stalled, ex);
+                throw ex;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            check.cancel(false);
+            super.close();
+        }
+    }
+}
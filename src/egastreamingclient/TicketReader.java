@@ -0,0 +1,238 @@
+/*
+ * Copyright 2017 ELIXIR EGA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egastreamingclient;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * Streaming parser of htsget ticket JSON: URL_OBJECTs are read one at a time
+ * (next(), urls()), without building the document in memory first - so
+ * their downloads can start while the rest of the ticket is still arriving.
+ *
+ * Tickets of whole genomes have tens of thousands of URLs that mostly repeat
+ * the same URL string and header values. Strings are interned per ticket
+ * (except ranges, which are unique), and URLs with equal headers share one
+ * header map - which is why URL_OBJECT.setRange() replaces its map instead
+ * of changing it.
+ */
+class TicketReader implements Closeable {
+    private final JsonReader json;
+    private final Map<String, String> strings = new HashMap<>();
+    private final Map<Map<String, String>, TreeMap<String, String>> headerMaps = new HashMap<>();
+    private String format;
+    private boolean ticket = false; // an "htsget" object was found
+    private boolean inUrls = false;
+
+    TicketReader(Reader in) throws IOException {
+        json = new JsonReader(in);
+        json.setLenient(true);
+        // { "htsget": { ..., "urls": [
+        if (json.peek() != JsonToken.BEGIN_OBJECT) return;
+        json.beginObject();
+        while (json.hasNext()) {
+            if (json.nextName().equals("htsget") && json.peek() == JsonToken.BEGIN_OBJECT) {
+                json.beginObject();
+                ticket = true;
+                readFields();
+                return;
+            }
+            json.skipValue();
+        }
+    }
+
+    /*
+     * Reads the fields of the ticket up to the urls array, or to its end
+     */
+    private void readFields() throws IOException {
+        while (json.hasNext()) {
+            String name = json.nextName();
+            if (name.equals("format") && json.peek() == JsonToken.STRING) {
+                format = json.nextString();
+            } else if (name.equals("urls") && json.peek() == JsonToken.BEGIN_ARRAY) {
+                json.beginArray();
+                inUrls = true;
+                return;
+            } else {
+                json.skipValue();
+            }
+        }
+    }
+
+    boolean isTicket() {
+        return ticket;
+    }
+
+    /*
+     * Whether the ticket has (more) URLs to read
+     */
+    boolean hasUrls() {
+        return inUrls;
+    }
+
+    /*
+     * Format of the ticket - known once its URLs are read, if it follows them
+     */
+    String format() {
+        return format;
+    }
+
+    /*
+     * The next URL of the ticket, null after the last one
+     */
+    TicketResponse.URL_OBJECT next() throws IOException {
+        if (!inUrls) return null;
+        if (!json.hasNext()) {
+            json.endArray();
+            inUrls = false;
+            readFields();
+            return null;
+        }
+        String url = null, dataClass = null;
+        TreeMap<String, String> headers = null;
+        json.beginObject();
+        while (json.hasNext()) {
+            String name = json.nextName();
+            if (name.equals("url") && json.peek() == JsonToken.STRING) {
+                url = intern(json.nextString());
+            } else if (name.equals("headers") && json.peek() == JsonToken.BEGIN_OBJECT) {
+                headers = readHeaders();
+            } else if (name.equals("class") && json.peek() == JsonToken.STRING) {
+                dataClass = intern(json.nextString());
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+        TicketResponse.URL_OBJECT uo = new TicketResponse.URL_OBJECT(url);
+        if (headers != null) uo.headers = headers;
+        uo.dataClass = dataClass;
+        return uo;
+    }
+
+    private TreeMap<String, String> readHeaders() throws IOException {
+        TreeMap<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        json.beginObject();
+        while (json.hasNext()) {
+            String name = intern(json.nextName());
+            if (json.peek() != JsonToken.STRING) {
+                json.skipValue();
+            } else if (name.equalsIgnoreCase("Range")) {
+                headers.put(name, json.nextString()); // unique per URL
+            } else {
+                headers.put(name, intern(json.nextString()));
+            }
+        }
+        json.endObject();
+        if (headers.containsKey("Range")) return headers; // only maps without a range repeat
+        TreeMap<String, String> shared = headerMaps.putIfAbsent(headers, headers);
+        return (shared != null) ? shared : headers;
+    }
+
+    private String intern(String s) {
+        String shared = strings.putIfAbsent(s, s);
+        return (shared != null) ? shared : s;
+    }
+
+    /*
+     * The URLs still to be read, parsed as the iteration proceeds; read
+     * errors surface as UncheckedIOException
+     */
+    Iterator<TicketResponse.URL_OBJECT> urls() {
+        return new Iterator<TicketResponse.URL_OBJECT>() {
+            private TicketResponse.URL_OBJECT next = null;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null) {
+                    try {
+                        next = TicketReader.this.next();
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public TicketResponse.URL_OBJECT next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                TicketResponse.URL_OBJECT uo = next;
+                next = null;
+                return uo;
+            }
+        };
+    }
+
+    /*
+     * The whole ticket; null if the JSON holds no htsget ticket
+     */
+    TicketResponse readAll() throws IOException {
+        if (!ticket) return null;
+        List<TicketResponse.URL_OBJECT> urls = new ArrayList<>();
+        boolean hasUrls = inUrls;
+        TicketResponse.URL_OBJECT uo;
+        while ((uo = next()) != null) urls.add(uo);
+        TicketResponse r = new TicketResponse();
+        r.format = format;
+        if (hasUrls) r.urls = urls.toArray(new TicketResponse.URL_OBJECT[urls.size()]);
+        return r;
+    }
+
+    @Override
+    public void close() throws IOException {
+        json.close();
+    }
+
+    /*
+     * Writes a ticket as htsget JSON, one URL at a time
+     */
+    static void write(TicketResponse r, Writer out, boolean pretty) throws IOException {
+        JsonWriter w = new JsonWriter(out);
+        if (pretty) w.setIndent("  ");
+        w.beginObject().name("htsget").beginObject();
+        if (r.format != null) w.name("format").value(r.format);
+        if (r.urls != null) {
+            w.name("urls").beginArray();
+            for (TicketResponse.URL_OBJECT uo : r.urls) {
+                w.beginObject().name("url").value(uo.url);
+                if (uo.headers != null && !uo.headers.isEmpty()) {
+                    w.name("headers").beginObject();
+                    for (Map.Entry<String, String> e : uo.headers.entrySet()) w.name(e.getKey()).value(e.getValue());
+                    w.endObject();
+                }
+                if (uo.dataClass != null) w.name("class").value(uo.dataClass);
+                w.endObject();
+            }
+            w.endArray();
+        }
+        w.endObject().endObject();
+        w.flush();
+    }
+}
@@ -19,7 +19,9 @@ import htsjdk.samtools.util.Tuple;
 
 import java.net.URI;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.List;
 import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -42,22 +44,77 @@ class TicketResponse {
     }
 
     public static class URL_OBJECT {
+        private static final Pattern RANGE = Pattern.compile("(\\d+)-(\\d+)");
+
         public String url;
         public TreeMap<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        public String dataClass; // htsget "class": header, body or null (either)
 
         public URL_OBJECT(String url) {
             this.url = url;
         }
 
+        /*
+         * Header maps may be shared between URLs (see TicketReader) - the map
+         * is replaced, not changed
+         */
         public void setRange(long start, long end) {
+            TreeMap<String, String> copy = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            if (headers != null) copy.putAll(headers);
             if (start == 0 && end == 0) {
-                headers.remove("Range");
-                return;
-            }
-            if (start < 0 || end <= start) {
+                copy.remove("Range");
+            } else if (start < 0 || end <= start) {
                 throw new IllegalArgumentException(String.format("bytes=%d-%d", start, end));
+            } else {
+                copy.put("Range", String.format("bytes=%d-%d", start, end));
+            }
+            headers = copy;
+        }
+
+        /*
+         * Copy of this URL with the given byte range (all other headers kept)
+         */
+        public URL_OBJECT withRange(long start, long end) {
+            URL_OBJECT copy = new URL_OBJECT(url);
+            copy.headers = headers;
+            copy.dataClass = dataClass;
+            copy.setRange(start, end);
+            return copy;
+        }
+
+        /*
+         * Copy of this URL asking for several byte ranges in one request
+         * (multipart/byteranges), {start, end} each
+         */
+        public URL_OBJECT withRanges(List<long[]> ranges) {
+            StringBuilder sb = new StringBuilder("bytes=");
+            for (long[] r : ranges) {
+                if (sb.length() > 6) sb.append(',');
+                sb.append(r[0]).append('-').append(r[1]);
+            }
+            URL_OBJECT copy = new URL_OBJECT(url);
+            if (headers != null) copy.headers.putAll(headers);
+            copy.headers.put("Range", sb.toString());
+            copy.dataClass = dataClass;
+            return copy;
+        }
+
+        /*
+         * All ranges of the Range header (one or more: bytes=a-b,c-d,...),
+         * null without a Range header
+         */
+        public List<Tuple<Long, Long>> getRanges() throws ParseException {
+            String range = (headers == null) ? null : headers.get("Range");
+            if (range == null) return null;
+            List<Tuple<Long, Long>> ranges = new ArrayList<>();
+            String spec = range.trim();
+            if (!spec.startsWith("bytes=")) throw new ParseException("Range header: " + range, 0);
+            for (String r : spec.substring(6).split(",")) {
+                Matcher matcher = RANGE.matcher(r.trim());
+                if (!matcher.matches()) throw new ParseException("Range header: " + range, 0);
+                ranges.add(new Tuple<>(Long.valueOf(matcher.group(1)), Long.valueOf(matcher.group(2))));
             }
-            headers.put("Range", String.format("bytes=%d-%d", start, end));
+            return ranges;
         }
 
         public Tuple<Long, Long> getRange() throws ParseException {